@@ -0,0 +1,633 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/* LICENCE INFORMATION for org.openIOT.ColumnarHypercat.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Catalogue store holding items as columns of dictionary codes
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * A catalogue that keeps its items in columns of ints rather than as Item and
+ * Relation objects, for catalogues too large to hold as objects. Every
+ * distinct href, rel and val is held once, in a dictionary, and is otherwise
+ * referred to by its code there; each item is given a dense id, and its
+ * relations are runs of two parallel int arrays, one of rel codes and one of
+ * val codes. A relation costs 8 bytes, plus 4 for each of the rel and val
+ * postings (the ids of the items having each rel and each val) that answer
+ * searches, against the ArrayList slot, Relation object and index entries
+ * an item of a Hypercat pays for.
+ * <p>
+ * Items and Relations are built only when they are asked for: getItem and
+ * search return new Items, detached from the catalogue, so changing them
+ * does not change it; replaceItem stores a changed item. A HypercatQuery
+ * runs against the catalogue as against a HypercatSnapshot, each term
+ * selecting the ids in its postings, except that href and val prefixes are
+ * matched by scanning the dictionary.
+ * <p>
+ * Removing or replacing an item only marks its id dead; its relations and
+ * postings are skipped until enough of the catalogue is dead (as much as is
+ * live), when the columns are rebuilt from the live items. Dictionary
+ * strings no longer used are dropped at the same time.
+ * <p>
+ * Methods synchronize on the catalogue, so it may be shared between
+ * threads; a search holds the lock while it selects and builds its
+ * matches. of and toHypercat convert from and to a Hypercat.
+ */
+public final class ColumnarHypercat {
+
+    private static final String DESCRIPTION_REL = "urn:X-tsbiot:rels:hasDescription:en";
+
+    // the code or id standing for none: a null rel or val, or a dead item
+    private static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Object lock = new Object();
+    private final Bitmaps bitmaps = new Bitmaps();
+
+    private ArrayList<Relation> itemMetadata;
+
+    // the dictionary: strings by code, and an open-addressed hash table
+    // holding code + 1 (0 for an empty slot)
+    private String[] strings;
+    private int stringCount;
+    private int[] table;
+
+    // by code: the id of the live item with the string as its href, and
+    // the ids of the items having a relation with the string as its rel or
+    // val. A postings array holds its length at [0], then ascending ids
+    private int[] itemIds;
+    private int[][] relPostings;
+    private int[][] valPostings;
+
+    // by id: the href code (NONE once dead), and the item's run of the
+    // relation columns, whose length is NONE for null metadata
+    private int[] hrefCodes;
+    private int[] firstRelations;
+    private int[] relationCounts;
+    private int itemBound;
+    private int liveCount;
+    private BitSet live;
+
+    // the relation columns
+    private int[] rels;
+    private int[] vals;
+    private int relationEnd;
+
+    /**
+     * creates an empty catalogue with the given description
+     *
+     * @param description
+     *            - a text-description of the catalogue
+     */
+    public ColumnarHypercat(String description) {
+        this(new ArrayList<Relation>(Arrays.asList(new Relation(DESCRIPTION_REL, description))));
+    }
+
+    private ColumnarHypercat(ArrayList<Relation> itemMetadata) {
+        this.itemMetadata = itemMetadata;
+        strings = new String[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+        itemIds = new int[INITIAL_CAPACITY];
+        relPostings = new int[INITIAL_CAPACITY][];
+        valPostings = new int[INITIAL_CAPACITY][];
+        hrefCodes = new int[INITIAL_CAPACITY];
+        firstRelations = new int[INITIAL_CAPACITY];
+        relationCounts = new int[INITIAL_CAPACITY];
+        live = new BitSet();
+        rels = new int[INITIAL_CAPACITY];
+        vals = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * returns a columnar copy of a catalogue, as it is at the time of the
+     * call
+     */
+    public static ColumnarHypercat of(Hypercat hc) {
+        HypercatState state = hc.currentState();
+        ArrayList<Relation> metadata = state.itemMetadata == null ? new ArrayList<Relation>() : new ArrayList<Relation>(state.itemMetadata);
+        ColumnarHypercat columnar = new ColumnarHypercat(metadata);
+        if (state.items != null) {
+            for (Map.Entry<String, HypercatState.Entry> entry : state.items.entrySet()) {
+                columnar.append(entry.getKey(), entry.getValue().metadata);
+            }
+        }
+        return columnar;
+    }
+
+    /**
+     * builds the catalogue as a Hypercat, with new Items
+     */
+    public Hypercat toHypercat() {
+        Hypercat hc = Hypercat.emptyCatalogue();
+        HypercatState.Editor tx = hc.beginUpdate();
+        synchronized (lock) {
+            tx.setItemMetadata(new ArrayList<Relation>(itemMetadata));
+            for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+                Item item = item(id);
+                hc.putItem(tx, item.getHref(), item);
+            }
+        }
+        hc.commitUpdate(tx);
+        return hc;
+    }
+
+    /**
+     * the number of items in the catalogue
+     */
+    public int size() {
+        synchronized (lock) {
+            return liveCount;
+        }
+    }
+
+    /**
+     * returns a copy of the catalogue's item-metadata
+     */
+    public ArrayList<Relation> getItemMetadata() {
+        synchronized (lock) {
+            return new ArrayList<Relation>(itemMetadata);
+        }
+    }
+
+    /**
+     * adds a relation to the catalogue's item-metadata
+     */
+    public void addRelation(Relation rel) {
+        synchronized (lock) {
+            itemMetadata.add(rel);
+        }
+    }
+
+    /**
+     * adds an item, storing its href and relations as they are now. As with
+     * Hypercat.addItem, an item whose href is empty or already in use is not
+     * added. Returns the href of the added item, or "itemExists"
+     *
+     * @param item
+     *            - the item to add
+     * @param href
+     *            - an href that uniquely identifies the item
+     */
+    public String addItem(Item item, String href) {
+        if (href == null || "".equals(href)) {
+            return "itemExists";
+        }
+        synchronized (lock) {
+            if (id(href) != NONE) {
+                return "itemExists";
+            }
+            append(href, item.metadata());
+        }
+        return href;
+    }
+
+    /**
+     * adds a batch of items, skipping any whose href is empty or already in
+     * use. Returns the number of items added
+     *
+     * @param batch
+     *            - the items to add, keyed by the hrefs that identify them
+     */
+    public int addItems(Map<String, Item> batch) {
+        int added = 0;
+        synchronized (lock) {
+            for (Map.Entry<String, Item> entry : batch.entrySet()) {
+                String href = entry.getKey();
+                if (href == null || "".equals(href) || id(href) != NONE) {
+                    continue;
+                }
+                append(href, entry.getValue().metadata());
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * stores an item under an href, replacing any item held there before
+     *
+     * @param item
+     *            - the item, whose href and relations are stored as they are
+     *            now
+     * @param href
+     *            - the href that identifies the item
+     */
+    public void replaceItem(Item item, String href) {
+        if (href == null || "".equals(href)) {
+            throw new IllegalArgumentException("items need a non-empty href");
+        }
+        synchronized (lock) {
+            int id = id(href);
+            if (id != NONE) {
+                kill(id);
+            }
+            append(href, item.metadata());
+            compactIfWasteful();
+        }
+    }
+
+    /**
+     * removes the item held under an href, returning false if there was none
+     */
+    public boolean removeItem(String href) {
+        synchronized (lock) {
+            int id = id(href);
+            if (id == NONE) {
+                return false;
+            }
+            kill(id);
+            compactIfWasteful();
+            return true;
+        }
+    }
+
+    public boolean containsItem(String href) {
+        synchronized (lock) {
+            return id(href) != NONE;
+        }
+    }
+
+    /**
+     * returns a new Item holding the item stored under an href, or null if
+     * there is none
+     */
+    public Item getItem(String href) {
+        synchronized (lock) {
+            int id = id(href);
+            return id == NONE ? null : item(id);
+        }
+    }
+
+    /**
+     * returns new Items holding the items matching the query, in the order
+     * they were added
+     */
+    public List<Item> search(HypercatQuery query) {
+        synchronized (lock) {
+            BitSet bits = query.select(bitmaps);
+            List<Item> matches = new ArrayList<Item>(bits.cardinality());
+            for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+                matches.add(item(id));
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * returns the number of items matching the query, without building them
+     */
+    public long count(HypercatQuery query) {
+        synchronized (lock) {
+            return query.select(bitmaps).cardinality();
+        }
+    }
+
+    /**
+     * rebuilds the columns and the dictionary from the live items, freeing
+     * the space held by removed and replaced ones. Done automatically once
+     * as many items are dead as are live
+     */
+    public void compact() {
+        synchronized (lock) {
+            ColumnarHypercat compacted = new ColumnarHypercat(itemMetadata);
+            for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+                compacted.appendFrom(this, id);
+            }
+            strings = compacted.strings;
+            stringCount = compacted.stringCount;
+            table = compacted.table;
+            itemIds = compacted.itemIds;
+            relPostings = compacted.relPostings;
+            valPostings = compacted.valPostings;
+            hrefCodes = compacted.hrefCodes;
+            firstRelations = compacted.firstRelations;
+            relationCounts = compacted.relationCounts;
+            itemBound = compacted.itemBound;
+            liveCount = compacted.liveCount;
+            live = compacted.live;
+            rels = compacted.rels;
+            vals = compacted.vals;
+            relationEnd = compacted.relationEnd;
+        }
+    }
+
+    private void compactIfWasteful() {
+        int dead = itemBound - liveCount;
+        if (dead > INITIAL_CAPACITY && dead >= liveCount) {
+            compact();
+        }
+    }
+
+    /**
+     * the id of the live item held under the href, or NONE
+     */
+    private int id(String href) {
+        int code = code(href);
+        return code == NONE ? NONE : itemIds[code];
+    }
+
+    /**
+     * builds the Item for a live id
+     */
+    private Item item(int id) {
+        Item item = new Item();
+        item.setHref(strings[hrefCodes[id]]);
+        int count = relationCounts[id];
+        if (count != NONE) {
+            ArrayList<Relation> metadata = new ArrayList<Relation>(count);
+            for (int r = firstRelations[id]; r < firstRelations[id] + count; r++) {
+                metadata.add(RelationVocabulary.relation(string(rels[r]), string(vals[r])));
+            }
+            item.setIObjectMetadata(metadata);
+        } else {
+            item.setIObjectMetadata(null);
+        }
+        return item;
+    }
+
+    private String string(int code) {
+        return code == NONE ? null : strings[code];
+    }
+
+    /**
+     * gives the next id to an item, appending its relations to the columns
+     * and its id to the postings of their rels and vals
+     */
+    private void append(String href, List<Relation> metadata) {
+        int id = newItem(intern(href), metadata == null ? NONE : metadata.size());
+        for (int i = 0; metadata != null && i < metadata.size(); i++) {
+            Relation rel = metadata.get(i);
+            appendRelation(id, rel.getRel() == null ? NONE : intern(rel.getRel()), rel.getVal() == null ? NONE : intern(rel.getVal()));
+        }
+    }
+
+    /**
+     * appends a live item of another catalogue, coding its strings afresh
+     */
+    private void appendFrom(ColumnarHypercat source, int sourceId) {
+        int count = source.relationCounts[sourceId];
+        int id = newItem(intern(source.strings[source.hrefCodes[sourceId]]), count);
+        for (int r = source.firstRelations[sourceId]; r < source.firstRelations[sourceId] + count; r++) {
+            int rel = source.rels[r];
+            int val = source.vals[r];
+            appendRelation(id, rel == NONE ? NONE : intern(source.strings[rel]), val == NONE ? NONE : intern(source.strings[val]));
+        }
+    }
+
+    private int newItem(int hrefCode, int relationCount) {
+        if (itemBound == hrefCodes.length) {
+            int capacity = grow(itemBound);
+            hrefCodes = Arrays.copyOf(hrefCodes, capacity);
+            firstRelations = Arrays.copyOf(firstRelations, capacity);
+            relationCounts = Arrays.copyOf(relationCounts, capacity);
+        }
+        int id = itemBound++;
+        hrefCodes[id] = hrefCode;
+        firstRelations[id] = relationEnd;
+        relationCounts[id] = relationCount;
+        itemIds[hrefCode] = id;
+        live.set(id);
+        liveCount++;
+        return id;
+    }
+
+    private void appendRelation(int id, int rel, int val) {
+        if (relationEnd == rels.length) {
+            int capacity = grow(relationEnd);
+            rels = Arrays.copyOf(rels, capacity);
+            vals = Arrays.copyOf(vals, capacity);
+        }
+        rels[relationEnd] = rel;
+        vals[relationEnd] = val;
+        relationEnd++;
+        if (rel != NONE) {
+            relPostings[rel] = post(relPostings[rel], id);
+        }
+        if (val != NONE) {
+            valPostings[val] = post(valPostings[val], id);
+        }
+    }
+
+    /**
+     * adds an id to a postings array, if it does not already end with it
+     */
+    private static int[] post(int[] postings, int id) {
+        if (postings == null) {
+            return new int[] { 1, id };
+        }
+        int length = postings[0];
+        if (postings[length] == id) {
+            return postings;
+        }
+        if (length + 1 == postings.length) {
+            // most vals are shared by few items, so short postings double
+            postings = Arrays.copyOf(postings, postings.length < INITIAL_CAPACITY ? postings.length * 2 : grow(postings.length));
+        }
+        postings[length + 1] = id;
+        postings[0] = length + 1;
+        return postings;
+    }
+
+    private void kill(int id) {
+        itemIds[hrefCodes[id]] = NONE;
+        hrefCodes[id] = NONE;
+        live.clear(id);
+        liveCount--;
+    }
+
+    /**
+     * a larger capacity for an array of the given length, by half as much
+     * again
+     */
+    private static int grow(int length) {
+        return Math.max(INITIAL_CAPACITY, length + (length >> 1));
+    }
+
+    /**
+     * the dictionary code of a string, or NONE if it is not there
+     */
+    private int code(String s) {
+        int mask = table.length - 1;
+        for (int slot = hash(s) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return NONE;
+            }
+            if (strings[entry - 1].equals(s)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * the dictionary code of a string, adding it if it is not there
+     */
+    private int intern(String s) {
+        int mask = table.length - 1;
+        int slot = hash(s) & mask;
+        for (int entry = table[slot]; entry != 0; entry = table[slot]) {
+            if (strings[entry - 1].equals(s)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (stringCount == strings.length) {
+            int capacity = grow(stringCount);
+            strings = Arrays.copyOf(strings, capacity);
+            itemIds = Arrays.copyOf(itemIds, capacity);
+            relPostings = Arrays.copyOf(relPostings, capacity);
+            valPostings = Arrays.copyOf(valPostings, capacity);
+        }
+        int code = stringCount++;
+        strings[code] = s;
+        itemIds[code] = NONE;
+        table[slot] = code + 1;
+        if (stringCount * 2 > table.length) {
+            rehash();
+        }
+        return code;
+    }
+
+    /**
+     * doubles the hash table, keeping it at most half full
+     */
+    private void rehash() {
+        int[] rehashed = new int[table.length * 2];
+        int mask = rehashed.length - 1;
+        for (int code = 0; code < stringCount; code++) {
+            int slot = hash(strings[code]) & mask;
+            while (rehashed[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = code + 1;
+        }
+        table = rehashed;
+    }
+
+    private static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * the catalogue's items, numbered by id, for HypercatQuery to select
+     * from. Called with the lock held
+     */
+    private final class Bitmaps implements ItemBitmaps {
+
+        @Override
+        public BitSet all() {
+            return (BitSet) live.clone();
+        }
+
+        @Override
+        public void selectHref(String href, BitSet bits) {
+            int id = id(href);
+            if (id != NONE) {
+                bits.set(id);
+            }
+        }
+
+        /**
+         * scans the dictionary for hrefs with the prefix
+         */
+        @Override
+        public void selectHrefPrefix(String prefix, BitSet bits) {
+            for (int code = 0; code < stringCount; code++) {
+                if (itemIds[code] != NONE && strings[code].startsWith(prefix)) {
+                    bits.set(itemIds[code]);
+                }
+            }
+        }
+
+        @Override
+        public void selectRel(String rel, BitSet bits) {
+            int code = code(rel);
+            if (code != NONE) {
+                selectLive(relPostings[code], bits);
+            }
+        }
+
+        @Override
+        public void selectVal(String val, BitSet bits) {
+            int code = code(val);
+            if (code != NONE) {
+                selectLive(valPostings[code], bits);
+            }
+        }
+
+        /**
+         * runs through the shorter of the rel's and the val's postings,
+         * testing each item's relations for the pair
+         */
+        @Override
+        public void selectRelVal(String rel, String val, BitSet bits) {
+            int relCode = code(rel);
+            int valCode = code(val);
+            if (relCode == NONE || valCode == NONE || relPostings[relCode] == null || valPostings[valCode] == null) {
+                return;
+            }
+            int[] postings = relPostings[relCode][0] <= valPostings[valCode][0] ? relPostings[relCode] : valPostings[valCode];
+            for (int i = 1; i <= postings[0]; i++) {
+                int id = postings[i];
+                if (!live.get(id)) {
+                    continue;
+                }
+                for (int r = firstRelations[id]; r < firstRelations[id] + relationCounts[id]; r++) {
+                    if (rels[r] == relCode && vals[r] == valCode) {
+                        bits.set(id);
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * scans the dictionary for vals with the prefix
+         */
+        @Override
+        public void selectValPrefix(String prefix, BitSet bits) {
+            for (int code = 0; code < stringCount; code++) {
+                if (valPostings[code] != null && strings[code].startsWith(prefix)) {
+                    selectLive(valPostings[code], bits);
+                }
+            }
+        }
+
+        private void selectLive(int[] postings, BitSet bits) {
+            for (int i = 1; postings != null && i <= postings[0]; i++) {
+                if (live.get(postings[i])) {
+                    bits.set(postings[i]);
+                }
+            }
+        }
+    }
+}
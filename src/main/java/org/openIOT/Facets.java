@@ -0,0 +1,231 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* LICENCE INFORMATION for org.openIOT.Facets.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Per-rel and per-val counts of a Hypercat's items
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Facet counts for Hypercat.facetRels and Hypercat.facetVals: the number of
+ * items carrying each rel, or each val of one rel, among all the items or
+ * those matching a query. An item is counted once however many times it
+ * carries a rel or val.
+ * <p>
+ * The counts come from the inverted indexes. Over the whole catalogue each
+ * count is the size of an index entry, so the cost grows only with the number
+ * of facets. Over the matches of a query, each count is the size of the
+ * intersection of an index entry with the matches, found by walking the
+ * smaller of the two and probing the other (an entry holding every item
+ * holds all the matches, and needs no intersecting). The cost is the sum,
+ * over the facets, of the smaller of the entry and the matches; where that
+ * exceeds the cost of reading each match's metadata once (eg for the vals
+ * of a free-text rel under a narrow query, or a few large vals under a
+ * broad one), the metadata is read instead.
+ */
+final class Facets {
+
+    private static final Comparator<Map.Entry<String, Integer>> MOST_FIRST = new Comparator<Map.Entry<String, Integer>>() {
+        public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+            int c = b.getValue().compareTo(a.getValue());
+            return c != 0 ? c : a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    /**
+     * the cost of reading a match's metadata, in index probes: an items
+     * lookup, and a walk of a few relations
+     */
+    private static final int SCAN_COST = 2;
+
+    private Facets() {
+    }
+
+    /**
+     * counts the items carrying each rel, among those matching the query or
+     * all items if it is null
+     */
+    static Map<String, Integer> rels(HypercatState state, HypercatQuery query) {
+        HypercatIndex index = state.index();
+        Set<String> rels = index.rels();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        if (query == null) {
+            for (String rel : rels) {
+                counts.put(rel, index.hrefsForRel(rel).size());
+            }
+            return sorted(counts, Integer.MAX_VALUE);
+        }
+        Set<String> matches = matches(state, query);
+        int universe = state.items == null ? 0 : state.items.size();
+        long probes = 0;
+        for (String rel : rels) {
+            probes += probes(index.hrefsForRel(rel), matches, universe);
+        }
+        if (probes > SCAN_COST * matches.size()) {
+            for (String href : matches) {
+                List<Relation> metadata = state.items.get(href).metadata;
+                for (int i = 0; metadata != null && i < metadata.size(); i++) {
+                    String rel = metadata.get(i).getRel();
+                    if (rel != null && firstWithRel(metadata, rel) == i) {
+                        increment(counts, rel);
+                    }
+                }
+            }
+        } else {
+            for (String rel : rels) {
+                put(counts, rel, intersection(index.hrefsForRel(rel), matches, universe));
+            }
+        }
+        return sorted(counts, Integer.MAX_VALUE);
+    }
+
+    /**
+     * counts the items carrying each val of the rel, among those matching the
+     * query or all items if it is null, and keeps the limit greatest counts
+     */
+    static Map<String, Integer> vals(HypercatState state, HypercatQuery query, String rel, int limit) {
+        HypercatIndex index = state.index();
+        Set<String> vals = index.valsForRel(rel);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        if (query == null) {
+            for (String val : vals) {
+                counts.put(val, index.hrefsForRelVal(rel, val).size());
+            }
+            return sorted(counts, limit);
+        }
+        Set<String> matches = matches(state, query);
+        int universe = state.items == null ? 0 : state.items.size();
+        long probes = 0;
+        for (String val : vals) {
+            probes += probes(index.hrefsForRelVal(rel, val), matches, universe);
+        }
+        if (probes > SCAN_COST * matches.size()) {
+            for (String href : matches) {
+                List<Relation> metadata = state.items.get(href).metadata;
+                for (int i = 0; metadata != null && i < metadata.size(); i++) {
+                    Relation relation = metadata.get(i);
+                    if (rel.equals(relation.getRel()) && relation.getVal() != null && firstWithRelVal(metadata, rel, relation.getVal()) == i) {
+                        increment(counts, relation.getVal());
+                    }
+                }
+            }
+        } else {
+            for (String val : vals) {
+                put(counts, val, intersection(index.hrefsForRelVal(rel, val), matches, universe));
+            }
+        }
+        return sorted(counts, limit);
+    }
+
+    /**
+     * the keys of the items matching the query, as a set that may be probed
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> matches(HypercatState state, HypercatQuery query) {
+        Collection<String> hrefs = query.evaluate(state);
+        return hrefs instanceof Set ? (Set<String>) hrefs : new HashSet<String>(hrefs);
+    }
+
+    /**
+     * the number of hrefs intersection walks and probes for
+     */
+    private static int probes(Set<String> a, Set<String> b, int universe) {
+        return a.size() == universe ? 0 : Math.min(a.size(), b.size());
+    }
+
+    /**
+     * the size of the intersection of an index entry with the matches. An
+     * entry holding every item (as for the rels every item carries) holds
+     * all the matches, and is not walked
+     */
+    private static int intersection(Set<String> a, Set<String> b, int universe) {
+        if (a.size() == universe) {
+            return b.size();
+        }
+        if (a.size() > b.size()) {
+            Set<String> t = a;
+            a = b;
+            b = t;
+        }
+        int count = 0;
+        for (String href : a) {
+            if (b.contains(href)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int firstWithRel(List<Relation> metadata, String rel) {
+        for (int i = 0;; i++) {
+            if (rel.equals(metadata.get(i).getRel())) {
+                return i;
+            }
+        }
+    }
+
+    private static int firstWithRelVal(List<Relation> metadata, String rel, String val) {
+        for (int i = 0;; i++) {
+            if (rel.equals(metadata.get(i).getRel()) && val.equals(metadata.get(i).getVal())) {
+                return i;
+            }
+        }
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static void put(Map<String, Integer> counts, String key, int count) {
+        if (count > 0) {
+            counts.put(key, count);
+        }
+    }
+
+    /**
+     * the limit greatest counts, greatest first and equal counts in order of
+     * key
+     */
+    private static Map<String, Integer> sorted(Map<String, Integer> counts, int limit) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+        Collections.sort(entries, MOST_FIRST);
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            result.put(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
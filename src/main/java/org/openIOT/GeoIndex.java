@@ -0,0 +1,298 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/* LICENCE INFORMATION for org.openIOT.GeoIndex.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Spatial index over the wgs84 positions of a Hypercat's items
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * A grid index over the positions of the items in a Hypercat that carry both
+ * a wgs84_pos#lat and a wgs84_pos#long relation. The position is parsed once,
+ * when the item is indexed; items whose lat or long is missing, not a number
+ * or out of range are simply left out of the index.
+ * <p>
+ * The globe is divided into cells of CELL_DEGREES of latitude by
+ * CELL_DEGREES of longitude, and each item is filed under the cell holding
+ * its position. A bounding-box search visits only the cells the box
+ * overlaps (or, for a box covering more cells than are occupied, every
+ * occupied cell), and tests the positions within them; a radius search
+ * searches the box around the circle and keeps the positions within the
+ * great-circle distance.
+ * <p>
+ * Like HypercatIndex, the index is immutable; cells are PersistentHashTries
+ * mapping href to position, so an Editor derives the next version by copying
+ * only the cells it changes.
+ */
+final class GeoIndex {
+
+    static final String LAT_REL = "http://www.w3.org/2003/01/geo/wgs84_pos#lat";
+    static final String LONG_REL = "http://www.w3.org/2003/01/geo/wgs84_pos#long";
+
+    /**
+     * the size of a grid cell, in degrees: about 1.1km of latitude
+     */
+    static final double CELL_DEGREES = 0.01;
+
+    /**
+     * the mean radius of the earth
+     */
+    static final double EARTH_RADIUS_METRES = 6371008.8;
+
+    static final GeoIndex EMPTY = new GeoIndex(PersistentHashTrie.<Long, PersistentHashTrie<String, Point>> empty());
+
+    private final PersistentHashTrie<Long, PersistentHashTrie<String, Point>> cells;
+
+    private GeoIndex(PersistentHashTrie<Long, PersistentHashTrie<String, Point>> cells) {
+        this.cells = cells;
+    }
+
+    /**
+     * returns the hrefs of the items positioned within the box. A box whose
+     * minimum longitude is greater than its maximum crosses the 180th
+     * meridian
+     */
+    List<String> hrefsInBox(double minLat, double minLong, double maxLat, double maxLong) {
+        List<String> hrefs = new ArrayList<String>();
+        if (minLong <= maxLong) {
+            collect(minLat, minLong, maxLat, maxLong, null, 0, hrefs);
+        } else {
+            collect(minLat, minLong, maxLat, 180, null, 0, hrefs);
+            collect(minLat, -180, maxLat, maxLong, null, 0, hrefs);
+        }
+        return hrefs;
+    }
+
+    /**
+     * returns the hrefs of the items positioned within the given
+     * great-circle distance of a point
+     */
+    List<String> hrefsWithin(double lat, double lng, double metres) {
+        List<String> hrefs = new ArrayList<String>();
+        Point centre = new Point(lat, lng);
+        double angle = metres / EARTH_RADIUS_METRES;
+        double dLat = Math.toDegrees(angle);
+        double minLat = lat - dLat;
+        double maxLat = lat + dLat;
+        if (minLat <= -90 || maxLat >= 90 || angle >= Math.PI / 2) {
+            // the circle takes in a pole, and so every longitude
+            collect(Math.max(minLat, -90), -180, Math.min(maxLat, 90), 180, centre, angle, hrefs);
+            return hrefs;
+        }
+        double dLong = Math.toDegrees(Math.asin(Math.min(1, Math.sin(angle) / Math.cos(Math.toRadians(lat)))));
+        double minLong = lng - dLong;
+        double maxLong = lng + dLong;
+        if (minLong < -180) {
+            collect(minLat, minLong + 360, maxLat, 180, centre, angle, hrefs);
+            collect(minLat, -180, maxLat, maxLong, centre, angle, hrefs);
+        } else if (maxLong > 180) {
+            collect(minLat, minLong, maxLat, 180, centre, angle, hrefs);
+            collect(minLat, -180, maxLat, maxLong - 360, centre, angle, hrefs);
+        } else {
+            collect(minLat, minLong, maxLat, maxLong, centre, angle, hrefs);
+        }
+        return hrefs;
+    }
+
+    /**
+     * adds to hrefs the items within the box, and, if a centre is given,
+     * within the angular distance of it
+     */
+    private void collect(double minLat, double minLong, double maxLat, double maxLong, Point centre, double angle, List<String> hrefs) {
+        if (minLat > maxLat || minLong > maxLong) {
+            return;
+        }
+        int lat0 = cell(minLat);
+        int lat1 = cell(maxLat);
+        int long0 = cell(minLong);
+        int long1 = cell(maxLong);
+        long boxCells = (lat1 - lat0 + 1L) * (long1 - long0 + 1L);
+        if (boxCells <= cells.size()) {
+            for (int la = lat0; la <= lat1; la++) {
+                for (int lo = long0; lo <= long1; lo++) {
+                    PersistentHashTrie<String, Point> cell = cells.get(key(la, lo));
+                    if (cell != null) {
+                        collect(cell, minLat, minLong, maxLat, maxLong, centre, angle, hrefs);
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<Long, PersistentHashTrie<String, Point>> entry : cells.entrySet()) {
+                long key = entry.getKey();
+                int la = (int) (key >> 32);
+                int lo = (int) key;
+                if (la >= lat0 && la <= lat1 && lo >= long0 && lo <= long1) {
+                    collect(entry.getValue(), minLat, minLong, maxLat, maxLong, centre, angle, hrefs);
+                }
+            }
+        }
+    }
+
+    private static void collect(PersistentHashTrie<String, Point> cell, double minLat, double minLong, double maxLat, double maxLong,
+            Point centre, double angle, List<String> hrefs) {
+        for (Map.Entry<String, Point> entry : cell.entrySet()) {
+            Point p = entry.getValue();
+            if (p.lat >= minLat && p.lat <= maxLat && p.lng >= minLong && p.lng <= maxLong
+                    && (centre == null || centre.angleTo(p) <= angle)) {
+                hrefs.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * returns the position given by the first lat and first long relation
+     * in the metadata, or null if it has no valid position
+     */
+    static Point positionOf(List<Relation> relations) {
+        if (relations == null) {
+            return null;
+        }
+        String lat = null;
+        String lng = null;
+        for (int i = 0; i < relations.size() && (lat == null || lng == null); i++) {
+            Relation rel = relations.get(i);
+            if (lat == null && LAT_REL.equals(rel.getRel())) {
+                lat = rel.getVal();
+            } else if (lng == null && LONG_REL.equals(rel.getRel())) {
+                lng = rel.getVal();
+            }
+        }
+        if (lat == null || lng == null) {
+            return null;
+        }
+        try {
+            double la = Double.parseDouble(lat.trim());
+            double lo = Double.parseDouble(lng.trim());
+            if (la < -90 || la > 90 || lo < -180 || lo > 180) {
+                return null;
+            }
+            return new Point(la, lo);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int cell(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static Long key(int latCell, int longCell) {
+        return Long.valueOf(((long) latCell << 32) | (longCell & 0xffffffffL));
+    }
+
+    private static Long key(Point p) {
+        return key(cell(p.lat), cell(p.lng));
+    }
+
+    /**
+     * starts a run of changes to this index under the given edit token
+     */
+    Editor edit(Object token) {
+        return new Editor(this, token);
+    }
+
+    /**
+     * a wgs84 position, in degrees
+     */
+    static final class Point {
+        final double lat;
+        final double lng;
+
+        Point(double lat, double lng) {
+            this.lat = lat;
+            this.lng = lng;
+        }
+
+        /**
+         * the angle subtended at the earth's centre between this point and
+         * another, in radians (haversine formula)
+         */
+        double angleTo(Point other) {
+            double sinLat = Math.sin(Math.toRadians(other.lat - lat) / 2);
+            double sinLong = Math.sin(Math.toRadians(other.lng - lng) / 2);
+            double h = sinLat * sinLat + Math.cos(Math.toRadians(lat)) * Math.cos(Math.toRadians(other.lat)) * sinLong * sinLong;
+            return 2 * Math.asin(Math.min(1, Math.sqrt(h)));
+        }
+    }
+
+    /**
+     * derives a new version of the index. Not thread-safe; used by the
+     * HypercatIndex.Editor that owns it
+     */
+    static final class Editor {
+
+        private final Object token;
+        private PersistentHashTrie<Long, PersistentHashTrie<String, Point>> cells;
+
+        private Editor(GeoIndex base, Object token) {
+            this.token = token;
+            this.cells = base.cells;
+        }
+
+        /**
+         * files an item under its position, if its metadata gives one
+         */
+        void indexItem(String href, List<Relation> relations) {
+            Point p = positionOf(relations);
+            if (p == null) {
+                return;
+            }
+            Long key = key(p);
+            PersistentHashTrie<String, Point> cell = cells.get(key);
+            if (cell == null) {
+                cell = PersistentHashTrie.empty();
+            }
+            cells = cells.plus(token, key, cell.plus(token, href, p));
+        }
+
+        /**
+         * removes an item filed under the position its metadata gives
+         */
+        void unindexItem(String href, List<Relation> relations) {
+            Point p = positionOf(relations);
+            if (p == null) {
+                return;
+            }
+            Long key = key(p);
+            PersistentHashTrie<String, Point> cell = cells.get(key);
+            if (cell == null) {
+                return;
+            }
+            cell = cell.minus(token, href);
+            cells = cell.isEmpty() ? cells.minus(token, key) : cells.plus(token, key, cell);
+        }
+
+        void clear() {
+            cells = PersistentHashTrie.empty();
+        }
+
+        GeoIndex build() {
+            return new GeoIndex(cells);
+        }
+    }
+}
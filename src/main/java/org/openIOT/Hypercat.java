@@ -1,23 +1,54 @@
 package org.openIOT;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonGenerationException;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.annotate.JsonGetter;
-import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.annotate.JsonPropertyOrder;
 import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.ObjectWriter;
-import org.codehaus.jackson.map.SerializationConfig;
 import org.codehaus.jackson.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,16 +113,57 @@ import org.slf4j.LoggerFactory;
  * the constructors for Hypercat enforce this by requiring a metadata 
  * relation to be present for hasDescription, and for this to have a non-null
  * String as a value
+ * <p>
+ * A Hypercat may be searched, serialized and changed from several threads at
+ * once without outside locking. Its contents (item-metadata, items and search
+ * indexes) are held as a single immutable HypercatState, built from
+ * persistent hash tries; each change derives a new state, copying only the
+ * paths it touches, and publishes it by replacing one reference. Reads,
+ * searches and serialization take no locks and work from the state current
+ * when they start, so they never see a change half made. Writers take the
+ * catalogue's write lock in turn.
+ * <p>
+ * snapshot() returns a read-only Hypercat fixed at the current state, in
+ * constant time, and addItems and removeItems apply a whole batch of changes
+ * as a single new state, so that readers see all of the batch or none of it.
+ * <p>
+ * Searches that the indexes cannot answer (searchItems, with an arbitrary
+ * Predicate) scan every item. Scans of large catalogues are shared out
+ * between the threads of a fork-join pool.
  */
 @JsonPropertyOrder({ "item-metadata", "items" })
 public class Hypercat {
 
-    @JsonProperty("item-metadata")
-    private ArrayList<Relation> itemMetadata;
-    private HashMap<String, Item> items;
+    private volatile HypercatState state = HypercatState.UNSET;
+
+    // true for snapshots, which may not be changed
+    private final boolean readOnly;
 
-    private Logger log = LoggerFactory.getLogger(Hypercat.class);
-    private ObjectMapper mapper = new ObjectMapper();
+    // writers take turns on one lock per catalogue, not per-href stripes,
+    // because every commit replaces the single state root; reads never lock
+    private final Object writeLock = new Object();
+
+    // the write-ahead log changes are appended to, if any; changed only
+    // under the write lock
+    private volatile HypercatLog changeLog;
+
+    private volatile boolean fragmentCaching = false;
+    private final AtomicLong fragmentCacheHits = new AtomicLong();
+    private final AtomicLong fragmentCacheMisses = new AtomicLong();
+
+    /**
+     * the default size below which searchItems scans on the calling thread
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+    private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    // null for the common pool
+    private volatile ForkJoinPool searchPool;
+
+    // files at least this large are read through a memory mapping rather
+    // than through the channel's stream
+    static final long MAP_THRESHOLD = 64L * 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(Hypercat.class);
     
 
     // HyperCat constructors.
@@ -100,6 +172,19 @@ public class Hypercat {
      * 
      */
     public Hypercat() {
+        this.readOnly = false;
+    }
+
+    /**
+     * snapshot constructor - a read-only catalogue fixed at the given state,
+     * with the output and search settings of the source catalogue
+     */
+    private Hypercat(Hypercat source, HypercatState state) {
+        this.readOnly = true;
+        this.state = state;
+        this.fragmentCaching = source.fragmentCaching;
+        this.parallelThreshold = source.parallelThreshold;
+        this.searchPool = source.searchPool;
     }
 
     /**
@@ -111,9 +196,8 @@ public class Hypercat {
      *            hypercat
      */
     public Hypercat(String description) {
-        super();
-        itemMetadata = new ArrayList<Relation>();
-        items = new HashMap<String, Item>();
+        this();
+        state = HypercatState.EMPTY;
         Relation descriptionRel = new Relation("urn:X-tsbiot:rels:hasDescription:en", description);        
         addRelation(descriptionRel);
         String validated = validateHypercat(this);
@@ -131,16 +215,19 @@ public class Hypercat {
      * @param isJSON
      *            - a boolean required to distinguish this method-signature from
      *            the simple-constructor version. Not used
+     * <p>
+     * This constructor builds a full JSON tree of the input before creating
+     * any items; for large catalogues use Hypercat.parse instead
      */
     public Hypercat(String jsonString, boolean isJSON) throws JsonParseException, JsonMappingException, IOException {
 
-        itemMetadata = new ArrayList<Relation>();
-        items = new HashMap<String, Item>();
+        this();
+        HypercatState.Editor tx = HypercatState.EMPTY.edit();
         // would use Jackson's JSONCreator functions here, except it appears to
         // have a problem with HashMaps - it cannot reliably handle parsing into
         // a Map.  So we have to do it manually
         
-        JsonNode rootNode = mapper.readTree(jsonString);
+        JsonNode rootNode = HypercatJson.MAPPER.readTree(jsonString);
         JsonNode relationsNode = rootNode.path("item-metadata");
 
         Iterator<JsonNode> relations = relationsNode.getElements();
@@ -148,7 +235,7 @@ public class Hypercat {
             ObjectNode relation = (ObjectNode) relations.next();
             String rel = (String) relation.findValuesAsText("rel").toArray()[0];
             String val = (String) relation.findValuesAsText("val").toArray()[0];
-            this.addRelation(new Relation(rel, val));
+            appendMetadata(tx, new Relation(rel, val));
         }
 
         // now add items to the hypercat
@@ -180,12 +267,13 @@ public class Hypercat {
               String rel = (String) relation.findValuesAsText("rel").toArray()[0];
                 String val = (String) relation.findValuesAsText("val").toArray()[0];
                 reln = new Relation(rel, val);
-                item.getIObjectMetadata().add(reln);
+                item.appendRelation(reln);
             }
 
             // finally, add the item to the hypercat's items collection
-            this.items.put(itemHref, item);            
+            putItem(tx, itemHref, item);
         }
+        state = tx.commit();
         
         String validated = validateHypercat(this);
         if (!"VALID".equals(validated)) {
@@ -209,6 +297,240 @@ public class Hypercat {
         
     }
 
+    /**
+     * parses a Hypercat from a stream of UTF-8 JSON. Items are built directly
+     * from the parser's token stream in a single pass, so no intermediate JSON
+     * tree is held in memory. The stream is not closed.
+     * 
+     * @param in
+     *            - the stream containing the JSON definition
+     * @throws JsonParseException
+     *             - if the JSON cannot be parsed, or is not shaped like a
+     *             hypercat
+     * @throws InvalidHypercatException
+     *             - if the parsed hypercat does not meet the 1.1 spec
+     */
+    public static Hypercat parse(InputStream in) throws JsonParseException, IOException {
+        return parse(HypercatJson.FACTORY.createJsonParser(in));
+    }
+
+    /**
+     * parses a Hypercat from a character stream of JSON, as parse(InputStream)
+     * above. The reader is not closed.
+     * 
+     * @param reader
+     *            - the reader containing the JSON definition
+     */
+    public static Hypercat parse(Reader reader) throws JsonParseException, IOException {
+        return parse(HypercatJson.FACTORY.createJsonParser(reader));
+    }
+
+    /**
+     * loads a Hypercat from a file of UTF-8 JSON, reading it through a
+     * FileChannel straight into the streaming parser. Files of 64MB or more
+     * are memory-mapped rather than copied through the channel's stream.
+     * 
+     * @param path
+     *            - the path of the file containing the JSON definition
+     */
+    public static Hypercat load(Path path) throws JsonParseException, IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            InputStream in;
+            if (channel.size() >= MAP_THRESHOLD) {
+                in = new MappedFileInputStream(channel);
+            } else {
+                in = Channels.newInputStream(channel);
+            }
+            return parse(in);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * loads a Hypercat from a file of UTF-8 JSON, as load(Path) above
+     * 
+     * @param file
+     *            - the file containing the JSON definition
+     */
+    public static Hypercat load(File file) throws JsonParseException, IOException {
+        return load(file.toPath());
+    }
+
+    private static Hypercat parse(JsonParser jp) throws JsonParseException, IOException {
+        Hypercat hc;
+        try {
+            hc = HypercatJson.readHypercat(jp);
+        } finally {
+            jp.close();
+        }
+        String validated = hc.validateHypercat(hc);
+        if (!"VALID".equals(validated)) {
+            throw new InvalidHypercatException("hypercat is NOT VALID: " + validated);
+        }
+        return hc;
+    }
+
+    /**
+     * returns a Hypercat with empty metadata and items collections, for the
+     * parser to fill. It is not valid until a description relation is added
+     */
+    static Hypercat emptyCatalogue() {
+        Hypercat hc = new Hypercat();
+        hc.state = HypercatState.EMPTY;
+        return hc;
+    }
+
+    /**
+     * returns a read-only Hypercat holding this catalogue's contents as they
+     * are now. Taking a snapshot costs the same however large the catalogue:
+     * the snapshot shares this catalogue's current state, which later changes
+     * replace rather than alter. Changes made to the catalogue afterwards,
+     * including changes to its items through Item.addRelation, setHref and
+     * setIObjectMetadata, are not seen by the snapshot; items it returns that
+     * have since changed are detached copies of the items as they were.
+     * Searching and serializing a snapshot behave as for the catalogue
+     * itself, except that the results of a search are snapshots too, holding
+     * the items as the searched snapshot recorded them. Trying to change a
+     * snapshot throws UnsupportedOperationException.
+     */
+    public Hypercat snapshot() {
+        return new Hypercat(this, state);
+    }
+
+    /**
+     * returns the catalogue's version: a number that changes whenever the
+     * catalogue does (through addItem, removeItem, addRelation, a change to
+     * one of its items, and so on), and never goes back to a value it had
+     * before, so that two reads returning the same version saw the same
+     * contents. Versions are unique among all the catalogues in the JVM, so
+     * a catalogue replaced by another is seen to have changed
+     */
+    @JsonIgnore
+    public long getVersion() {
+        return state.version;
+    }
+
+    /**
+     * returns the time of the change that gave the catalogue its current
+     * version, in milliseconds since the epoch, or 0 if it has never been
+     * changed
+     */
+    @JsonIgnore
+    public long getLastModified() {
+        return state.lastModified;
+    }
+
+    /**
+     * returns true if this Hypercat is a read-only snapshot
+     */
+    @JsonIgnore
+    public boolean isSnapshot() {
+        return readOnly;
+    }
+
+    /**
+     * returns the catalogue's current state, for the serializers
+     */
+    HypercatState currentState() {
+        return state;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("a Hypercat snapshot cannot be changed");
+        }
+    }
+
+    /**
+     * starts a run of changes to a catalogue that no other thread can see yet
+     * (one being parsed); commitUpdate publishes them
+     */
+    HypercatState.Editor beginUpdate() {
+        return state.edit();
+    }
+
+    void commitUpdate(HypercatState.Editor tx) {
+        synchronized (writeLock) {
+            state = tx.commit();
+        }
+    }
+
+    /**
+     * starts a run of changes to the catalogue, recording them for its log
+     * if it has one. Callers must hold the write lock
+     */
+    private HypercatState.Editor edit() {
+        HypercatState.Editor tx = state.edit();
+        if (changeLog != null) {
+            tx.journal(changeLog.batch());
+        }
+        return tx;
+    }
+
+    /**
+     * publishes the changes made by an editor from edit, having first
+     * appended them to the catalogue's log if it has one. Returns the
+     * sequence number to pass to durable once the write lock is released,
+     * or 0. Callers must hold the write lock
+     */
+    private long commit(HypercatState.Editor tx) {
+        HypercatState next = tx.commit();
+        long sequence = 0;
+        if (next != state && changeLog != null) {
+            sequence = changeLog.append(tx.journal());
+        }
+        state = next;
+        return sequence;
+    }
+
+    /**
+     * waits, as the log's sync policy requires, for a logged change to reach
+     * the disk
+     */
+    private void durable(long sequence) {
+        HypercatLog current = changeLog;
+        if (sequence != 0 && current != null) {
+            current.await(sequence);
+        }
+    }
+
+    /**
+     * attaches the log changes are appended to, or detaches it if null
+     */
+    void attachLog(HypercatLog changeLog) {
+        synchronized (writeLock) {
+            this.changeLog = changeLog;
+        }
+    }
+
+    /**
+     * returns the write-ahead log the catalogue's changes are appended to,
+     * or null if it has none (see HypercatLog)
+     */
+    @JsonIgnore
+    public HypercatLog getLog() {
+        return changeLog;
+    }
+
+    Object writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * adds a relation to the item-metadata being built by an Editor
+     */
+    static void appendMetadata(HypercatState.Editor tx, Relation rel) {
+        ArrayList<Relation> metadata = tx.getItemMetadata();
+        ArrayList<Relation> grown = new ArrayList<Relation>(metadata == null ? 1 : metadata.size() + 1);
+        if (metadata != null) {
+            grown.addAll(metadata);
+        }
+        grown.add(rel);
+        tx.setItemMetadata(grown);
+    }
+
     // hypercat functions
 
     /**
@@ -220,7 +542,14 @@ public class Hypercat {
      *            org.openIOT.Relation)
      */
     public void addRelation(Relation rel) {
-        itemMetadata.add(rel);
+        checkWritable();
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState.Editor tx = edit();
+            appendMetadata(tx, rel);
+            sequence = commit(tx);
+        }
+        durable(sequence);
     }
 
     /**
@@ -232,7 +561,16 @@ public class Hypercat {
      *            org.openIOT.Relation)
      */
     public void removeRelation(Relation rel) {
-        itemMetadata.remove(rel);
+        checkWritable();
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState.Editor tx = edit();
+            ArrayList<Relation> shrunk = new ArrayList<Relation>(tx.getItemMetadata());
+            shrunk.remove(rel);
+            tx.setItemMetadata(shrunk);
+            sequence = commit(tx);
+        }
+        durable(sequence);
     }
 
     /**
@@ -246,10 +584,10 @@ public class Hypercat {
      */
     public Relation findFirstRelation(String relLabel) {
         Relation rel = new Relation();
-        Iterator it = this.itemMetadata.iterator();
+        Iterator it = state.itemMetadata.iterator();
         while (it.hasNext()) {
             rel = (Relation) it.next();
-            if (rel.rel.equals(relLabel))
+            if (relLabel.equals(rel.getRel()))
                 return rel;
         }
         return null;
@@ -268,7 +606,7 @@ public class Hypercat {
     public ArrayList<Relation> findAllRelations(String relLabel) {
         ArrayList<Relation> relations = new ArrayList<Relation>();
         Relation rel = new Relation();
-        Iterator it = this.itemMetadata.iterator();
+        Iterator it = state.itemMetadata.iterator();
         while (it.hasNext()) {
             rel = (Relation) it.next();
             if (rel.getRel().equals(relLabel))
@@ -295,7 +633,7 @@ public class Hypercat {
         //flatten Hypercat into Item object for addition
         ArrayList rels = hc.getItemMetadata();
         Relation rel2 = (Relation) hc.findFirstRelation("urn:X-tsbiot:rels:hasDescription:en");  
-        Item item = new Item("href",rel2.getVal(),"application/vnd.tsbiot.catalogue+json");
+        Item item = new Item(href,rel2.getVal(),"application/vnd.tsbiot.catalogue+json");
         item.setIObjectMetadata(rels);       
         return addItem(item, href);
     }
@@ -313,29 +651,161 @@ public class Hypercat {
      */
     public String addItem(Item item, String href) {
 
-        if (!items.containsKey(href) && href != null && !"".equals(href)) {
-            items.put(href, item);
-            return href;
-        }
-        else {
+        checkWritable();
+        if (href == null || "".equals(href)) {
             return "itemExists";
         }
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState.Editor tx = edit();
+            if (tx.get(href) != null) {
+                return "itemExists";
+            }
+            putItem(tx, href, item);
+            sequence = commit(tx);
+        }
+        durable(sequence);
+        return href;
+    }
+
+    /**
+     * adds a batch of Item objects to the items collection as a single
+     * change: other threads, and snapshots, see either none of the batch or
+     * all of it. As with addItem, an item whose href is empty or already in
+     * use is not added. Returns the number of items added.
+     * 
+     * @param batch
+     *            - the items to add, keyed by the hrefs that identify them
+     */
+    public int addItems(Map<String, Item> batch) {
+        checkWritable();
+        int added = 0;
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState.Editor tx = edit();
+            for (Map.Entry<String, Item> entry : batch.entrySet()) {
+                String href = entry.getKey();
+                if (href == null || "".equals(href) || tx.get(href) != null) {
+                    continue;
+                }
+                putItem(tx, href, entry.getValue());
+                added++;
+            }
+            sequence = commit(tx);
+        }
+        durable(sequence);
+        return added;
     }
 
     /**
      * removes an item from the items collection
      * 
      * @param o
-     *            - item to remove
+     *            - the href of the item to remove
      */
     public void removeItem(Object o) {
-        // if (items.containsKey(getKey(o))){
-        items.remove(o);
+        checkWritable();
+        if (!(o instanceof String)) {
+            return;
+        }
+        String href = (String) o;
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState.Editor tx = edit();
+            removeItem(tx, href);
+            sequence = commit(tx);
+        }
+        durable(sequence);
+    }
+
+    /**
+     * removes a batch of items from the items collection as a single change,
+     * as addItems does for additions. Hrefs not in the collection are
+     * ignored.
+     * 
+     * @param hrefs
+     *            - the hrefs of the items to remove
+     */
+    public void removeItems(Collection<String> hrefs) {
+        checkWritable();
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState.Editor tx = edit();
+            for (String href : hrefs) {
+                removeItem(tx, href);
+            }
+            sequence = commit(tx);
+        }
+        durable(sequence);
+    }
+
+    private void removeItem(HypercatState.Editor tx, String href) {
+        HypercatState.Entry removed = tx.remove(href);
+        if (removed != null) {
+            removed.item.releaseCatalogue(this, href);
+        }
+    }
+
+    /**
+     * places an item in the items collection under the given href, replacing
+     * (and un-indexing) any item already held there, and indexes its
+     * relations. The item records that this catalogue holds it, so that
+     * later changes made through Item.addRelation, setHref and
+     * setIObjectMetadata are reflected in this catalogue, as in any other
+     * holding the same item. Callers must hold the write lock, unless the catalogue is
+     * not yet visible to other threads.
+     */
+    void putItem(HypercatState.Editor tx, String href, Item item) {
+        HypercatState.Entry previous = tx.put(href, item.claimCatalogue(this, href));
+        if (previous != null && previous.item != item) {
+            previous.item.releaseCatalogue(this, href);
+        }
+    }
+
+    /**
+     * called by a held Item when its href or metadata collection has
+     * changed. Items tell the catalogue after releasing their own lock, so by
+     * now the item may have been removed, or changed again; the item's
+     * current href and metadata are recorded only if it is still held
+     */
+    void itemChanged(Item item, String href) {
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState current = state;
+            HypercatState.Entry held = current.items != null ? current.items.get(href) : null;
+            if (held == null || held.item != item) {
+                return;
+            }
+            HypercatState.Entry changed = item.currentEntry();
+            if (changed.href == held.href && changed.metadata == held.metadata) {
+                return;
+            }
+            HypercatState.Editor tx = edit();
+            tx.put(href, changed);
+            sequence = commit(tx);
+        }
+        durable(sequence);
+    }
+
+    /**
+     * returns the entry held under the given href, or null if there is none.
+     * Hypercats parsed with the JSON-string constructor hold their items
+     * under the quoted form of the href, so that form is tried as well.
+     */
+    private static HypercatState.Entry findEntry(HypercatState s, String href) {
+        HypercatState.Entry entry = s.items.get(href);
+        if (entry == null) {
+            entry = s.items.get("\"" + href + "\"");
+        }
+        return entry;
     }
 
     /**
      * convenience method returning a HashMap <string,string> of the parameter
-     * contained in the query-string
+     * contained in the query-string. Names and values are URL-decoded; a
+     * value runs from the first '=' to the end of the parameter, so may
+     * itself contain '=', and a parameter with no '=' or nothing after it has
+     * the empty string as its value
      * 
      * @param query
      *            - the querystring
@@ -346,12 +816,30 @@ public class Hypercat {
         HashMap<String, String> map = new HashMap<String, String>();
         for (String param : params)
         {
-            String name = param.split("=")[0];
-            String value = param.split("=")[1];
-            map.put(name, value);
+            if (param.isEmpty()) {
+                continue;
+            }
+            int equals = param.indexOf('=');
+            String name = equals < 0 ? param : param.substring(0, equals);
+            String value = equals < 0 ? "" : param.substring(equals + 1);
+            map.put(urlDecode(name), urlDecode(value));
         }
         return map;
     }
+
+    /**
+     * decodes a query-string component. Text that is not validly encoded (a
+     * stray '%', say) is taken as it stands
+     */
+    private static String urlDecode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (IllegalArgumentException e) {
+            return s;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
     
     /**
      * Convenience method to ensure hypercat meets the minimum 1.1 specification.  
@@ -374,82 +862,744 @@ public class Hypercat {
 
     /**
      * simple-search method. in response to an input query-string, ths method
-     * returns an Hypercat containing those items that match the search-string
+     * returns an Hypercat containing those items that match the search-string.
+     * The href, rel and val parameters are ANDed as the spec describes; a
+     * "q" parameter instead holds a boolean query expression, as parsed by
+     * HypercatQuery (eg q=rel%3Durn%3AX-tsbiot%3Arels%3AhasUnit+OR+val%3D3)
      * 
      * @param querystring
      *            - the query string
      */
     public Hypercat searchCat(String querystring) {
-        Hypercat hc = new Hypercat("Search results for querystring: " + querystring);
-        log.info("QS="+querystring);
+        // the whole search is answered from one state, so a change made
+        // while it runs is either entirely in the results or not at all
+        HypercatState current = state;
+        String description = "Search results for querystring: " + querystring;
+        log.info("QS={}", querystring);
         HashMap qmap = getQueryMap(querystring);
+
+        // a "q" parameter holds a boolean query expression (see HypercatQuery)
+        String expression = (String) qmap.get("q");
+        if (expression != null) {
+            return results(description, current, HypercatQuery.parse(expression).evaluate(current));
+        }
+
         String hrefQuery = (String) qmap.get("href");
         String relQuery = (String) qmap.get("rel");
         String valQuery = (String) qmap.get("val");
-        HashMap<String, Item> relResults = new HashMap<String, Item>();
-        HashMap<String, Item> valResults = new HashMap<String, Item>();
         boolean relQueryPresent = (!"".equals(relQuery) && relQuery != null);
         boolean valQueryPresent = (!"".equals(valQuery) && valQuery != null);
- 
-        Iterator it = this.getItems().keySet().iterator();
-        while (it.hasNext()) {
-            String key = (String) it.next();
-            Item res = (Item) this.getItems().get(key);
-            String hrefstr = res.getHref().replace("\"", "");
-
-            // if the hypercat is a valid hypercat, this should only ever find
-            // zero or one items. So if we find an item, immediately quit and
-            // return
-            if (!"".equals(hrefQuery) && hrefQuery != null) {
-                if (hrefQuery.equals(hrefstr)) {
-                    hc.addItem(res,res.getHref());
-                    return (hc);
-                }
+
+        // if the hypercat is a valid hypercat, an href query should only ever
+        // find zero or one items, which the items collection answers directly
+        if (!"".equals(hrefQuery) && hrefQuery != null && current.items != null) {
+            HypercatState.Entry res = findEntry(current, hrefQuery);
+            if (res != null) {
+                return results(description, PersistentHashTrie.<String, HypercatState.Entry> empty().plus(res.href, res));
             }
+        }
 
-            /*
-             * rel and val are a bit more complex, since the two queries may be
-             * additive. However, there is no full logical search (no OR can be
-             * specified) The most straightforward method is to construct a
-             * HashMap of results for each, returning one or the other for
-             * single parameters, and in the case of two parameters, returning
-             * the intersection-set. If an OR parameter is added to the spec in
-             * future, the union of the two HashMaps could be returned instead
-             */
+        /*
+         * rel and val queries are answered from the inverted indexes. When
+         * both are given, the (rel,val) index returns those items carrying a
+         * relation with exactly that rel and val. Queries combining terms
+         * with AND, OR and NOT are given as a "q" expression, handled above
+         */
+        Set<String> hrefs = Collections.emptySet();
+        if (relQueryPresent && valQueryPresent) {
+            hrefs = current.index().hrefsForRelVal(relQuery, valQuery);
+        } else if (relQueryPresent) {
+            hrefs = current.index().hrefsForRel(relQuery);
+        } else if (valQueryPresent) {
+            hrefs = current.index().hrefsForVal(valQuery);
+        }
 
-            Iterator relIt = res.getIObjectMetadata().iterator();
+        return results(description, current, hrefs);
 
-            while (relIt.hasNext()) {
+    }
 
-                Relation rel = (Relation) relIt.next();
+    /**
+     * boolean search. Returns an Hypercat containing those items that match
+     * the query, which is planned against the catalogue's current indexes
+     * (see HypercatQuery)
+     * 
+     * @param query
+     *            - the compiled query
+     */
+    public Hypercat search(HypercatQuery query) {
+        HypercatState current = state;
+        return results("Search results for query: " + query, current, query.evaluate(current));
+    }
 
-                if (relQueryPresent && relQuery.equals(rel.getRel())) {
-                    if (!relResults.containsKey(res.getHref())) {
-                        relResults.put(res.getHref(), res);
-                    }
-                }
+    /**
+     * returns a catalogue holding the entries held in the searched state
+     * under the given hrefs
+     */
+    private Hypercat results(String description, HypercatState current, Collection<String> hrefs) {
+        Object edit = new Object();
+        PersistentHashTrie<String, HypercatState.Entry> items = PersistentHashTrie.empty();
+        for (String href : hrefs) {
+            items = items.plus(edit, href, current.items.get(href));
+        }
+        return results(description, items);
+    }
 
-                if (valQueryPresent && valQuery.equals(rel.getVal())) {
-                    if (!valResults.containsKey(res.getHref())) {
-                        valResults.put(res.getHref(), res);
-                    }
+    /**
+     * returns the catalogue a search hands back, holding the given entries
+     * of the searched catalogue. The results are not built through the
+     * write path, as a new Hypercat's contents would be: their item-metadata
+     * is just the description, and their indexes are made only if they are
+     * searched in turn (see HypercatState.results). They do not record
+     * themselves as holders of their items, so they stay as the catalogue
+     * stood when it was searched. The results of searching a snapshot are
+     * themselves a snapshot, so that their items are those the searched
+     * snapshot recorded, not the live items as they have since been changed
+     */
+    private Hypercat results(String description, PersistentHashTrie<String, HypercatState.Entry> items) {
+        ArrayList<Relation> metadata = new ArrayList<Relation>(1);
+        metadata.add(new Relation("urn:X-tsbiot:rels:hasDescription:en", description));
+        Hypercat hc = new Hypercat();
+        hc.state = HypercatState.results(metadata, items);
+        return readOnly ? hc.snapshot() : hc;
+    }
+
+    /**
+     * returns a description of the plan search would follow for the query
+     * against the catalogue as it is now: which term drives each AND, the
+     * order in which the other terms filter its items, and the estimated
+     * number of items at each step
+     * 
+     * @param query
+     *            - the compiled query
+     */
+    public String explain(HypercatQuery query) {
+        return query.explain(state);
+    }
+
+    /**
+     * prefix search on hrefs. Returns the items whose hrefs start with the
+     * given prefix, in lexicographic order of href. The items are found from
+     * the sorted href index, without scanning the catalogue
+     * 
+     * @param prefix
+     *            - the start of the hrefs to find; "" finds every item
+     */
+    public List<Item> searchHrefPrefix(String prefix) {
+        return searchHrefRange(prefix, PersistentSortedSet.prefixEnd(prefix));
+    }
+
+    /**
+     * range search on hrefs. Returns the items whose hrefs lie between from
+     * (inclusive) and to (exclusive), in lexicographic order of href
+     * 
+     * @param from
+     *            - the lowest href to find, or null for no lower bound
+     * @param to
+     *            - the first href above the range, or null for no upper bound
+     */
+    public List<Item> searchHrefRange(String from, String to) {
+        HypercatState current = state;
+        List<Item> results = new ArrayList<Item>();
+        if (current.items == null) {
+            return results;
+        }
+        Iterator<String> hrefs = current.index().hrefsInRange(from, to);
+        while (hrefs.hasNext()) {
+            results.add(itemFor(current.items.get(hrefs.next())));
+        }
+        return results;
+    }
+
+    /**
+     * prefix search on relation vals. Returns the items having a relation
+     * whose val starts with the given prefix, ordered by that val; see
+     * searchValRange
+     * 
+     * @param prefix
+     *            - the start of the vals to find
+     */
+    public List<Item> searchValPrefix(String prefix) {
+        return searchValRange(prefix, PersistentSortedSet.prefixEnd(prefix));
+    }
+
+    /**
+     * range search on relation vals. Returns the items having a relation
+     * whose val lies between from (inclusive) and to (exclusive), in
+     * lexicographic order of val, and in order of href among the items
+     * sharing a val. An item with several vals in the range is listed once,
+     * under the lowest of them
+     * 
+     * @param from
+     *            - the lowest val to find, or null for no lower bound
+     * @param to
+     *            - the first val above the range, or null for no upper bound
+     */
+    public List<Item> searchValRange(String from, String to) {
+        HypercatState current = state;
+        List<Item> results = new ArrayList<Item>();
+        if (current.items == null) {
+            return results;
+        }
+        Set<String> listed = new HashSet<String>();
+        Iterator<String> vals = current.index().valsInRange(from, to);
+        while (vals.hasNext()) {
+            Set<String> hrefs = current.index().hrefsForVal(vals.next());
+            String[] sorted = hrefs.toArray(new String[hrefs.size()]);
+            Arrays.sort(sorted);
+            for (String href : sorted) {
+                if (listed.add(href)) {
+                    results.add(itemFor(current.items.get(href)));
                 }
             }
         }
+        return results;
+    }
+
+    /**
+     * bounding-box search. Returns an Hypercat containing those items whose
+     * wgs84_pos#lat and wgs84_pos#long relations place them within the box,
+     * edges included. The items are found from the catalogue's spatial
+     * index, which visits only the part of the globe the box covers (see
+     * GeoIndex). A box whose minimum longitude is greater than its maximum
+     * is taken to cross the 180th meridian
+     * 
+     * @param minLat
+     *            - the southern edge, in degrees
+     * @param minLong
+     *            - the western edge, in degrees
+     * @param maxLat
+     *            - the northern edge, in degrees
+     * @param maxLong
+     *            - the eastern edge, in degrees
+     */
+    public Hypercat searchBoundingBox(double minLat, double minLong, double maxLat, double maxLong) {
+        HypercatState current = state;
+        return results("Search results for bounding box: " + minLat + "," + minLong + " to " + maxLat + "," + maxLong, current,
+                current.index().geo().hrefsInBox(minLat, minLong, maxLat, maxLong));
+    }
+
+    /**
+     * radius search. Returns an Hypercat containing those items whose
+     * wgs84_pos#lat and wgs84_pos#long relations place them within the given
+     * great-circle distance of a point, answered from the spatial index
+     * 
+     * @param lat
+     *            - the latitude of the centre, in degrees
+     * @param lng
+     *            - the longitude of the centre, in degrees
+     * @param metres
+     *            - the radius
+     */
+    public Hypercat searchRadius(double lat, double lng, double metres) {
+        HypercatState current = state;
+        return results("Search results for " + metres + "m around " + lat + "," + lng, current, current.index().geo().hrefsWithin(lat, lng, metres));
+    }
+
+    /**
+     * declares that the vals of the given rel are numbers or times of the
+     * given type, and builds a range index over them for searchRange and
+     * searchTimeRange. The index is kept up to date as items are added,
+     * changed and removed; vals that are not valid for the type are not
+     * indexed. Declaring a rel again with another type rebuilds its index
+     * 
+     * @param rel
+     *            - the rel whose vals are indexed, eg urn:X-hypercat:rels:lastUpdated
+     * @param type
+     *            - how the vals are read
+     */
+    public void declareRangeIndex(String rel, RangeIndexType type) {
+        checkWritable();
+        if (rel == null || type == null) {
+            throw new IllegalArgumentException("a range index needs a rel and a type");
+        }
+        long sequence;
+        synchronized (writeLock) {
+            RangeIndex existing = state.index().rangeIndex(rel);
+            if (existing != null && existing.type == type) {
+                return;
+            }
+            HypercatState.Editor tx = edit();
+            tx.declareRangeIndex(rel, type);
+            sequence = commit(tx);
+        }
+        durable(sequence);
+    }
 
-        if (relQueryPresent && !valQueryPresent) {
-            hc.getItems().putAll(relResults);
+    /**
+     * numeric range search. Returns an Hypercat containing those items having
+     * a relation with the given rel whose val lies between min and max
+     * inclusive. The rel must have been declared with declareRangeIndex as
+     * LONG or DOUBLE; the items are found from its range index, without
+     * reading any vals. Use Double.NEGATIVE_INFINITY or
+     * Double.POSITIVE_INFINITY for an open-ended range, and Math.nextDown or
+     * Math.nextUp for a strict bound (eg battery &lt; 20)
+     * 
+     * @param rel
+     *            - the declared rel
+     * @param min
+     *            - the lowest val to find
+     * @param max
+     *            - the highest val to find
+     * @throws IllegalStateException
+     *             - if the rel has no LONG or DOUBLE range index
+     */
+    public Hypercat searchRange(String rel, double min, double max) {
+        HypercatState current = state;
+        RangeIndex index = rangeIndex(current, rel);
+        String description = "Search results for " + rel + " from " + min + " to " + max;
+        if (Double.isNaN(min) || Double.isNaN(max)) {
+            return results(description, current, Collections.<String> emptyList());
         }
-        if (valQueryPresent && !relQueryPresent) {
-            hc.getItems().putAll(valResults);
+        long from;
+        long to;
+        switch (index.type) {
+        case LONG:
+            // Math.ceil and Math.floor of an out-of-range double saturate
+            // to Long.MIN_VALUE and Long.MAX_VALUE
+            from = (long) Math.ceil(min);
+            to = (long) Math.floor(max);
+            break;
+        case DOUBLE:
+            from = RangeIndexType.doubleKey(min);
+            to = RangeIndexType.doubleKey(max);
+            break;
+        default:
+            throw new IllegalStateException("range index for " + rel + " holds times; use searchTimeRange");
         }
-        if (valQueryPresent && relQueryPresent) {
-            hc.getItems().putAll(valResults);
-            hc.getItems().keySet().retainAll(relResults.keySet());
+        return results(description, current, index.hrefsInRange(from, to));
+    }
+
+    /**
+     * time range search. Returns an Hypercat containing those items having a
+     * relation with the given rel whose val is a time between from and to
+     * inclusive. The rel must have been declared with declareRangeIndex as
+     * TIME (eg "items updated in the last hour" is
+     * searchTimeRange(rel, Instant.now().minus(1, ChronoUnit.HOURS),
+     * Instant.now()))
+     * 
+     * @param rel
+     *            - the declared rel
+     * @param from
+     *            - the earliest time to find, or null for no lower bound
+     * @param to
+     *            - the latest time to find, or null for no upper bound
+     * @throws IllegalStateException
+     *             - if the rel has no TIME range index
+     */
+    public Hypercat searchTimeRange(String rel, Instant from, Instant to) {
+        HypercatState current = state;
+        RangeIndex index = rangeIndex(current, rel);
+        if (index.type != RangeIndexType.TIME) {
+            throw new IllegalStateException("range index for " + rel + " holds numbers; use searchRange");
         }
+        long min = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+        long max = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+        return results("Search results for " + rel + " from " + from + " to " + to, current, index.hrefsInRange(min, max));
+    }
 
-        return hc;
+    private static RangeIndex rangeIndex(HypercatState current, String rel) {
+        RangeIndex index = current.index().rangeIndex(rel);
+        if (index == null) {
+            throw new IllegalStateException("no range index has been declared for " + rel);
+        }
+        return index;
+    }
+
+    /**
+     * adds a rel to those whose vals are searched by searchText, alongside
+     * urn:X-tsbiot:rels:hasDescription:en, and indexes the words of the
+     * existing items' vals for it. The index is kept up to date as items are
+     * added, changed and removed
+     * 
+     * @param rel
+     *            - the rel whose vals are indexed, eg urn:X-hypercat:rels:hasLocation
+     */
+    public void declareTextIndex(String rel) {
+        checkWritable();
+        if (rel == null) {
+            throw new IllegalArgumentException("a text index needs a rel");
+        }
+        long sequence;
+        synchronized (writeLock) {
+            if (state.index().text().indexes(rel)) {
+                return;
+            }
+            HypercatState.Editor tx = edit();
+            tx.declareTextIndex(rel);
+            sequence = commit(tx);
+        }
+        durable(sequence);
+    }
+
+    /**
+     * keyword search. Returns, most relevant first, up to limit items whose
+     * descriptions (and the vals of any rels declared with declareTextIndex)
+     * contain any of the words of the text, eg "boiler temperature floor 3".
+     * Words are matched whole and without regard to case; an item ranks
+     * higher for containing more of the words, rarer words, and fewer other
+     * words (see TextIndex)
+     * 
+     * @param text
+     *            - the words to search for
+     * @param limit
+     *            - the most items to return
+     */
+    public List<Item> searchText(String text, int limit) {
+        HypercatState current = state;
+        List<String> hrefs = current.index().text().search(text, limit);
+        List<Item> results = new ArrayList<Item>(hrefs.size());
+        for (int i = 0; i < hrefs.size(); i++) {
+            results.add(itemFor(current.items.get(hrefs.get(i))));
+        }
+        return results;
+    }
+
+    /**
+     * facet counts by rel. Returns, for each rel, the number of items
+     * carrying it among those matching the query, or among all the items if
+     * the query is null. The map is ordered by count, greatest first, and
+     * then by rel, and holds no zero counts. The counts are taken from the
+     * search indexes rather than by reading the items (see Facets)
+     * 
+     * @param query
+     *            - the items to count, or null for every item
+     */
+    public Map<String, Integer> facetRels(HypercatQuery query) {
+        return Facets.rels(state, query);
+    }
+
+    /**
+     * facet counts by val. Returns, for each val of the given rel, the
+     * number of items carrying a relation with that rel and val among those
+     * matching the query, or among all the items if the query is null: eg
+     * the number of items of each content type. The map is ordered by count,
+     * greatest first, and then by val, and holds the limit greatest counts
+     * 
+     * @param query
+     *            - the items to count, or null for every item
+     * @param rel
+     *            - the rel whose vals are counted
+     * @param limit
+     *            - the most vals to return
+     */
+    public Map<String, Integer> facetVals(HypercatQuery query, String rel, int limit) {
+        if (rel == null) {
+            throw new IllegalArgumentException("facet counts by val need a rel");
+        }
+        return Facets.vals(state, query, rel, limit);
+    }
+
+    /**
+     * reverse link lookup. Returns, for each item having a relation whose val
+     * is the given href, the rels of those relations: eg the items located
+     * in a site item, each with [isLocatedIn]. The map is in order of the
+     * linking items' hrefs. The links are found from the val index, without
+     * reading the rest of the catalogue (see Links)
+     * 
+     * @param href
+     *            - the href the links point at
+     */
+    public Map<String, List<String>> referencesTo(String href) {
+        return Links.referencesTo(state, href);
+    }
+
+    /**
+     * backward link traversal. Returns an Hypercat containing those items
+     * that link to the given href directly, or through a chain of at most
+     * maxHops links: eg with isLocatedIn and 2 hops, the items in a site and
+     * the items in those. Only links by the rel are followed, or links by
+     * any rel if it is null
+     * 
+     * @param href
+     *            - the href the links point at
+     * @param rel
+     *            - the rel of the links to follow, or null for any
+     * @param maxHops
+     *            - the most links to follow from any item found
+     */
+    public Hypercat searchLinksTo(String href, String rel, int maxHops) {
+        HypercatState current = state;
+        return results("Search results for items linking to " + href, current, Links.linkedTo(current, href, rel, maxHops).keySet());
+    }
+
+    /**
+     * forward link traversal. Returns an Hypercat containing those items the
+     * given href's item links to directly, or through a chain of at most
+     * maxHops links: eg with isLocatedIn, the site an item is in and the
+     * site that one is in. Only links by the rel are followed, or links by
+     * any rel if it is null
+     * 
+     * @param href
+     *            - the href of the item the links start from
+     * @param rel
+     *            - the rel of the links to follow, or null for any
+     * @param maxHops
+     *            - the most links to follow
+     */
+    public Hypercat searchLinksFrom(String href, String rel, int maxHops) {
+        HypercatState current = state;
+        return results("Search results for items linked from " + href, current, Links.linkedFrom(current, href, rel, maxHops).keySet());
+    }
+
+    /**
+     * lazy boolean search. Returns the items matching the query as a
+     * sequential Stream, finding each match only as the stream reaches it:
+     * no results catalogue or collection of matches is built, and nothing is
+     * allocated per item visited. The stream reads the catalogue's state as
+     * it was when this method was called
+     * 
+     * @param query
+     *            - the compiled query
+     */
+    public Stream<Item> searchStream(HypercatQuery query) {
+        final HypercatState current = state;
+        final Iterator<String> hrefs = query.iterate(current);
+        Iterator<Item> items = new Iterator<Item>() {
+            public boolean hasNext() {
+                return hrefs.hasNext();
+            }
+
+            public Item next() {
+                return itemFor(current.items.get(hrefs.next()));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(items, Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * returns every item in the catalogue as a sequential Stream, read
+     * lazily from the catalogue's current state, for filtering with an
+     * ItemFilters predicate or any other
+     */
+    public Stream<Item> streamItems() {
+        final HypercatState current = state;
+        if (current.items == null) {
+            return Stream.empty();
+        }
+        return StreamSupport.stream(current.items.values().spliterator(), false).map(entry -> itemFor(entry));
+    }
+
+    /**
+     * returns the number of items matching the query, without building any
+     * collection of them. A query of a single rel, val, rel&amp;val or href
+     * term is counted from the size of its index entry
+     * 
+     * @param query
+     *            - the compiled query
+     */
+    public long count(HypercatQuery query) {
+        return query.count(state);
+    }
+
+    /**
+     * returns whether any item matches the query, stopping at the first
+     * match
+     * 
+     * @param query
+     *            - the compiled query
+     */
+    public boolean exists(HypercatQuery query) {
+        return query.iterate(state).hasNext();
+    }
+
+    /**
+     * sorted search with a limit. Returns, in the given order, the first
+     * items matching the query: eg the 50 most recently updated items with
+     * rel X are
+     * <p>
+     * searchSorted(HypercatQuery.rel(X),
+     * ItemOrder.byVal("urn:X-hypercat:rels:lastUpdated").descending(), 50)
+     * <p>
+     * The time and memory taken grow with the limit rather than with the
+     * number of matches (see ItemOrder)
+     * 
+     * @param query
+     *            - the items to search for, or null for every item
+     * @param order
+     *            - the order of the results
+     * @param limit
+     *            - the most items to return
+     */
+    public List<Item> searchSorted(HypercatQuery query, ItemOrder order, int limit) {
+        HypercatState current = state;
+        List<String> hrefs = order.top(current, query, limit);
+        List<Item> results = new ArrayList<Item>(hrefs.size());
+        for (int i = 0; i < hrefs.size(); i++) {
+            results.add(itemFor(current.items.get(hrefs.get(i))));
+        }
+        return results;
+    }
+
+    /**
+     * lists the catalogue's items a page at a time, in order of href. Pass
+     * a null cursor for the first page, and then each page's next cursor
+     * for the page after it, until a page has no next cursor (see Page)
+     * 
+     * @param cursor
+     *            - the cursor from the previous page, or null
+     * @param pageSize
+     *            - the most items on the page
+     * @throws IllegalArgumentException
+     *             - if the cursor is not one returned by a Page
+     */
+    public Page listItems(String cursor, int pageSize) {
+        return page(null, cursor, pageSize);
+    }
+
+    /**
+     * pages through the items matching a query, in order of href, as
+     * listItems does for every item
+     * 
+     * @param query
+     *            - the compiled query
+     * @param cursor
+     *            - the cursor from the previous page, or null
+     * @param pageSize
+     *            - the most items on the page
+     * @throws IllegalArgumentException
+     *             - if the cursor is not one returned by a Page
+     */
+    public Page searchPage(HypercatQuery query, String cursor, int pageSize) {
+        if (query == null) {
+            throw new IllegalArgumentException("query is null");
+        }
+        return page(query, cursor, pageSize);
+    }
 
+    private Page page(HypercatQuery query, String cursor, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be at least 1: " + pageSize);
+        }
+        HypercatState current = state;
+        // one href more than the page holds tells whether there is a next
+        // page
+        List<String> hrefs = Page.hrefs(current, query, Page.hrefAfter(cursor), pageSize + 1);
+        String next = null;
+        if (hrefs.size() > pageSize) {
+            hrefs = hrefs.subList(0, pageSize);
+            next = Page.cursorAfter(hrefs.get(pageSize - 1));
+        }
+        List<Item> items = new ArrayList<Item>(hrefs.size());
+        for (int i = 0; i < hrefs.size(); i++) {
+            items.add(itemFor(current.items.get(hrefs.get(i))));
+        }
+        return new Page(current.itemMetadata, items, next);
+    }
+
+    /**
+     * scanning search. Returns an Hypercat containing those items for which
+     * the predicate is true, testing every item in the catalogue (see
+     * ItemFilters for predicates matching part of an href or val). The scan
+     * works from the catalogue's current state, and tests each item as it
+     * stood in that state.
+     * <p>
+     * Catalogues of at least the parallel search threshold are split into
+     * parts along the items trie, and the parts scanned as tasks of a
+     * fork-join pool; each task collects its own matches, and the lists are
+     * joined as the tasks complete, so the threads share nothing while
+     * scanning. The predicate must therefore be safe to call from several
+     * threads at once. Smaller catalogues are scanned on the calling thread.
+     * 
+     * @param predicate
+     *            - the test each item in the results must pass
+     */
+    public Hypercat searchItems(Predicate<Item> predicate) {
+        HypercatState current = state;
+        Object edit = new Object();
+        PersistentHashTrie<String, HypercatState.Entry> items = PersistentHashTrie.empty();
+        if (current.items != null) {
+            Spliterator<Map.Entry<String, HypercatState.Entry>> all = current.items.entrySet().spliterator();
+            List<Map.Entry<String, HypercatState.Entry>> matches;
+            if (current.items.size() < parallelThreshold) {
+                matches = ScanTask.scan(all, predicate);
+            } else {
+                ForkJoinPool pool = searchPool != null ? searchPool : ForkJoinPool.commonPool();
+                matches = pool.invoke(new ScanTask(all, predicate));
+            }
+            for (int i = 0; i < matches.size(); i++) {
+                items = items.plus(edit, matches.get(i).getKey(), matches.get(i).getValue());
+            }
+        }
+        return results("Search results for item scan", items);
+    }
+
+    /**
+     * sets the number of items from which searchItems scans in parallel.
+     * Below it, splitting the work costs more than it saves
+     * 
+     * @param items
+     *            - the smallest catalogue to scan in parallel
+     */
+    public void setParallelSearchThreshold(int items) {
+        this.parallelThreshold = items;
+    }
+
+    @JsonIgnore
+    public int getParallelSearchThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * sets the fork-join pool for parallel scans, or null to use the common
+     * pool (the default)
+     */
+    public void setSearchPool(ForkJoinPool pool) {
+        this.searchPool = pool;
+    }
+
+    /**
+     * one part of a parallel scan. A part larger than LEAF_SIZE splits
+     * itself, scans one half and forks a task for the other
+     */
+    private static final class ScanTask extends RecursiveTask<List<Map.Entry<String, HypercatState.Entry>>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final long LEAF_SIZE = 2048;
+
+        private final Spliterator<Map.Entry<String, HypercatState.Entry>> part;
+        private final Predicate<Item> predicate;
+
+        ScanTask(Spliterator<Map.Entry<String, HypercatState.Entry>> part, Predicate<Item> predicate) {
+            this.part = part;
+            this.predicate = predicate;
+        }
+
+        @Override
+        protected List<Map.Entry<String, HypercatState.Entry>> compute() {
+            if (part.estimateSize() > LEAF_SIZE) {
+                Spliterator<Map.Entry<String, HypercatState.Entry>> prefix = part.trySplit();
+                if (prefix != null) {
+                    ScanTask forked = new ScanTask(prefix, predicate);
+                    forked.fork();
+                    List<Map.Entry<String, HypercatState.Entry>> mine = new ScanTask(part, predicate).compute();
+                    List<Map.Entry<String, HypercatState.Entry>> theirs = forked.join();
+                    // the shorter list is copied onto the longer
+                    if (mine.size() < theirs.size()) {
+                        theirs.addAll(mine);
+                        return theirs;
+                    }
+                    mine.addAll(theirs);
+                    return mine;
+                }
+            }
+            return scan(part, predicate);
+        }
+
+        static List<Map.Entry<String, HypercatState.Entry>> scan(Spliterator<Map.Entry<String, HypercatState.Entry>> part,
+                final Predicate<Item> predicate) {
+            final ArrayList<Map.Entry<String, HypercatState.Entry>> matches = new ArrayList<Map.Entry<String, HypercatState.Entry>>();
+            part.forEachRemaining(entry -> {
+                if (predicate.test(entry.getValue().itemAsRecorded())) {
+                    matches.add(entry);
+                }
+            });
+            return matches;
+        }
     }
 
     /**
@@ -460,18 +1610,19 @@ public class Hypercat {
     }
 
     /**
-     * convenience method returning a strng of JSON from a file containing it
+     * convenience method returning a strng of JSON from a file containing it.
+     * Reads in blocks, so runs in time linear in the file's length, and keeps
+     * the file's line breaks
      * 
      */
     static String getJsonStringFromFileReader(FileReader fr) throws IOException {
-        String jsonString = "";
-
-        BufferedReader reader = new BufferedReader(fr);
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            jsonString += line;
+        StringBuilder jsonString = new StringBuilder();
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = fr.read(buffer)) != -1) {
+            jsonString.append(buffer, 0, n);
         }
-        return jsonString;
+        return jsonString.toString();
     }
 
     /**
@@ -479,11 +1630,14 @@ public class Hypercat {
      * 
      */
     public String toJson() throws JsonGenerationException, JsonMappingException, IOException {
-
-        String output = "NO JSON";
-        ObjectMapper mapper = new ObjectMapper();
-        output = mapper.writeValueAsString(this);
-        return output;
+        if (fragmentCaching) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeJson(bytes);
+            return bytes.toString("UTF-8");
+        }
+        StringWriter output = new StringWriter();
+        writeJson(output);
+        return output.toString();
     }
 
     /**
@@ -491,24 +1645,223 @@ public class Hypercat {
      * Hypcercat's definition
      */
     public String toPrettyJson() throws JsonGenerationException, JsonMappingException, IOException {
-        String output = "NO JSON";
-        ObjectMapper mapper = new ObjectMapper();
-        output = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(this);
-        return output;
+        StringWriter output = new StringWriter();
+        JsonGenerator jg = HypercatJson.FACTORY.createJsonGenerator(output);
+        jg.useDefaultPrettyPrinter();
+        writeJson(jg);
+        return output.toString();
+    }
+
+    /**
+     * writes the Hypercat's definition as UTF-8 JSON to an output stream. Items
+     * are written one at a time as the catalogue is walked, so the document is
+     * never held in memory as a whole and the stream may be flushed in chunks
+     * while it is being written. The stream is flushed but not closed.
+     * <p>
+     * If fragment caching is enabled, each item's serialized bytes are kept
+     * and re-used on later calls until the item changes.
+     * 
+     * @param out
+     *            - the stream to write to
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        if (fragmentCaching) {
+            HypercatJson.writeHypercat(out, this, fragmentCacheHits, fragmentCacheMisses);
+            out.flush();
+            return;
+        }
+        writeJson(HypercatJson.FACTORY.createJsonGenerator(out, JsonEncoding.UTF8));
+    }
+
+    /**
+     * writes the Hypercat's definition as JSON to a character stream, as
+     * writeJson(OutputStream) above. The writer is flushed but not closed.
+     * 
+     * @param writer
+     *            - the writer to write to
+     */
+    public void writeJson(Writer writer) throws IOException {
+        writeJson(HypercatJson.FACTORY.createJsonGenerator(writer));
+    }
+
+    private void writeJson(JsonGenerator jg) throws IOException {
+        try {
+            HypercatJson.writeHypercat(jg, this);
+        } finally {
+            jg.close();
+        }
+    }
+
+    /**
+     * turns caching of each item's serialized JSON on or off. When on,
+     * toJson and writeJson(OutputStream) keep the UTF-8 bytes of every item
+     * they write, and re-use them until the item is changed through
+     * addRelation, setHref or setIObjectMetadata, so that repeated output of
+     * a mostly-unchanged catalogue is largely a concatenation of cached
+     * fragments. Relations changed in place (through Relation.setVal, or by
+     * editing the list returned by getIObjectMetadata) are not noticed.
+     * Turning caching off discards the cached fragments.
+     * 
+     * @param enabled
+     *            - true to cache item fragments
+     */
+    public void setFragmentCaching(boolean enabled) {
+        this.fragmentCaching = enabled;
+        PersistentHashTrie<String, HypercatState.Entry> entries = state.items;
+        if (!enabled && entries != null) {
+            for (HypercatState.Entry entry : entries.values()) {
+                entry.jsonFragment = null;
+            }
+        }
+    }
+
+    @JsonIgnore
+    public boolean isFragmentCaching() {
+        return fragmentCaching;
+    }
+
+    /**
+     * returns the number of items written from a cached fragment since the
+     * catalogue was created
+     */
+    @JsonIgnore
+    public long getFragmentCacheHits() {
+        return fragmentCacheHits.get();
+    }
+
+    /**
+     * returns the number of items that had to be serialized (and were then
+     * cached) while fragment caching was enabled
+     */
+    @JsonIgnore
+    public long getFragmentCacheMisses() {
+        return fragmentCacheMisses.get();
     }
 
     // getters and setters
+
+    /**
+     * returns a copy of the catalogue's item-metadata. Changing the copy does
+     * not change the catalogue, whose metadata is changed through addRelation
+     * and removeRelation
+     */
     @JsonGetter("item-metadata")
     public ArrayList<Relation> getItemMetadata() {
-        return this.itemMetadata;
+        return new ArrayList<Relation>(state.itemMetadata);
+    }
+
+    /**
+     * gets the items collection, keyed by href, as a HashMap holding the
+     * catalogue's items as they are now. The map is a copy: changing it does
+     * not change the catalogue, whose items are added and removed through
+     * addItem and removeItem. Copying takes time in proportion to the number
+     * of items; itemsView reads them without copying. The copy iterates in
+     * the order the catalogue is written in
+     */
+    public HashMap<String, Item> getItems() {
+        if (state.items == null) {
+            return null;
+        }
+        return new LinkedHashMap<String, Item>(new ItemsView());
+    }
+
+    /**
+     * returns the items collection, keyed by href, as a read-only view of
+     * the catalogue's current items, safe to read while other threads change
+     * the catalogue. For a snapshot the view is fixed at the snapshot's
+     * state. Returns null for a catalogue without an items collection
+     */
+    public Map<String, Item> itemsView() {
+        if (state.items == null) {
+            return null;
+        }
+        return new ItemsView();
+    }
+
+    /**
+     * replaces the items collection with the items in the given map,
+     * re-building the search indexes over the new collection, as a single
+     * change
+     */
+    public void setItems(Map<String, Item> items) {
+        checkWritable();
+        long sequence;
+        synchronized (writeLock) {
+            HypercatState.Editor tx = edit();
+            if (state.items != null) {
+                for (Map.Entry<String, HypercatState.Entry> old : state.items.entrySet()) {
+                    old.getValue().item.releaseCatalogue(this, old.getKey());
+                }
+            }
+            tx.clear();
+            for (Map.Entry<String, Item> entry : items.entrySet()) {
+                putItem(tx, entry.getKey(), entry.getValue());
+            }
+            sequence = commit(tx);
+        }
+        durable(sequence);
     }
 
-    public HashMap getItems() {
-        return this.items;
+    /**
+     * read-only Map view of the items held in the catalogue's state. Each
+     * call reads the state afresh, so a view of a live catalogue follows its
+     * changes, while one iteration sees a single state throughout
+     */
+    private final class ItemsView extends AbstractMap<String, Item> {
+
+        @Override
+        public Item get(Object href) {
+            HypercatState.Entry entry = state.items.get(href);
+            return entry == null ? null : itemFor(entry);
+        }
+
+        @Override
+        public boolean containsKey(Object href) {
+            return state.items.containsKey(href);
+        }
+
+        @Override
+        public int size() {
+            return state.items.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Item>> entrySet() {
+            final PersistentHashTrie<String, HypercatState.Entry> entries = state.items;
+            return new AbstractSet<Map.Entry<String, Item>>() {
+                @Override
+                public Iterator<Map.Entry<String, Item>> iterator() {
+                    final Iterator<Map.Entry<String, HypercatState.Entry>> it = entries.entrySet().iterator();
+                    return new Iterator<Map.Entry<String, Item>>() {
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        public Map.Entry<String, Item> next() {
+                            Map.Entry<String, HypercatState.Entry> next = it.next();
+                            return new AbstractMap.SimpleImmutableEntry<String, Item>(next.getKey(), itemFor(next.getValue()));
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return entries.size();
+                }
+            };
+        }
     }
 
-    public void setItems(HashMap<String, Item> items) {
-        this.items = items;
+    /**
+     * the item an entry holds, as the caller should see it: a snapshot shows
+     * items as they were when it was taken
+     */
+    private Item itemFor(HypercatState.Entry entry) {
+        return readOnly ? entry.itemAsRecorded() : entry.item;
     }
 
 }
@@ -0,0 +1,459 @@
+package org.openIOT;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatIndex.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Inverted indexes over the items collection of a Hypercat
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Inverted indexes from the metadata Relations of a Hypercat's items back to
+ * the hrefs of the items that carry them. Three indexes are kept:
+ * <p>
+ * rel -&gt; hrefs of items having at least one relation with that rel
+ * <p>
+ * val -&gt; hrefs of items having at least one relation with that val
+ * <p>
+ * (rel, val) -&gt; hrefs of items having a relation with exactly that rel and
+ * val
+ * <p>
+ * The index is maintained by the owning Hypercat as items are added and
+ * removed, and as relations are added to items it holds, so that rel/val
+ * lookups cost time proportional to the size of the result rather than the
+ * size of the catalogue. An item may carry the same relation more than once;
+ * entries are only ever removed when the whole item (or its whole metadata
+ * collection) is removed, so duplicates need no reference counting.
+ * <p>
+ * An index is immutable, and is part of a HypercatState. The maps and href
+ * sets are PersistentHashTries, so an Editor derives the next version of the
+ * index by copying only the paths it changes, and every earlier version stays
+ * valid for the snapshots that hold it.
+ * <p>
+ * Alongside the inverted indexes, the hrefs of all the items and the distinct
+ * vals of all their relations are kept in lexicographic order, in
+ * PersistentSortedSets, for prefix and range searches, and the items'
+ * wgs84 positions are held in a GeoIndex. Rels declared as holding numbers
+ * or times each have a RangeIndex of their vals, and the words of the
+ * items' descriptions are held in a TextIndex.
+ */
+final class HypercatIndex {
+
+    static final HypercatIndex EMPTY = new HypercatIndex(PersistentHashTrie.<String, PersistentHashTrie<String, String>> empty(),
+            PersistentHashTrie.<String, PersistentHashTrie<String, String>> empty(),
+            PersistentHashTrie.<String, PersistentHashTrie<String, PersistentHashTrie<String, String>>> empty(),
+            PersistentSortedSet.empty(), PersistentSortedSet.empty(), GeoIndex.EMPTY, PersistentHashTrie.<String, RangeIndex> empty(),
+            TextIndex.EMPTY);
+
+    // href sets are held as tries mapping each href to itself
+    private final PersistentHashTrie<String, PersistentHashTrie<String, String>> relIndex;
+    private final PersistentHashTrie<String, PersistentHashTrie<String, String>> valIndex;
+    private final PersistentHashTrie<String, PersistentHashTrie<String, PersistentHashTrie<String, String>>> relValIndex;
+    private final PersistentSortedSet<String> sortedHrefs;
+    private final PersistentSortedSet<String> sortedVals;
+    private final GeoIndex geoIndex;
+    private final PersistentHashTrie<String, RangeIndex> rangeIndexes;
+    private final TextIndex textIndex;
+
+    private HypercatIndex(PersistentHashTrie<String, PersistentHashTrie<String, String>> relIndex,
+            PersistentHashTrie<String, PersistentHashTrie<String, String>> valIndex,
+            PersistentHashTrie<String, PersistentHashTrie<String, PersistentHashTrie<String, String>>> relValIndex,
+            PersistentSortedSet<String> sortedHrefs, PersistentSortedSet<String> sortedVals, GeoIndex geoIndex,
+            PersistentHashTrie<String, RangeIndex> rangeIndexes, TextIndex textIndex) {
+        this.relIndex = relIndex;
+        this.valIndex = valIndex;
+        this.relValIndex = relValIndex;
+        this.sortedHrefs = sortedHrefs;
+        this.sortedVals = sortedVals;
+        this.geoIndex = geoIndex;
+        this.rangeIndexes = rangeIndexes;
+        this.textIndex = textIndex;
+    }
+
+    /**
+     * returns the hrefs of all items carrying a relation with the given rel
+     */
+    Set<String> hrefsForRel(String rel) {
+        return lookup(relIndex, rel);
+    }
+
+    /**
+     * returns the hrefs of all items carrying a relation with the given val
+     */
+    Set<String> hrefsForVal(String val) {
+        return lookup(valIndex, val);
+    }
+
+    /**
+     * returns the hrefs of all items carrying a relation with exactly the
+     * given rel and val
+     */
+    Set<String> hrefsForRelVal(String rel, String val) {
+        if (rel == null) {
+            return Collections.emptySet();
+        }
+        PersistentHashTrie<String, PersistentHashTrie<String, String>> vals = relValIndex.get(rel);
+        if (vals == null) {
+            return Collections.emptySet();
+        }
+        return lookup(vals, val);
+    }
+
+    /**
+     * returns the rels carried by any item
+     */
+    Set<String> rels() {
+        return relIndex.keySet();
+    }
+
+    /**
+     * returns the distinct vals of the relations with the given rel
+     */
+    Set<String> valsForRel(String rel) {
+        PersistentHashTrie<String, PersistentHashTrie<String, String>> vals = rel == null ? null : relValIndex.get(rel);
+        if (vals == null) {
+            return Collections.emptySet();
+        }
+        return vals.keySet();
+    }
+
+    /**
+     * iterates, in lexicographic order, over the hrefs of the items in the
+     * range [from, to). A null bound leaves that end of the range open
+     */
+    Iterator<String> hrefsInRange(String from, String to) {
+        return sortedHrefs.range(from, to);
+    }
+
+    /**
+     * iterates over the hrefs of all the items in lexicographic order, or
+     * in reverse order if descending
+     */
+    Iterator<String> hrefsInOrder(boolean descending) {
+        return descending ? sortedHrefs.descendingIterator() : sortedHrefs.range(null, null);
+    }
+
+    /**
+     * returns the number of item hrefs in the range [from, to)
+     */
+    int countHrefsInRange(String from, String to) {
+        return sortedHrefs.count(from, to);
+    }
+
+    /**
+     * iterates, in lexicographic order, over the distinct relation vals in
+     * the range [from, to). A null bound leaves that end of the range open
+     */
+    Iterator<String> valsInRange(String from, String to) {
+        return sortedVals.range(from, to);
+    }
+
+    /**
+     * returns the number of distinct relation vals in the range [from, to)
+     */
+    int countValsInRange(String from, String to) {
+        return sortedVals.count(from, to);
+    }
+
+    /**
+     * returns the spatial index over the items' positions
+     */
+    GeoIndex geo() {
+        return geoIndex;
+    }
+
+    /**
+     * returns the range index declared for the rel, or null if there is none
+     */
+    RangeIndex rangeIndex(String rel) {
+        return rangeIndexes.get(rel);
+    }
+
+    /**
+     * returns the rels with range indexes
+     */
+    Set<String> rangeIndexedRels() {
+        return rangeIndexes.keySet();
+    }
+
+    /**
+     * returns the full-text index over the items' descriptions
+     */
+    TextIndex text() {
+        return textIndex;
+    }
+
+    /**
+     * starts a run of changes to this index under the given edit token
+     */
+    Editor edit(Object token) {
+        return new Editor(this, token);
+    }
+
+    private static Set<String> lookup(PersistentHashTrie<String, PersistentHashTrie<String, String>> index, String key) {
+        if (key == null) {
+            return Collections.emptySet();
+        }
+        PersistentHashTrie<String, String> hrefs = index.get(key);
+        if (hrefs == null) {
+            return Collections.emptySet();
+        }
+        return hrefs.keySet();
+    }
+
+    /**
+     * derives a new version of an index. Not thread-safe; an Editor is used
+     * by one writer, and its token is discarded once the new version is built
+     */
+    static final class Editor {
+
+        private final Object token;
+        private PersistentHashTrie<String, PersistentHashTrie<String, String>> relIndex;
+        private PersistentHashTrie<String, PersistentHashTrie<String, String>> valIndex;
+        private PersistentHashTrie<String, PersistentHashTrie<String, PersistentHashTrie<String, String>>> relValIndex;
+        private PersistentSortedSet<String> sortedHrefs;
+        private PersistentSortedSet<String> sortedVals;
+        private final GeoIndex.Editor geoIndex;
+        private PersistentHashTrie<String, RangeIndex> rangeIndexes;
+        private final TextIndex.Editor textIndex;
+
+        private Editor(HypercatIndex base, Object token) {
+            this.token = token;
+            this.relIndex = base.relIndex;
+            this.valIndex = base.valIndex;
+            this.relValIndex = base.relValIndex;
+            this.sortedHrefs = base.sortedHrefs;
+            this.sortedVals = base.sortedVals;
+            this.geoIndex = base.geoIndex.edit(token);
+            this.rangeIndexes = base.rangeIndexes;
+            this.textIndex = base.textIndex.edit(token);
+        }
+
+        /**
+         * records the href of an item added to the items collection
+         */
+        void addHref(String href) {
+            sortedHrefs = sortedHrefs.plus(href);
+        }
+
+        /**
+         * forgets the href of an item removed from the items collection
+         */
+        void removeHref(String href) {
+            sortedHrefs = sortedHrefs.minus(href);
+        }
+
+        /**
+         * adds all the relations in an item's metadata collection to the
+         * indexes
+         *
+         * @param href
+         *            - the key under which the item is held in the items
+         *            collection
+         * @param relations
+         *            - the item's metadata relations
+         */
+        void indexItem(String href, List<Relation> relations) {
+            if (relations == null) {
+                return;
+            }
+            for (int i = 0; i < relations.size(); i++) {
+                indexRelation(href, relations.get(i));
+            }
+            geoIndex.indexItem(href, relations);
+            textIndex.indexItem(href, relations);
+            if (!rangeIndexes.isEmpty()) {
+                for (String rangeRel : rangeRels()) {
+                    indexRange(rangeRel, href, relations);
+                }
+            }
+        }
+
+        /**
+         * declares a range index for the rel, replacing any declared before.
+         * The new index is empty; the caller indexes the existing items with
+         * indexRange
+         */
+        void declareRangeIndex(String rel, RangeIndexType type) {
+            rangeIndexes = rangeIndexes.plus(token, rel, new RangeIndex(type));
+        }
+
+        /**
+         * adds a rel to those whose vals are full-text indexed, returning
+         * false if it already was. The caller indexes the existing items'
+         * vals for a new rel with indexText
+         */
+        boolean declareTextIndex(String rel) {
+            return textIndex.declare(rel);
+        }
+
+        /**
+         * adds the words of an item's vals for the rel to the full-text index
+         */
+        void indexText(String rel, String href, List<Relation> relations) {
+            textIndex.indexRel(rel, href, relations);
+        }
+
+        /**
+         * adds an item's vals for the rel to the rel's range index
+         */
+        void indexRange(String rel, String href, List<Relation> relations) {
+            RangeIndex index = rangeIndexes.get(rel);
+            if (index != null && relations != null) {
+                RangeIndex next = index.plus(rel, href, relations);
+                if (next != index) {
+                    rangeIndexes = rangeIndexes.plus(token, rel, next);
+                }
+            }
+        }
+
+        /**
+         * removes all the relations in an item's metadata collection from the
+         * indexes
+         *
+         * @param href
+         *            - the key under which the item is held in the items
+         *            collection
+         * @param relations
+         *            - the item's metadata relations
+         */
+        void unindexItem(String href, List<Relation> relations) {
+            if (relations == null) {
+                return;
+            }
+            geoIndex.unindexItem(href, relations);
+            textIndex.unindexItem(href, relations);
+            if (!rangeIndexes.isEmpty()) {
+                for (String rangeRel : rangeRels()) {
+                    RangeIndex index = rangeIndexes.get(rangeRel);
+                    RangeIndex next = index.minus(rangeRel, href, relations);
+                    if (next != index) {
+                        rangeIndexes = rangeIndexes.plus(token, rangeRel, next);
+                    }
+                }
+            }
+            for (int i = 0; i < relations.size(); i++) {
+                Relation rel = relations.get(i);
+                relIndex = remove(relIndex, rel.getRel(), href);
+                valIndex = remove(valIndex, rel.getVal(), href);
+                if (rel.getVal() != null && !valIndex.containsKey(rel.getVal())) {
+                    sortedVals = sortedVals.minus(rel.getVal());
+                }
+                if (rel.getRel() != null) {
+                    PersistentHashTrie<String, PersistentHashTrie<String, String>> vals = relValIndex.get(rel.getRel());
+                    if (vals != null) {
+                        vals = remove(vals, rel.getVal(), href);
+                        relValIndex = vals.isEmpty() ? relValIndex.minus(token, rel.getRel()) : relValIndex.plus(token, rel.getRel(), vals);
+                    }
+                }
+            }
+        }
+
+        /**
+         * adds a single relation of an item to the indexes
+         *
+         * @param href
+         *            - the key under which the item is held in the items
+         *            collection
+         * @param rel
+         *            - the relation to add
+         */
+        void indexRelation(String href, Relation rel) {
+            relIndex = add(relIndex, rel.getRel(), href);
+            if (rel.getVal() != null && !valIndex.containsKey(rel.getVal())) {
+                sortedVals = sortedVals.plus(rel.getVal());
+            }
+            valIndex = add(valIndex, rel.getVal(), href);
+            if (rel.getRel() != null) {
+                PersistentHashTrie<String, PersistentHashTrie<String, String>> vals = relValIndex.get(rel.getRel());
+                if (vals == null) {
+                    vals = PersistentHashTrie.empty();
+                }
+                relValIndex = relValIndex.plus(token, rel.getRel(), add(vals, rel.getVal(), href));
+            }
+        }
+
+        /**
+         * the rels with range indexes, copied out so that the indexes may be
+         * replaced (in place, under the edit token) while they are visited
+         */
+        private String[] rangeRels() {
+            return rangeIndexes.keySet().toArray(new String[rangeIndexes.size()]);
+        }
+
+        /**
+         * empties all the indexes
+         */
+        void clear() {
+            relIndex = PersistentHashTrie.empty();
+            valIndex = PersistentHashTrie.empty();
+            relValIndex = PersistentHashTrie.empty();
+            sortedHrefs = PersistentSortedSet.empty();
+            sortedVals = PersistentSortedSet.empty();
+            geoIndex.clear();
+            textIndex.clear();
+            // declarations outlive the items they index
+            for (String rangeRel : rangeRels()) {
+                rangeIndexes = rangeIndexes.plus(token, rangeRel, new RangeIndex(rangeIndexes.get(rangeRel).type));
+            }
+        }
+
+        /**
+         * returns the new version of the index
+         */
+        HypercatIndex build() {
+            return new HypercatIndex(relIndex, valIndex, relValIndex, sortedHrefs, sortedVals, geoIndex.build(), rangeIndexes,
+                    textIndex.build());
+        }
+
+        private PersistentHashTrie<String, PersistentHashTrie<String, String>> add(PersistentHashTrie<String, PersistentHashTrie<String, String>> index,
+                String key, String href) {
+            if (key == null) {
+                return index;
+            }
+            PersistentHashTrie<String, String> hrefs = index.get(key);
+            if (hrefs == null) {
+                hrefs = PersistentHashTrie.empty();
+            }
+            return index.plus(token, key, hrefs.plus(token, href, href));
+        }
+
+        private PersistentHashTrie<String, PersistentHashTrie<String, String>> remove(PersistentHashTrie<String, PersistentHashTrie<String, String>> index,
+                String key, String href) {
+            if (key == null) {
+                return index;
+            }
+            PersistentHashTrie<String, String> hrefs = index.get(key);
+            if (hrefs == null) {
+                return index;
+            }
+            hrefs = hrefs.minus(token, href);
+            return hrefs.isEmpty() ? index.minus(token, key) : index.plus(token, key, hrefs);
+        }
+    }
+}
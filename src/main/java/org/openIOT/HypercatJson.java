@@ -0,0 +1,357 @@
+package org.openIOT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.io.JsonStringEncoder;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatJson.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Token-level reading and writing of Hypercat JSON
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Builds Hypercat, Item and Relation objects directly from a Jackson token
+ * stream, in a single pass and without first building a JsonNode tree. Only
+ * the properties defined by the spec are read ("item-metadata", "items",
+ * "href", "i-object-metadata", "rel" and "val"); any other properties are
+ * skipped.
+ * <p>
+ * The "items" property may be either a JSON array of items (as the spec
+ * requires) or a JSON object whose values are items (as produced by
+ * Hypercat.toJson).
+ * <p>
+ * Writing goes the other way, straight from the object model to a
+ * JsonGenerator one item at a time, with no bean introspection. The output is
+ * the same as Jackson's bean serialization of the classes: the catalogue's
+ * "items" are written as a JSON object keyed by href.
+ */
+final class HypercatJson {
+
+    /**
+     * shared, thread-safe factory for parsers and generators. Parsers and
+     * generators built from it do not close the caller's stream, reader or
+     * writer
+     */
+    static final JsonFactory FACTORY = new JsonFactory();
+    static {
+        FACTORY.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        FACTORY.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    /**
+     * shared mapper, for the remaining tree-based reading. An ObjectMapper is
+     * thread-safe once configured, so one instance serves every catalogue and
+     * item rather than each holding its own
+     */
+    static final ObjectMapper MAPPER = new ObjectMapper(FACTORY);
+
+    private HypercatJson() {
+    }
+
+    /**
+     * reads a whole Hypercat from the parser, which must be positioned
+     * before (or on) the catalogue's START_OBJECT token
+     */
+    static Hypercat readHypercat(JsonParser jp) throws JsonParseException, IOException {
+        startObject(jp);
+        Hypercat hc = Hypercat.emptyCatalogue();
+        // the whole document is loaded as one run of changes, so each trie
+        // node is copied at most once however many items are read
+        HypercatState.Editor tx = hc.beginUpdate();
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            JsonToken token = jp.nextToken();
+            if ("item-metadata".equals(field)) {
+                expect(jp, token, JsonToken.START_ARRAY);
+                while (jp.nextToken() != JsonToken.END_ARRAY) {
+                    Hypercat.appendMetadata(tx, readRelation(jp));
+                }
+            } else if ("items".equals(field)) {
+                readItems(jp, hc, tx, token);
+            } else {
+                jp.skipChildren();
+            }
+        }
+        hc.commitUpdate(tx);
+        return hc;
+    }
+
+    /**
+     * reads the items collection, positioned on its START_ARRAY or
+     * START_OBJECT token, into the hypercat. As with the JSON-string
+     * constructor, a later item with the same href replaces an earlier one
+     */
+    private static void readItems(JsonParser jp, Hypercat hc, HypercatState.Editor tx, JsonToken token) throws JsonParseException,
+            IOException {
+        if (token == JsonToken.START_ARRAY) {
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                Item item = readItem(jp, new Item());
+                if (item.getHref() == null) {
+                    throw new JsonParseException("item has no href", jp.getCurrentLocation());
+                }
+                hc.putItem(tx, item.getHref(), item);
+            }
+        } else {
+            expect(jp, token, JsonToken.START_OBJECT);
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                jp.nextToken();
+                Item item = readItem(jp, new Item());
+                hc.putItem(tx, item.getHref() != null ? item.getHref() : key, item);
+            }
+        }
+    }
+
+    /**
+     * reads a single Item into the supplied (empty) item object. The parser
+     * must be positioned before (or on) the item's START_OBJECT token
+     */
+    static Item readItem(JsonParser jp, Item item) throws JsonParseException, IOException {
+        startObject(jp);
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            JsonToken token = jp.nextToken();
+            if ("href".equals(field)) {
+                expect(jp, token, JsonToken.VALUE_STRING);
+                item.setHref(jp.getText());
+            } else if ("i-object-metadata".equals(field)) {
+                expect(jp, token, JsonToken.START_ARRAY);
+                while (jp.nextToken() != JsonToken.END_ARRAY) {
+                    item.appendRelation(readRelation(jp));
+                }
+            } else {
+                jp.skipChildren();
+            }
+        }
+        return item;
+    }
+
+    /**
+     * reads a single metadata Relation. The parser must be positioned on the
+     * relation's START_OBJECT token. Non-string vals (eg numbers) are read as
+     * their text; a relation whose rel is not a string, or whose val is
+     * missing, null, an object or an array, is malformed. The relation is
+     * taken from the shared RelationVocabulary
+     */
+    static Relation readRelation(JsonParser jp) throws JsonParseException, IOException {
+        expect(jp, jp.getCurrentToken(), JsonToken.START_OBJECT);
+        String rel = null;
+        String val = null;
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            JsonToken token = jp.nextToken();
+            if ("rel".equals(field)) {
+                expect(jp, token, JsonToken.VALUE_STRING);
+                rel = jp.getText();
+            } else if ("val".equals(field)) {
+                if (token == JsonToken.VALUE_NULL || !token.isScalarValue()) {
+                    throw new JsonParseException("expected a val but found " + token, jp.getCurrentLocation());
+                }
+                val = jp.getText();
+            } else {
+                jp.skipChildren();
+            }
+        }
+        if (rel == null || val == null) {
+            throw new JsonParseException("relation has no " + (rel == null ? "rel" : "val"), jp.getCurrentLocation());
+        }
+        return RelationVocabulary.relation(rel, val);
+    }
+
+    /**
+     * writes a whole Hypercat to the generator, streaming its items one at a
+     * time
+     */
+    static void writeHypercat(JsonGenerator jg, Hypercat hc) throws IOException {
+        HypercatState state = hc.currentState();
+        jg.writeStartObject();
+        jg.writeFieldName("item-metadata");
+        writeRelations(jg, state.itemMetadata);
+        jg.writeFieldName("items");
+        if (state.items == null) {
+            jg.writeNull();
+        } else {
+            jg.writeStartObject();
+            for (Map.Entry<String, HypercatState.Entry> entry : state.items.entrySet()) {
+                jg.writeFieldName(entry.getKey());
+                writeItem(jg, entry.getValue().href, entry.getValue().metadata);
+            }
+            jg.writeEndObject();
+        }
+        jg.writeEndObject();
+    }
+
+    /**
+     * writes a whole Hypercat as UTF-8 JSON, using each item entry's cached
+     * serialized fragment where it has one, and caching a fragment for each
+     * entry that does not. The output is identical to writeHypercat's; only
+     * the item-metadata and the href keys are encoded afresh.
+     * 
+     * @param hits
+     *            - incremented for each item written from its cached fragment
+     * @param misses
+     *            - incremented for each item that had to be serialized
+     */
+    static void writeHypercat(OutputStream out, Hypercat hc, AtomicLong hits, AtomicLong misses) throws IOException {
+        HypercatState state = hc.currentState();
+        out.write(ITEM_METADATA_START);
+        JsonGenerator jg = FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+        writeRelations(jg, state.itemMetadata);
+        jg.close();
+
+        if (state.items == null) {
+            out.write(ITEMS_NULL_END);
+            return;
+        }
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        ByteArrayOutputStream scratch = null;
+        out.write(ITEMS_START);
+        boolean first = true;
+        for (Map.Entry<String, HypercatState.Entry> entry : state.items.entrySet()) {
+            HypercatState.Entry item = entry.getValue();
+            byte[] fragment = item.jsonFragment;
+            if (fragment == null) {
+                if (scratch == null) {
+                    scratch = new ByteArrayOutputStream(256);
+                }
+                fragment = itemFragment(item, scratch);
+                item.jsonFragment = fragment;
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write('"');
+            out.write(encoder.quoteAsUTF8(entry.getKey()));
+            out.write('"');
+            out.write(':');
+            out.write(fragment);
+        }
+        out.write(ITEMS_END);
+    }
+
+    private static final byte[] ITEM_METADATA_START = ascii("{\"item-metadata\":");
+    private static final byte[] ITEMS_START = ascii(",\"items\":{");
+    private static final byte[] ITEMS_END = ascii("}}");
+    private static final byte[] ITEMS_NULL_END = ascii(",\"items\":null}");
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * serializes a single item entry to UTF-8 JSON bytes, using the scratch
+     * buffer
+     */
+    private static byte[] itemFragment(HypercatState.Entry item, ByteArrayOutputStream scratch) throws IOException {
+        scratch.reset();
+        JsonGenerator jg = FACTORY.createJsonGenerator(scratch, JsonEncoding.UTF8);
+        writeItem(jg, item.href, item.metadata);
+        jg.close();
+        return scratch.toByteArray();
+    }
+
+    /**
+     * writes one page of a catalogue's items to the generator (see Page)
+     */
+    static void writePage(JsonGenerator jg, Page page) throws IOException {
+        jg.writeStartObject();
+        jg.writeFieldName("item-metadata");
+        writeRelations(jg, page.getItemMetadata());
+        jg.writeArrayFieldStart("items");
+        for (Item item : page.getItems()) {
+            writeItem(jg, item);
+        }
+        jg.writeEndArray();
+        if (page.getNextCursor() != null) {
+            jg.writeStringField("next-cursor", page.getNextCursor());
+        }
+        jg.writeEndObject();
+    }
+
+    /**
+     * writes a single Item to the generator
+     */
+    static void writeItem(JsonGenerator jg, Item item) throws IOException {
+        writeItem(jg, item.getHref(), item.metadata());
+    }
+
+    private static void writeItem(JsonGenerator jg, String href, List<Relation> metadata) throws IOException {
+        jg.writeStartObject();
+        jg.writeStringField("href", href);
+        jg.writeFieldName("i-object-metadata");
+        writeRelations(jg, metadata);
+        jg.writeEndObject();
+    }
+
+    private static void writeRelations(JsonGenerator jg, List<Relation> relations) throws IOException {
+        if (relations == null) {
+            jg.writeNull();
+            return;
+        }
+        jg.writeStartArray();
+        for (int i = 0; i < relations.size(); i++) {
+            Relation rel = relations.get(i);
+            jg.writeStartObject();
+            jg.writeStringField("rel", rel.getRel());
+            jg.writeStringField("val", rel.getVal());
+            jg.writeEndObject();
+        }
+        jg.writeEndArray();
+    }
+
+    private static void startObject(JsonParser jp) throws JsonParseException, IOException {
+        JsonToken token = jp.getCurrentToken();
+        if (token == null) {
+            token = jp.nextToken();
+        }
+        expect(jp, token, JsonToken.START_OBJECT);
+    }
+
+    private static void expect(JsonParser jp, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException("expected " + expected + " but found " + actual, jp.getCurrentLocation());
+        }
+    }
+}
@@ -0,0 +1,645 @@
+package org.openIOT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatLog.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Append-only write-ahead log making a Hypercat's changes durable
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * An append-only write-ahead log of the changes made to a Hypercat, from
+ * which the catalogue is rebuilt when it is next opened. open replays the
+ * log into a new catalogue and attaches the log to it; from then on each
+ * change to the catalogue (addItem, removeItem, a relation added to the
+ * catalogue or one of its items, and so on) is appended to the log before it
+ * is made visible.
+ * <p>
+ * Each committed change is written as one frame: its length, a CRC32 of its
+ * contents, and the records it holds, each putting an item's href and
+ * relations, removing an href, or replacing the catalogue's item-metadata.
+ * Frames are binary, and replaying them builds the items directly, without
+ * parsing JSON. A frame torn by a crash fails its length or CRC check, and
+ * the log is cut back to the last whole frame when it is opened.
+ * <p>
+ * Appending writes the frame to the file; the SyncPolicy decides when it is
+ * forced to the disk. Under everyWrite each change waits, after the
+ * catalogue's write lock has been released, until its frame is forced; a
+ * writer that finds a force already under way waits for it and then forces
+ * everything appended meanwhile in one go, so concurrent writers share
+ * fsyncs (group commit). everyRecords(n) forces once n records have built
+ * up, and everyMillis(n) forces in the background every n milliseconds,
+ * trading the changes made since the last force against write throughput.
+ * <p>
+ * The log grows with every change; compact rewrites it as a single frame
+ * holding the catalogue as it is now.
+ */
+public final class HypercatLog implements Closeable {
+
+    /**
+     * when a log forces its appended changes to the disk
+     */
+    public static final class SyncPolicy {
+
+        private static final int WRITE = 0;
+        private static final int RECORDS = 1;
+        private static final int MILLIS = 2;
+
+        private final int kind;
+        private final long interval;
+
+        private SyncPolicy(int kind, long interval) {
+            if (interval < 1) {
+                throw new IllegalArgumentException("sync interval must be at least 1: " + interval);
+            }
+            this.kind = kind;
+            this.interval = interval;
+        }
+
+        /**
+         * forces each change to the disk before the call making it returns
+         */
+        public static SyncPolicy everyWrite() {
+            return new SyncPolicy(WRITE, 1);
+        }
+
+        /**
+         * forces the log once the given number of records has been appended
+         * since it was last forced; up to that many changes may be lost in a
+         * power failure
+         */
+        public static SyncPolicy everyRecords(int records) {
+            return new SyncPolicy(RECORDS, records);
+        }
+
+        /**
+         * forces the log in the background every given number of
+         * milliseconds; the changes of up to that long may be lost in a power
+         * failure
+         */
+        public static SyncPolicy everyMillis(long millis) {
+            return new SyncPolicy(MILLIS, millis);
+        }
+
+        @Override
+        public String toString() {
+            return kind == WRITE ? "everyWrite" : kind == RECORDS ? "everyRecords(" + interval + ")" : "everyMillis(" + interval + ")";
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(HypercatLog.class);
+
+    private static final int MAGIC = 0x48434c31; // "HCL1"
+    private static final int HEADER_BYTES = 4;
+    private static final int FRAME_HEADER_BYTES = 8;
+
+    /**
+     * the most of the log mapped at once while replaying it, unless a single
+     * frame is larger. Not final, so that tests can replay in small windows
+     */
+    static int replayWindowBytes = 64 << 20;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte METADATA = 3;
+    private static final byte CLEAR = 4;
+    private static final byte RANGE_INDEX = 5;
+    private static final byte TEXT_INDEX = 6;
+
+    private final File file;
+    private final SyncPolicy policy;
+    private final Hypercat catalogue;
+    private final Object syncLock = new Object();
+    private final ScheduledExecutorService syncer;
+
+    // the channel is appended to under the catalogue's write lock, and
+    // replaced (by compact) under both that and the sync lock
+    private FileChannel channel;
+
+    // records appended and records forced to the disk, counted from open
+    private volatile long appended;
+    private volatile long synced;
+
+    // set, under the sync lock, once the channel has been closed
+    private boolean closed;
+
+    // set, under the catalogue's write lock, when a failed append could not
+    // be cut back out of the log; further appends are refused until compact
+    // rewrites it
+    private IOException failure;
+
+    private HypercatLog(File file, FileChannel channel, SyncPolicy policy, Hypercat catalogue) {
+        this.file = file;
+        this.channel = channel;
+        this.policy = policy;
+        this.catalogue = catalogue;
+        if (policy.kind == SyncPolicy.MILLIS) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "HypercatLog sync " + HypercatLog.this.file.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        log.error("cannot force log " + HypercatLog.this.file, e);
+                    }
+                }
+            }, policy.interval, policy.interval, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * opens the log in the given file, creating it if need be, and returns
+     * the catalogue it records: the catalogue as it stood after the last
+     * change in the log, or, for a new log, an empty catalogue with the
+     * given description. Changes made to the returned catalogue are appended
+     * to the log until it is closed
+     * 
+     * @param file
+     *            - the log file
+     * @param policy
+     *            - when appended changes are forced to the disk
+     * @param description
+     *            - the description of the catalogue, if the log is new
+     * @throws IOException
+     *             - if the log cannot be read or written
+     */
+    public static Hypercat open(File file, SyncPolicy policy, String description) throws IOException {
+        return open(file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), policy,
+                description);
+    }
+
+    /**
+     * opens the log through the given channel to its file, which the log
+     * closes when it is closed
+     */
+    static Hypercat open(File file, FileChannel channel, SyncPolicy policy, String description) throws IOException {
+        Hypercat hc = new Hypercat(description);
+        try {
+            long end;
+            if (channel.size() == 0) {
+                end = writeSnapshot(channel, hc);
+            } else {
+                long start = System.nanoTime();
+                end = replay(file, channel, hc);
+                if (end < channel.size()) {
+                    log.warn("log {} ends in a partial change, cut back from {} to {} bytes", new Object[] { file, channel.size(), end });
+                    channel.truncate(end);
+                }
+                log.info("replayed log {} of {} items in {} ms", new Object[] { file, hc.itemsView().size(), (System.nanoTime() - start) / 1000000 });
+            }
+            channel.force(true);
+            channel.position(end);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        hc.attachLog(new HypercatLog(file, channel, policy, hc));
+        return hc;
+    }
+
+    /**
+     * forces every change appended so far to the disk
+     */
+    public void sync() throws IOException {
+        synchronized (syncLock) {
+            // closing forced everything appended
+            if (closed) {
+                return;
+            }
+            long target = appended;
+            if (synced < target) {
+                channel.force(false);
+                synced = target;
+            }
+        }
+    }
+
+    /**
+     * rewrites the log as a single frame holding the catalogue as it is now,
+     * replacing the file atomically once the new one is on the disk. Changes
+     * to the catalogue wait until the rewrite is done. A log that has
+     * refused appends after a failure takes them again once compacted
+     */
+    public void compact() throws IOException {
+        synchronized (catalogue.writeLock()) {
+            synchronized (syncLock) {
+                if (closed) {
+                    throw new IOException("log " + file + " is closed");
+                }
+                File compacted = new File(file.getPath() + ".compact");
+                FileChannel next = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                try {
+                    next.position(writeSnapshot(next, catalogue));
+                    next.force(true);
+                    Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    discard(next, compacted);
+                    throw e;
+                } catch (RuntimeException e) {
+                    discard(next, compacted);
+                    throw e;
+                }
+                FileChannel previous = channel;
+                channel = next;
+                synced = appended;
+                failure = null;
+                previous.close();
+            }
+        }
+    }
+
+    /**
+     * closes and deletes an unfinished compacted log
+     */
+    private void discard(FileChannel next, File compacted) {
+        try {
+            next.close();
+        } catch (IOException e) {
+            log.warn("cannot close " + compacted, e);
+        }
+        if (compacted.exists() && !compacted.delete()) {
+            log.warn("cannot delete {}", compacted);
+        }
+    }
+
+    /**
+     * forces the log to the disk, detaches it from its catalogue, and closes
+     * it. Later changes to the catalogue are not logged. Changes made before
+     * the log is closed are on the disk once it is, so writers still waiting
+     * for them to be forced return without forcing
+     */
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        // no change can be part-way through being appended meanwhile
+        synchronized (catalogue.writeLock()) {
+            catalogue.attachLog(null);
+            synchronized (syncLock) {
+                if (closed) {
+                    return;
+                }
+                channel.force(true);
+                synced = appended;
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * returns a new, empty batch of records for a change to the catalogue
+     */
+    Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * appends a committed change to the log, returning the sequence number
+     * to pass to await. Called under the catalogue's write lock, so that
+     * changes are logged in the order they are made. A frame only partly
+     * written when the write fails is cut back out of the log, so that later
+     * frames follow the last whole one; if that fails too, the log refuses
+     * further appends, since frames written after the torn one would be lost
+     * when it is replayed
+     */
+    long append(Batch batch) {
+        if (batch.records == 0) {
+            return 0;
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("log " + file + " failed, and must be compacted before it is appended to", failure);
+        }
+        long start = -1;
+        try {
+            start = channel.position();
+            write(channel, batch);
+        } catch (IOException e) {
+            if (start >= 0) {
+                try {
+                    channel.truncate(start);
+                    channel.position(start);
+                } catch (IOException cut) {
+                    log.error("cannot cut a partial change out of log " + file, cut);
+                    failure = e;
+                }
+            }
+            throw new UncheckedIOException("cannot append to log " + file, e);
+        }
+        appended += batch.records;
+        return appended;
+    }
+
+    /**
+     * waits, as the sync policy requires, for the change with the given
+     * sequence number to reach the disk. Called after the catalogue's write
+     * lock is released, so that other writers can append meanwhile
+     */
+    void await(long sequence) {
+        if (policy.kind == SyncPolicy.MILLIS || synced >= sequence) {
+            return;
+        }
+        if (policy.kind == SyncPolicy.RECORDS && sequence - synced < policy.interval) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot force log " + file, e);
+        }
+    }
+
+    /**
+     * the records of one change to a catalogue, encoded as they are made
+     */
+    static final class Batch {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int records;
+
+        void put(String href, List<Relation> metadata) {
+            record(PUT);
+            writeString(href);
+            writeRelations(metadata);
+        }
+
+        void remove(String href) {
+            record(REMOVE);
+            writeString(href);
+        }
+
+        void metadata(List<Relation> metadata) {
+            record(METADATA);
+            writeRelations(metadata);
+        }
+
+        void clear() {
+            record(CLEAR);
+        }
+
+        void rangeIndex(String rel, RangeIndexType type) {
+            record(RANGE_INDEX);
+            writeString(rel);
+            writeString(type.name());
+        }
+
+        void textIndex(String rel) {
+            record(TEXT_INDEX);
+            writeString(rel);
+        }
+
+        private void record(byte op) {
+            records++;
+            try {
+                out.writeByte(op);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeRelations(List<Relation> relations) {
+            try {
+                if (relations == null) {
+                    out.writeInt(-1);
+                    return;
+                }
+                out.writeInt(relations.size());
+                for (int i = 0; i < relations.size(); i++) {
+                    writeString(relations.get(i).getRel());
+                    writeString(relations.get(i).getVal());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeString(String s) {
+            try {
+                if (s == null) {
+                    out.writeInt(-1);
+                    return;
+                }
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * writes a frame: payload length, payload CRC32, record count and records
+     */
+    private static void write(FileChannel channel, Batch batch) throws IOException {
+        byte[] records = batch.bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        ByteBuffer count = ByteBuffer.allocate(4).putInt(0, batch.records);
+        crc.update(count.array());
+        crc.update(records);
+        ByteBuffer head = ByteBuffer.allocate(12);
+        head.putInt(4 + records.length).putInt((int) crc.getValue()).putInt(batch.records).flip();
+        ByteBuffer body = ByteBuffer.wrap(records);
+        while (head.hasRemaining() || body.hasRemaining()) {
+            channel.write(new ByteBuffer[] { head, body });
+        }
+    }
+
+    /**
+     * writes the header and a single frame recreating the catalogue as it is
+     * now, at the start of the channel, returning the end of the frame
+     */
+    private static long writeSnapshot(FileChannel channel, Hypercat hc) throws IOException {
+        HypercatState state = hc.currentState();
+        Batch batch = new Batch();
+        batch.metadata(state.itemMetadata);
+        for (String rel : state.index().rangeIndexedRels()) {
+            batch.rangeIndex(rel, state.index().rangeIndex(rel).type);
+        }
+        for (String rel : state.index().text().rels()) {
+            if (!TextIndex.DESCRIPTION_REL.equals(rel)) {
+                batch.textIndex(rel);
+            }
+        }
+        if (state.items != null) {
+            for (Map.Entry<String, HypercatState.Entry> entry : state.items.entrySet()) {
+                batch.put(entry.getKey(), entry.getValue().metadata);
+            }
+        }
+        channel.truncate(0);
+        channel.position(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(0, MAGIC);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        write(channel, batch);
+        return channel.position();
+    }
+
+    /**
+     * applies the whole frames of the log to the catalogue as one change,
+     * returning the end of the last whole frame. The log is mapped a window
+     * at a time, so that logs of any size can be replayed; a frame running
+     * past the end of the window is read from a window starting at the frame
+     */
+    private static long replay(File file, FileChannel channel, Hypercat hc) throws IOException {
+        long size = channel.size();
+        long windowStart = 0;
+        ByteBuffer window = map(channel, 0, Math.min(replayWindowBytes, size));
+        if (size < HEADER_BYTES || window.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a Hypercat log");
+        }
+        HypercatState.Editor tx = hc.beginUpdate();
+        CRC32 crc = new CRC32();
+        long end = HEADER_BYTES;
+        while (size - end >= FRAME_HEADER_BYTES) {
+            if (end + FRAME_HEADER_BYTES > windowStart + window.capacity()) {
+                windowStart = end;
+                window = map(channel, end, Math.min(replayWindowBytes, size - end));
+            }
+            int at = (int) (end - windowStart);
+            int length = window.getInt(at);
+            int expected = window.getInt(at + 4);
+            if (length < 4 || length > size - end - FRAME_HEADER_BYTES || length > Integer.MAX_VALUE - FRAME_HEADER_BYTES) {
+                break;
+            }
+            if (end + FRAME_HEADER_BYTES + length > windowStart + window.capacity()) {
+                windowStart = end;
+                window = map(channel, end, Math.min(Math.max(replayWindowBytes, FRAME_HEADER_BYTES + length), size - end));
+                at = 0;
+            }
+            ByteBuffer frame = window.duplicate();
+            frame.limit(at + FRAME_HEADER_BYTES + length);
+            frame.position(at + FRAME_HEADER_BYTES);
+            frame = frame.slice();
+            crc.reset();
+            crc.update(frame.duplicate());
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+            apply(frame, tx, hc);
+            end += FRAME_HEADER_BYTES + length;
+        }
+        hc.commitUpdate(tx);
+        return end;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long bytes) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+    }
+
+    private static void apply(ByteBuffer frame, HypercatState.Editor tx, Hypercat hc) {
+        int records = frame.getInt();
+        for (int r = 0; r < records; r++) {
+            byte op = frame.get();
+            switch (op) {
+            case PUT: {
+                String href = readString(frame);
+                Item item = new Item();
+                item.setHref(href);
+                item.setIObjectMetadata(readRelations(frame));
+                hc.putItem(tx, href, item);
+                break;
+            }
+            case REMOVE:
+                tx.remove(readString(frame));
+                break;
+            case METADATA:
+                tx.setItemMetadata(readRelations(frame));
+                break;
+            case CLEAR:
+                tx.clear();
+                break;
+            case RANGE_INDEX:
+                tx.declareRangeIndex(readString(frame), RangeIndexType.valueOf(readString(frame)));
+                break;
+            case TEXT_INDEX:
+                tx.declareTextIndex(readString(frame));
+                break;
+            default:
+                throw new IllegalStateException("unknown log record " + op);
+            }
+        }
+    }
+
+    private static ArrayList<Relation> readRelations(ByteBuffer in) {
+        int size = in.getInt();
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<Relation> relations = new ArrayList<Relation>(size);
+        for (int i = 0; i < size; i++) {
+            String rel = readString(in);
+            String val = readString(in);
+            relations.add(RelationVocabulary.relation(rel, val));
+        }
+        return relations;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
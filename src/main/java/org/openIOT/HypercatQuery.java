@@ -0,0 +1,1156 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatQuery.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Boolean queries over a Hypercat's search indexes
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * A compiled boolean query over the items of a Hypercat, combining href, rel
+ * and val predicates with AND, OR and NOT. A query is parsed once, from an
+ * expression such as
+ * <p>
+ * rel=urn:X-tsbiot:rels:isContentType&amp;val=text/plain AND NOT (val=celsius OR
+ * href="http://sensor/1")
+ * <p>
+ * or built with the static methods below, and may then be run against any
+ * number of catalogues with Hypercat.search. The terms are:
+ * <p>
+ * href=H - the item held under href H
+ * <p>
+ * rel=R - items having a relation with rel R
+ * <p>
+ * val=V - items having a relation with val V
+ * <p>
+ * rel=R&amp;val=V - items having a single relation with both rel R and val V
+ * (the same meaning as in a searchCat query-string)
+ * <p>
+ * href^=P - items whose hrefs start with P
+ * <p>
+ * val^=P - items having a relation with a val starting with P
+ * <p>
+ * Values containing spaces, parentheses, '&amp;' or '"' are written in double
+ * quotes, with '"' and '\' escaped by a '\'. AND binds more tightly than OR;
+ * terms written side by side are ANDed; the operator words are not case
+ * sensitive.
+ * <p>
+ * Every term is answered from the catalogue's inverted indexes, so a query
+ * need never scan the catalogue. Each time it runs, the query is planned
+ * against the catalogue's current index statistics (the number of items
+ * under each index entry): an AND starts from its most selective positive
+ * term, and keeps only those of its items that pass the other terms, tested
+ * most selective first by index membership; an OR is the union of its terms.
+ * Only a NOT that is not part of an AND with a positive term has to visit
+ * every item, since it matches everything its operand does not.
+ * Hypercat.explain shows the plan chosen.
+ * <p>
+ * Queries are immutable and may be shared between threads.
+ */
+public final class HypercatQuery {
+
+    private final Node root;
+
+    private HypercatQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * parses a query expression
+     *
+     * @param expression
+     *            - the query, in the syntax described above
+     * @throws IllegalArgumentException
+     *             - if the expression is not a valid query
+     */
+    public static HypercatQuery parse(String expression) {
+        return new HypercatQuery(new Parser(expression).parse());
+    }
+
+    /**
+     * matches the item held under the given href
+     */
+    public static HypercatQuery href(String href) {
+        return new HypercatQuery(new Term(Term.HREF, null, href));
+    }
+
+    /**
+     * matches items having a relation with the given rel
+     */
+    public static HypercatQuery rel(String rel) {
+        return new HypercatQuery(new Term(Term.REL, rel, null));
+    }
+
+    /**
+     * matches items having a relation with the given val
+     */
+    public static HypercatQuery val(String val) {
+        return new HypercatQuery(new Term(Term.VAL, null, val));
+    }
+
+    /**
+     * matches items having a relation with exactly the given rel and val
+     */
+    public static HypercatQuery relVal(String rel, String val) {
+        return new HypercatQuery(new Term(Term.REL_VAL, rel, val));
+    }
+
+    /**
+     * matches items whose hrefs start with the given prefix
+     */
+    public static HypercatQuery hrefPrefix(String prefix) {
+        return new HypercatQuery(new Term(Term.HREF_PREFIX, null, prefix));
+    }
+
+    /**
+     * matches items having a relation with a val starting with the given
+     * prefix
+     */
+    public static HypercatQuery valPrefix(String prefix) {
+        return new HypercatQuery(new Term(Term.VAL_PREFIX, null, prefix));
+    }
+
+    /**
+     * matches items matching all of the given queries
+     */
+    public static HypercatQuery and(HypercatQuery... queries) {
+        return new HypercatQuery(Junction.of(true, nodes(queries)));
+    }
+
+    /**
+     * matches items matching any of the given queries
+     */
+    public static HypercatQuery or(HypercatQuery... queries) {
+        return new HypercatQuery(Junction.of(false, nodes(queries)));
+    }
+
+    /**
+     * matches items not matching the given query
+     */
+    public static HypercatQuery not(HypercatQuery query) {
+        return new HypercatQuery(Not.of(query.root));
+    }
+
+    private static List<Node> nodes(HypercatQuery[] queries) {
+        if (queries.length == 0) {
+            throw new IllegalArgumentException("at least one query is needed");
+        }
+        List<Node> nodes = new ArrayList<Node>(queries.length);
+        for (HypercatQuery query : queries) {
+            nodes.add(query.root);
+        }
+        return nodes;
+    }
+
+    /**
+     * returns the query as an expression, which parse turns back into the
+     * same query
+     */
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    /**
+     * returns the keys of the items in the given state matching the query
+     */
+    Collection<String> evaluate(HypercatState state) {
+        if (state.items == null) {
+            return Collections.emptySet();
+        }
+        return root.evaluate(state);
+    }
+
+    /**
+     * iterates lazily over the keys of the items in the given state matching
+     * the query. No collection of the matches is built, and nothing is
+     * allocated per item; each item is found as the iteration reaches it
+     */
+    Iterator<String> iterate(HypercatState state) {
+        if (state.items == null) {
+            return Collections.<String> emptySet().iterator();
+        }
+        return root.iterate(state);
+    }
+
+    /**
+     * returns the number of items in the given state matching the query.
+     * A single index term is counted from the size of its index entry,
+     * without visiting the items
+     */
+    long count(HypercatState state) {
+        return state.items == null ? 0 : root.count(state);
+    }
+
+    /**
+     * tests a single item of the given state, by its key
+     */
+    boolean matches(HypercatState state, String href) {
+        return root.matches(state, href);
+    }
+
+    /**
+     * returns the numbers of the items of a numbered store matching the
+     * query
+     */
+    BitSet select(ItemBitmaps items) {
+        return root.select(items);
+    }
+
+    /**
+     * an upper bound on the number of items in the given state matching the
+     * query, from the index statistics
+     */
+    long estimate(HypercatState state) {
+        return state.items == null ? 0 : root.estimate(state);
+    }
+
+    /**
+     * describes the plan the query would follow against the given state, one
+     * step to a line, with the estimated number of items at each step
+     */
+    String explain(HypercatState state) {
+        StringBuilder out = new StringBuilder();
+        root.explain(state, out, 0, "", false);
+        return out.toString();
+    }
+
+    private static int universe(HypercatState state) {
+        return state.items == null ? 0 : state.items.size();
+    }
+
+    private static void line(StringBuilder out, int depth, String role, String step, long estimate) {
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
+        out.append(role).append(step).append("  [~").append(estimate).append(" items]\n");
+    }
+
+    /**
+     * a node of the query's expression tree
+     */
+    private abstract static class Node {
+
+        /**
+         * an upper bound on the number of items the node matches, from the
+         * index statistics
+         */
+        abstract long estimate(HypercatState state);
+
+        /**
+         * returns the keys of all matching items
+         */
+        abstract Collection<String> evaluate(HypercatState state);
+
+        /**
+         * iterates lazily over the keys of all matching items
+         */
+        Iterator<String> iterate(HypercatState state) {
+            return evaluate(state).iterator();
+        }
+
+        /**
+         * counts the matching items
+         */
+        long count(HypercatState state) {
+            long count = 0;
+            for (Iterator<String> it = iterate(state); it.hasNext(); it.next()) {
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * tests a single item, by its key
+         */
+        abstract boolean matches(HypercatState state, String href);
+
+        /**
+         * returns the numbers of the matching items of a numbered store
+         */
+        abstract BitSet select(ItemBitmaps items);
+
+        /**
+         * appends the node's step, and its operands' steps, to the plan. A
+         * tested node is only used to test items one at a time, as a filter
+         * or part of one
+         */
+        abstract void explain(HypercatState state, StringBuilder out, int depth, String role, boolean tested);
+    }
+
+    /**
+     * a single href, rel, val or rel&amp;val predicate, or an href or val
+     * prefix, answered from the items collection or the indexes
+     */
+    private static final class Term extends Node {
+
+        static final int HREF = 0;
+        static final int REL = 1;
+        static final int VAL = 2;
+        static final int REL_VAL = 3;
+        static final int HREF_PREFIX = 4;
+        static final int VAL_PREFIX = 5;
+
+        private final int kind;
+        private final String rel;
+        private final String val;
+        // the quoted form of an href or href prefix, under which hypercats
+        // parsed with the JSON-string constructor hold their items
+        private final String quoted;
+
+        Term(int kind, String rel, String val) {
+            boolean hasRel = kind == REL || kind == REL_VAL;
+            if ((hasRel && rel == null) || (kind != REL && val == null)) {
+                throw new IllegalArgumentException("query terms need a non-null value");
+            }
+            this.kind = kind;
+            this.rel = rel;
+            this.val = val;
+            this.quoted = kind == HREF ? "\"" + val + "\"" : kind == HREF_PREFIX ? "\"" + val : null;
+        }
+
+        private Set<String> hrefs(HypercatState state) {
+            switch (kind) {
+            case REL:
+                return state.index().hrefsForRel(rel);
+            case VAL:
+                return state.index().hrefsForVal(val);
+            case REL_VAL:
+                return state.index().hrefsForRelVal(rel, val);
+            case HREF_PREFIX:
+                // as for href terms, quoted hrefs are matched too
+                Set<String> hrefs = new LinkedHashSet<String>();
+                addAll(hrefs, state.index().hrefsInRange(val, PersistentSortedSet.prefixEnd(val)));
+                addAll(hrefs, state.index().hrefsInRange(quoted, PersistentSortedSet.prefixEnd(quoted)));
+                return hrefs;
+            case VAL_PREFIX:
+                Set<String> union = new HashSet<String>();
+                Iterator<String> vals = state.index().valsInRange(val, PersistentSortedSet.prefixEnd(val));
+                while (vals.hasNext()) {
+                    union.addAll(state.index().hrefsForVal(vals.next()));
+                }
+                return union;
+            default:
+                // hypercats parsed with the JSON-string constructor hold
+                // their items under the quoted form of the href
+                if (state.items.containsKey(val)) {
+                    return Collections.singleton(val);
+                }
+                if (state.items.containsKey(quoted)) {
+                    return Collections.singleton(quoted);
+                }
+                return Collections.emptySet();
+            }
+        }
+
+        @Override
+        long estimate(HypercatState state) {
+            if (kind == HREF_PREFIX) {
+                return state.index().countHrefsInRange(val, PersistentSortedSet.prefixEnd(val))
+                        + state.index().countHrefsInRange(quoted, PersistentSortedSet.prefixEnd(quoted));
+            }
+            if (kind == VAL_PREFIX) {
+                // the sum of the matching vals' item counts, which counts an
+                // item once for each matching val it has; summing stops once
+                // it reaches the size of the catalogue
+                long estimate = 0;
+                int universe = universe(state);
+                Iterator<String> vals = state.index().valsInRange(val, PersistentSortedSet.prefixEnd(val));
+                while (vals.hasNext() && estimate < universe) {
+                    estimate += state.index().hrefsForVal(vals.next()).size();
+                }
+                return Math.min(estimate, universe);
+            }
+            return hrefs(state).size();
+        }
+
+        @Override
+        Collection<String> evaluate(HypercatState state) {
+            return hrefs(state);
+        }
+
+        @Override
+        Iterator<String> iterate(final HypercatState state) {
+            if (kind == HREF_PREFIX) {
+                // the unquoted range, then the quoted range less any hrefs
+                // the unquoted one has already given
+                Iterator<String> unquoted = state.index().hrefsInRange(val, PersistentSortedSet.prefixEnd(val));
+                Iterator<String> quotedHrefs = new Filter(state.index().hrefsInRange(quoted, PersistentSortedSet.prefixEnd(quoted))) {
+                    boolean accept(String href) {
+                        return !href.startsWith(val);
+                    }
+                };
+                return new Chain(unquoted, quotedHrefs);
+            }
+            if (kind == VAL_PREFIX) {
+                // each item is given under the least of its vals with the
+                // prefix, as the vals are visited in order
+                final Iterator<String> vals = state.index().valsInRange(val, PersistentSortedSet.prefixEnd(val));
+                return new Iterator<String>() {
+                    private String currentVal;
+                    private Iterator<String> hrefs = Collections.<String> emptySet().iterator();
+                    private String next;
+
+                    public boolean hasNext() {
+                        while (next == null) {
+                            if (hrefs.hasNext()) {
+                                String href = hrefs.next();
+                                if (currentVal.equals(leastMatchingVal(state, href))) {
+                                    next = href;
+                                }
+                            } else if (vals.hasNext()) {
+                                currentVal = vals.next();
+                                hrefs = state.index().hrefsForVal(currentVal).iterator();
+                            } else {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        String href = next;
+                        next = null;
+                        return href;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+            return hrefs(state).iterator();
+        }
+
+        /**
+         * the least of an item's vals starting with the prefix
+         */
+        private String leastMatchingVal(HypercatState state, String href) {
+            HypercatState.Entry entry = state.items.get(href);
+            String least = null;
+            for (int i = 0; i < entry.metadata.size(); i++) {
+                String v = entry.metadata.get(i).getVal();
+                if (v != null && v.startsWith(val) && (least == null || v.compareTo(least) < 0)) {
+                    least = v;
+                }
+            }
+            return least;
+        }
+
+        @Override
+        long count(HypercatState state) {
+            if (kind == HREF_PREFIX || kind == VAL_PREFIX) {
+                return super.count(state);
+            }
+            return hrefs(state).size();
+        }
+
+        @Override
+        boolean matches(HypercatState state, String href) {
+            if (kind == HREF) {
+                return href.equals(val) || href.equals(quoted);
+            }
+            if (kind == HREF_PREFIX) {
+                return href.startsWith(val) || href.startsWith(quoted);
+            }
+            if (kind == VAL_PREFIX) {
+                HypercatState.Entry entry = state.items.get(href);
+                if (entry == null || entry.metadata == null) {
+                    return false;
+                }
+                for (int i = 0; i < entry.metadata.size(); i++) {
+                    String v = entry.metadata.get(i).getVal();
+                    if (v != null && v.startsWith(val)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return hrefs(state).contains(href);
+        }
+
+        @Override
+        BitSet select(ItemBitmaps items) {
+            BitSet bits = new BitSet();
+            switch (kind) {
+            case REL:
+                items.selectRel(rel, bits);
+                break;
+            case VAL:
+                items.selectVal(val, bits);
+                break;
+            case REL_VAL:
+                items.selectRelVal(rel, val, bits);
+                break;
+            case HREF_PREFIX:
+                items.selectHrefPrefix(val, bits);
+                items.selectHrefPrefix(quoted, bits);
+                break;
+            case VAL_PREFIX:
+                items.selectValPrefix(val, bits);
+                break;
+            default:
+                items.selectHref(val, bits);
+                items.selectHref(quoted, bits);
+            }
+            return bits;
+        }
+
+        @Override
+        void explain(HypercatState state, StringBuilder out, int depth, String role, boolean tested) {
+            String source = kind == HREF ? "items " : kind == HREF_PREFIX || kind == VAL_PREFIX ? "sorted index " : "index ";
+            line(out, depth, role, source + this, estimate(state));
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+            case REL:
+                return "rel=" + quote(rel);
+            case VAL:
+                return "val=" + quote(val);
+            case REL_VAL:
+                return "rel=" + quote(rel) + "&val=" + quote(val);
+            case HREF_PREFIX:
+                return "href^=" + quote(val);
+            case VAL_PREFIX:
+                return "val^=" + quote(val);
+            default:
+                return "href=" + quote(val);
+            }
+        }
+    }
+
+    /**
+     * an AND (conjunction) or OR (disjunction) of two or more nodes
+     */
+    private static final class Junction extends Node {
+
+        private final boolean and;
+        private final List<Node> operands;
+
+        private Junction(boolean and, List<Node> operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+
+        /**
+         * builds a junction, folding in nested junctions of the same kind
+         */
+        static Node of(boolean and, List<Node> operands) {
+            List<Node> flat = new ArrayList<Node>();
+            for (Node operand : operands) {
+                if (operand instanceof Junction && ((Junction) operand).and == and) {
+                    flat.addAll(((Junction) operand).operands);
+                } else {
+                    flat.add(operand);
+                }
+            }
+            return flat.size() == 1 ? flat.get(0) : new Junction(and, flat);
+        }
+
+        @Override
+        long estimate(HypercatState state) {
+            if (and) {
+                long least = universe(state);
+                for (Node operand : operands) {
+                    if (!(operand instanceof Not)) {
+                        least = Math.min(least, operand.estimate(state));
+                    }
+                }
+                return least;
+            }
+            long sum = 0;
+            for (Node operand : operands) {
+                sum += operand.estimate(state);
+            }
+            return Math.min(sum, universe(state));
+        }
+
+        @Override
+        Collection<String> evaluate(HypercatState state) {
+            if (!and) {
+                Set<String> union = new HashSet<String>();
+                for (Node operand : operands) {
+                    union.addAll(operand.evaluate(state));
+                }
+                return union;
+            }
+            Plan plan = plan(state);
+            Collection<String> candidates = plan.driver != null ? plan.driver.evaluate(state) : state.items.keySet();
+            Set<String> matches = new HashSet<String>();
+            for (String href : candidates) {
+                boolean passes = true;
+                for (int i = 0; i < plan.filters.size() && passes; i++) {
+                    passes = plan.filters.get(i).matches(state, href);
+                }
+                if (passes) {
+                    matches.add(href);
+                }
+            }
+            return matches;
+        }
+
+        @Override
+        Iterator<String> iterate(final HypercatState state) {
+            if (!and) {
+                return new Union(state, operands);
+            }
+            final Plan plan = plan(state);
+            Iterator<String> candidates = plan.driver != null ? plan.driver.iterate(state) : state.items.keySet().iterator();
+            return new Filter(candidates) {
+                boolean accept(String href) {
+                    for (int i = 0; i < plan.filters.size(); i++) {
+                        if (!plan.filters.get(i).matches(state, href)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        boolean matches(HypercatState state, String href) {
+            for (Node operand : operands) {
+                if (operand.matches(state, href) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+
+        /**
+         * an OR is the union of its operands' items; an AND is the
+         * intersection of its positive operands' items, less the items its
+         * NOT operands negate
+         */
+        @Override
+        BitSet select(ItemBitmaps items) {
+            BitSet bits = null;
+            for (Node operand : operands) {
+                if (and && operand instanceof Not) {
+                    continue;
+                }
+                BitSet selected = operand.select(items);
+                if (bits == null) {
+                    bits = selected;
+                } else if (and) {
+                    bits.and(selected);
+                } else {
+                    bits.or(selected);
+                }
+            }
+            if (bits == null) {
+                bits = items.all();
+            }
+            for (Node operand : operands) {
+                if (and && operand instanceof Not) {
+                    bits.andNot(((Not) operand).operand.select(items));
+                }
+            }
+            return bits;
+        }
+
+        /**
+         * orders an AND's operands: the positive operand with the smallest
+         * estimate drives, and the rest filter its items, the most selective
+         * first. A NOT rejects more items the more its operand matches
+         */
+        private Plan plan(final HypercatState state) {
+            List<Node> positives = new ArrayList<Node>();
+            List<Node> negatives = new ArrayList<Node>();
+            for (Node operand : operands) {
+                (operand instanceof Not ? negatives : positives).add(operand);
+            }
+            Collections.sort(positives, new Comparator<Node>() {
+                public int compare(Node a, Node b) {
+                    return Long.compare(a.estimate(state), b.estimate(state));
+                }
+            });
+            Collections.sort(negatives, new Comparator<Node>() {
+                public int compare(Node a, Node b) {
+                    return Long.compare(((Not) b).operand.estimate(state), ((Not) a).operand.estimate(state));
+                }
+            });
+            Plan plan = new Plan();
+            if (!positives.isEmpty()) {
+                plan.driver = positives.remove(0);
+            }
+            plan.filters.addAll(positives);
+            plan.filters.addAll(negatives);
+            return plan;
+        }
+
+        @Override
+        void explain(HypercatState state, StringBuilder out, int depth, String role, boolean tested) {
+            if (!and || tested) {
+                line(out, depth, role, and ? "AND" : tested ? "OR" : "OR (union)", estimate(state));
+                for (Node operand : operands) {
+                    operand.explain(state, out, depth + 1, "", tested);
+                }
+                return;
+            }
+            Plan plan = plan(state);
+            line(out, depth, role, "AND", estimate(state));
+            if (plan.driver != null) {
+                plan.driver.explain(state, out, depth + 1, "drive: ", false);
+            } else {
+                line(out, depth + 1, "drive: ", "all items", universe(state));
+            }
+            for (Node filter : plan.filters) {
+                filter.explain(state, out, depth + 1, "filter: ", true);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder("(");
+            for (int i = 0; i < operands.size(); i++) {
+                if (i > 0) {
+                    out.append(and ? " AND " : " OR ");
+                }
+                out.append(operands.get(i));
+            }
+            return out.append(')').toString();
+        }
+    }
+
+    /**
+     * the operand order chosen for an AND
+     */
+    private static final class Plan {
+        Node driver;
+        final List<Node> filters = new ArrayList<Node>();
+    }
+
+    /**
+     * a negation. Within an AND that has a positive operand it is only ever
+     * used as a filter; on its own it matches by visiting every item
+     */
+    private static final class Not extends Node {
+
+        private final Node operand;
+
+        private Not(Node operand) {
+            this.operand = operand;
+        }
+
+        static Node of(Node operand) {
+            if (operand instanceof Not) {
+                return ((Not) operand).operand;
+            }
+            return new Not(operand);
+        }
+
+        @Override
+        long estimate(HypercatState state) {
+            return Math.max(0, universe(state) - operand.estimate(state));
+        }
+
+        @Override
+        Collection<String> evaluate(HypercatState state) {
+            Set<String> matches = new HashSet<String>();
+            for (String href : state.items.keySet()) {
+                if (!operand.matches(state, href)) {
+                    matches.add(href);
+                }
+            }
+            return matches;
+        }
+
+        @Override
+        Iterator<String> iterate(final HypercatState state) {
+            return new Filter(state.items.keySet().iterator()) {
+                boolean accept(String href) {
+                    return !operand.matches(state, href);
+                }
+            };
+        }
+
+        @Override
+        boolean matches(HypercatState state, String href) {
+            return !operand.matches(state, href);
+        }
+
+        @Override
+        BitSet select(ItemBitmaps items) {
+            BitSet bits = items.all();
+            bits.andNot(operand.select(items));
+            return bits;
+        }
+
+        @Override
+        void explain(HypercatState state, StringBuilder out, int depth, String role, boolean tested) {
+            if (tested) {
+                line(out, depth, role, "NOT", operand.estimate(state));
+            } else {
+                line(out, depth, role, "NOT (visits all " + universe(state) + " items)", estimate(state));
+            }
+            operand.explain(state, out, depth + 1, "", true);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    /**
+     * the keys of another iterator that pass a test, read one ahead
+     */
+    private abstract static class Filter implements Iterator<String> {
+
+        private final Iterator<String> source;
+        private String next;
+
+        Filter(Iterator<String> source) {
+            this.source = source;
+        }
+
+        abstract boolean accept(String href);
+
+        public boolean hasNext() {
+            while (next == null && source.hasNext()) {
+                String href = source.next();
+                if (accept(href)) {
+                    next = href;
+                }
+            }
+            return next != null;
+        }
+
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String href = next;
+            next = null;
+            return href;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * the keys of one iterator followed by those of another
+     */
+    private static final class Chain implements Iterator<String> {
+
+        private final Iterator<String> first;
+        private final Iterator<String> second;
+
+        Chain(Iterator<String> first, Iterator<String> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        public boolean hasNext() {
+            return first.hasNext() || second.hasNext();
+        }
+
+        public String next() {
+            return first.hasNext() ? first.next() : second.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * the matches of each operand of an OR in turn, each key given by the
+     * first operand that matches it: a key from a later operand is skipped
+     * if an earlier operand matches it too
+     */
+    private static final class Union implements Iterator<String> {
+
+        private final HypercatState state;
+        private final List<Node> operands;
+        private int operand = -1;
+        private Iterator<String> current = Collections.<String> emptySet().iterator();
+        private String next;
+
+        Union(HypercatState state, List<Node> operands) {
+            this.state = state;
+            this.operands = operands;
+        }
+
+        public boolean hasNext() {
+            while (next == null) {
+                if (current.hasNext()) {
+                    String href = current.next();
+                    if (!matchedEarlier(href)) {
+                        next = href;
+                    }
+                } else if (++operand < operands.size()) {
+                    current = operands.get(operand).iterate(state);
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matchedEarlier(String href) {
+            for (int i = 0; i < operand; i++) {
+                if (operands.get(i).matches(state, href)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String href = next;
+            next = null;
+            return href;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static String quote(String value) {
+        boolean plain = value.length() > 0;
+        for (int i = 0; i < value.length() && plain; i++) {
+            plain = !isSpecial(value.charAt(i));
+        }
+        if (plain && !isOperator(value)) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        return out.append('"').toString();
+    }
+
+    private static boolean isSpecial(char c) {
+        return Character.isWhitespace(c) || c == '(' || c == ')' || c == '&' || c == '"';
+    }
+
+    private static void addAll(Set<String> set, Iterator<String> it) {
+        while (it.hasNext()) {
+            set.add(it.next());
+        }
+    }
+
+    private static boolean isOperator(String word) {
+        return "AND".equalsIgnoreCase(word) || "OR".equalsIgnoreCase(word) || "NOT".equalsIgnoreCase(word);
+    }
+
+    /**
+     * recursive-descent parser for query expressions
+     * <p>
+     * or := and ("OR" and)*
+     * <p>
+     * and := unary (["AND"] unary)*
+     * <p>
+     * unary := "NOT" unary | "(" or ")" | term
+     */
+    private static final class Parser {
+
+        private final String text;
+        private int pos;
+
+        Parser(String text) {
+            if (text == null) {
+                throw new IllegalArgumentException("query is null");
+            }
+            this.text = text;
+        }
+
+        Node parse() {
+            Node node = parseOr();
+            skipSpace();
+            if (pos < text.length()) {
+                throw error("unexpected '" + text.charAt(pos) + "'");
+            }
+            return node;
+        }
+
+        private Node parseOr() {
+            List<Node> operands = new ArrayList<Node>();
+            operands.add(parseAnd());
+            while (acceptWord("OR")) {
+                operands.add(parseAnd());
+            }
+            return Junction.of(false, operands);
+        }
+
+        private Node parseAnd() {
+            List<Node> operands = new ArrayList<Node>();
+            operands.add(parseUnary());
+            while (true) {
+                if (acceptWord("AND")) {
+                    operands.add(parseUnary());
+                    continue;
+                }
+                skipSpace();
+                if (pos < text.length() && text.charAt(pos) != ')' && !peekWord("OR")) {
+                    operands.add(parseUnary());
+                    continue;
+                }
+                return Junction.of(true, operands);
+            }
+        }
+
+        private Node parseUnary() {
+            if (acceptWord("NOT")) {
+                return Not.of(parseUnary());
+            }
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == '(') {
+                pos++;
+                Node node = parseOr();
+                skipSpace();
+                if (pos >= text.length() || text.charAt(pos) != ')') {
+                    throw error("missing ')'");
+                }
+                pos++;
+                return node;
+            }
+            return parseTerm();
+        }
+
+        private Node parseTerm() {
+            String key = readKey();
+            String value = readValue();
+            if ("href".equals(key)) {
+                return new Term(Term.HREF, null, value);
+            }
+            if ("href^".equals(key)) {
+                return new Term(Term.HREF_PREFIX, null, value);
+            }
+            if ("val^".equals(key)) {
+                return new Term(Term.VAL_PREFIX, null, value);
+            }
+            if ("val".equals(key)) {
+                return new Term(Term.VAL, null, value);
+            }
+            if (!"rel".equals(key)) {
+                throw error("unknown search term '" + key + "' (expected href, rel, val, href^ or val^)");
+            }
+            if (pos < text.length() && text.charAt(pos) == '&') {
+                pos++;
+                if (!"val".equals(readKey())) {
+                    throw error("'&' may only join rel=... and val=...");
+                }
+                return new Term(Term.REL_VAL, value, readValue());
+            }
+            return new Term(Term.REL, value, null);
+        }
+
+        private String readKey() {
+            skipSpace();
+            int start = pos;
+            while (pos < text.length() && Character.isLetter(text.charAt(pos))) {
+                pos++;
+            }
+            // a '^' before the '=' marks a prefix term
+            if (pos > start && pos < text.length() && text.charAt(pos) == '^') {
+                pos++;
+            }
+            if (pos == start || pos >= text.length() || text.charAt(pos) != '=') {
+                throw error("expected href=, rel=, val=, href^= or val^=");
+            }
+            return text.substring(start, pos++);
+        }
+
+        private String readValue() {
+            if (pos < text.length() && text.charAt(pos) == '"') {
+                StringBuilder value = new StringBuilder();
+                pos++;
+                while (pos < text.length() && text.charAt(pos) != '"') {
+                    char c = text.charAt(pos++);
+                    if (c == '\\' && pos < text.length()) {
+                        c = text.charAt(pos++);
+                    }
+                    value.append(c);
+                }
+                if (pos >= text.length()) {
+                    throw error("unterminated quoted value");
+                }
+                pos++;
+                return value.toString();
+            }
+            int start = pos;
+            while (pos < text.length() && !isSpecial(text.charAt(pos))) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private boolean peekWord(String word) {
+            skipSpace();
+            int end = pos + word.length();
+            return text.regionMatches(true, pos, word, 0, word.length())
+                    && (end == text.length() || Character.isWhitespace(text.charAt(end)) || text.charAt(end) == '(');
+        }
+
+        private boolean acceptWord(String word) {
+            if (peekWord(word)) {
+                pos += word.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("invalid query at position " + pos + ": " + message + " in \"" + text + "\"");
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package org.openIOT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.JsonProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatServlet.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Servlet serving Hypercats held resident in memory
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * A servlet holding named Hypercats resident in memory, and serving them
+ * over HTTP, so that a search request carries only its query rather than
+ * the whole catalogue. Mapped to, say, /cat/*, it answers
+ * <p>
+ * GET /cat/name - the catalogue's JSON
+ * <p>
+ * GET /cat/name?querystring - the catalogue searched with searchCat (eg
+ * ?rel=...&amp;val=..., or ?q= followed by a boolean query expression)
+ * <p>
+ * GET /cat/name?pageSize=n[&amp;cursor=c][&amp;q=expression] - a page of the
+ * catalogue's items, or of the items matching the query (see Page)
+ * <p>
+ * PUT /cat/name - creates or replaces the catalogue from the JSON body
+ * <p>
+ * POST /cat/name - adds the item in the JSON body, under its own href
+ * <p>
+ * DELETE /cat/name?href=h - removes the item with that href
+ * <p>
+ * DELETE /cat/name - removes the catalogue
+ * <p>
+ * Each init-param of the servlet names a catalogue, and gives the path of a
+ * JSON file it is loaded from at startup. Requests are served concurrently:
+ * searches and reads work from the snapshot of the catalogue current when
+ * they start, while additions and removals are applied one at a time (see
+ * Hypercat).
+ * <p>
+ * Every GET response carries an ETag and Last-Modified time taken from the
+ * catalogue's version (see Hypercat.getVersion), and a request whose
+ * If-None-Match or If-Modified-Since shows the client's copy is current is
+ * answered 304 Not Modified, without searching or serializing anything.
+ * Responses are gzipped for clients that accept it; the gzipped catalogue is
+ * made once per version and kept, so repeated downloads of an unchanged
+ * catalogue cost neither serialization nor compression.
+ */
+public class HypercatServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String CATALOGUE_TYPE = "application/vnd.tsbiot.catalogue+json";
+    private static final String JSON_TYPE = "application/json";
+
+    private static final Logger log = LoggerFactory.getLogger(HypercatServlet.class);
+
+    /**
+     * distinguishes this run of the server's ETags from those of earlier
+     * runs, whose catalogue versions were counted from the same start
+     */
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    private final ConcurrentHashMap<String, Hypercat> catalogues = new ConcurrentHashMap<String, Hypercat>();
+
+    // the gzipped JSON of each catalogue, for the version it was made from
+    private final ConcurrentHashMap<String, Compressed> gzipped = new ConcurrentHashMap<String, Compressed>();
+    private final AtomicLong gzipCacheHits = new AtomicLong();
+    private final AtomicLong gzipCacheMisses = new AtomicLong();
+
+    @Override
+    public void init() throws ServletException {
+        for (Enumeration<?> names = getInitParameterNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            String path = getInitParameter(name);
+            try {
+                InputStream in = new FileInputStream(path);
+                try {
+                    catalogues.put(name, Hypercat.parse(in));
+                } finally {
+                    in.close();
+                }
+                log.info("loaded catalogue {} from {}", name, path);
+            } catch (IOException e) {
+                throw new ServletException("cannot load catalogue " + name + " from " + path, e);
+            }
+        }
+    }
+
+    /**
+     * returns the catalogue held under the name, or null if there is none
+     */
+    public Hypercat getCatalogue(String name) {
+        return catalogues.get(name);
+    }
+
+    /**
+     * holds a catalogue under the name, replacing any held before
+     */
+    public void putCatalogue(String name, Hypercat hc) {
+        catalogues.put(name, hc);
+        gzipped.remove(name);
+    }
+
+    /**
+     * returns the number of gzipped catalogue downloads served from the
+     * cache, without serializing or compressing the catalogue
+     */
+    public long getGzipCacheHits() {
+        return gzipCacheHits.get();
+    }
+
+    /**
+     * returns the number of gzipped catalogue downloads for which the
+     * catalogue had to be serialized and compressed
+     */
+    public long getGzipCacheMisses() {
+        return gzipCacheMisses.get();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        Hypercat live = catalogue(req, res);
+        if (live == null) {
+            return;
+        }
+        // the response is built from a single snapshot, which its ETag and
+        // Last-Modified time describe
+        Hypercat hc = live.snapshot();
+        boolean gzip = acceptsGzip(req);
+        String etag = etag(hc.getVersion(), gzip);
+        res.setHeader("ETag", etag);
+        res.setHeader("Vary", "Accept-Encoding");
+        if (hc.getLastModified() > 0) {
+            res.setDateHeader("Last-Modified", hc.getLastModified());
+        }
+        if (notModified(req, etag, hc.getLastModified())) {
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        String querystring = req.getQueryString();
+        try {
+            if (req.getParameter("pageSize") != null) {
+                String expression = req.getParameter("q");
+                int pageSize = Integer.parseInt(req.getParameter("pageSize"));
+                String cursor = req.getParameter("cursor");
+                Page page = expression == null ? hc.listItems(cursor, pageSize) : hc.searchPage(HypercatQuery.parse(expression), cursor, pageSize);
+                res.setContentType(JSON_TYPE);
+                OutputStream out = body(res, gzip);
+                page.writeJson(out);
+                finish(out);
+            } else if (querystring != null && !querystring.isEmpty()) {
+                Hypercat results = hc.searchCat(querystring);
+                res.setContentType(CATALOGUE_TYPE);
+                OutputStream out = body(res, gzip);
+                results.writeJson(out);
+                finish(out);
+            } else if (gzip) {
+                byte[] bytes = compressed(name(req), hc);
+                res.setContentType(CATALOGUE_TYPE);
+                res.setHeader("Content-Encoding", "gzip");
+                res.setContentLength(bytes.length);
+                res.getOutputStream().write(bytes);
+            } else {
+                res.setContentType(CATALOGUE_TYPE);
+                hc.writeJson(res.getOutputStream());
+            }
+        } catch (IllegalArgumentException e) {
+            // a malformed page size, cursor or query expression
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        String name = name(req);
+        if (name == null) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND, "no catalogue name given");
+            return;
+        }
+        Hypercat hc;
+        try {
+            hc = Hypercat.parse(req.getInputStream());
+        } catch (JsonProcessingException e) {
+            // JSON that is malformed, or has values of the wrong types
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (InvalidHypercatException e) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        boolean replaced = catalogues.put(name, hc) != null;
+        gzipped.remove(name);
+        res.setStatus(replaced ? HttpServletResponse.SC_NO_CONTENT : HttpServletResponse.SC_CREATED);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        Hypercat hc = catalogue(req, res);
+        if (hc == null) {
+            return;
+        }
+        Item item;
+        try {
+            item = new Item(body(req), true);
+        } catch (JsonProcessingException e) {
+            // JSON that is malformed, or has values of the wrong types
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (InvalidItemException e) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        String href = item.getHref();
+        if (href == null || href.isEmpty()) {
+            res.sendError(HttpServletResponse.SC_BAD_REQUEST, "the item has no href");
+        } else if (!href.equals(hc.addItem(item, href))) {
+            res.sendError(HttpServletResponse.SC_CONFLICT, "an item with href " + href + " is already catalogued");
+        } else {
+            res.setStatus(HttpServletResponse.SC_CREATED);
+        }
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+        Hypercat hc = catalogue(req, res);
+        if (hc == null) {
+            return;
+        }
+        String href = req.getParameter("href");
+        if (href == null) {
+            catalogues.remove(name(req), hc);
+            gzipped.remove(name(req));
+        } else if (hc.itemsView().containsKey(href)) {
+            hc.removeItem(href);
+        } else {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND, "no item with href " + href);
+            return;
+        }
+        res.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "servlet serving, searching and updating Hypercats held in memory";
+    }
+
+    /**
+     * the catalogue named by the request path, or null, having sent a 404,
+     * if there is none
+     */
+    private Hypercat catalogue(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        String name = name(req);
+        Hypercat hc = name == null ? null : catalogues.get(name);
+        if (hc == null) {
+            res.sendError(HttpServletResponse.SC_NOT_FOUND, "no catalogue named " + name);
+        }
+        return hc;
+    }
+
+    /**
+     * the catalogue's JSON, gzipped, made once per version of the catalogue
+     * and kept until the next
+     */
+    private byte[] compressed(String name, Hypercat hc) throws IOException {
+        Compressed cached = gzipped.get(name);
+        if (cached != null && cached.version == hc.getVersion()) {
+            gzipCacheHits.incrementAndGet();
+            return cached.bytes;
+        }
+        gzipCacheMisses.incrementAndGet();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes, 8192);
+        hc.writeJson(out);
+        out.finish();
+        Compressed made = new Compressed(hc.getVersion(), bytes.toByteArray());
+        // a newer version cached by another request meanwhile is kept
+        gzipped.merge(name, made, (old, next) -> old.version >= next.version ? old : next);
+        return made.bytes;
+    }
+
+    private static final class Compressed {
+        final long version;
+        final byte[] bytes;
+
+        Compressed(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    private static String etag(long version, boolean gzip) {
+        return "\"" + EPOCH + "-" + version + (gzip ? "-gz\"" : "\"");
+    }
+
+    /**
+     * whether the client's copy, identified by If-None-Match or, failing
+     * that, If-Modified-Since, is current
+     */
+    private static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // HTTP dates are to the second
+        return ifModifiedSince >= 0 && lastModified > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String accepted = req.getHeader("Accept-Encoding");
+        if (accepted == null) {
+            return false;
+        }
+        for (String coding : accepted.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the stream to write a response body to, gzipping it if the client
+     * accepts that
+     */
+    private static OutputStream body(HttpServletResponse res, boolean gzip) throws IOException {
+        if (!gzip) {
+            return res.getOutputStream();
+        }
+        res.setHeader("Content-Encoding", "gzip");
+        return new GZIPOutputStream(res.getOutputStream(), 8192);
+    }
+
+    private static void finish(OutputStream out) throws IOException {
+        if (out instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) out).finish();
+        }
+    }
+
+    private static String name(HttpServletRequest req) {
+        String path = req.getPathInfo();
+        if (path == null || path.length() < 2) {
+            return null;
+        }
+        return path.substring(1);
+    }
+
+    private static String body(HttpServletRequest req) throws IOException {
+        if (req.getCharacterEncoding() == null) {
+            req.setCharacterEncoding("UTF-8");
+        }
+        Reader reader = req.getReader();
+        StringWriter body = new StringWriter();
+        char[] buffer = new char[8192];
+        for (int n; (n = reader.read(buffer)) >= 0;) {
+            body.write(buffer, 0, n);
+        }
+        return body.toString();
+    }
+}
@@ -0,0 +1,738 @@
+package org.openIOT;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatSnapshot.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Binary snapshot of a whole Hypercat, searched in place through a file mapping
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * A whole Hypercat written to a binary file, which is opened by mapping it
+ * into memory and searched where it lies, without parsing it or building the
+ * catalogue's items. Opening a snapshot costs the same however large it is;
+ * the operating system pages in only the parts of the file that searches
+ * touch.
+ * <p>
+ * Every distinct href, rel and val is written once, to a string table sorted
+ * in String order, and is referred to elsewhere by its position in the
+ * table (its code), so comparing codes compares the strings. The rest of the
+ * file is fixed-width records of codes:
+ * <p>
+ * items - href, first relation and number of relations, in href order
+ * <p>
+ * relations - rel and val, each item's together
+ * <p>
+ * rel index - rel, val and item, in that order: the items having a rel, or a
+ * rel and val, are a run of it found by binary search
+ * <p>
+ * val index - val and item, in that order: the items having a val, or a val
+ * starting with a prefix, are a run of it
+ * <p>
+ * followed by the catalogue's item-metadata and its range and text index
+ * declarations. A HypercatQuery runs against a snapshot with search and
+ * count, each term selecting the items in its run; getItem and search build
+ * Items only for the items asked for, and toHypercat builds the whole
+ * catalogue.
+ * <p>
+ * write writes the file beside its destination and moves it into place once
+ * it is on the disk, so a reader sees either the old snapshot or the new
+ * one; writeInBackground does the same on another thread, from the state
+ * the catalogue is in when it is called. An open snapshot is immutable and
+ * may be searched by any number of threads at once.
+ */
+public final class HypercatSnapshot {
+
+    private static final int MAGIC = 0x48435331; // "HCS1"
+    private static final int HEADER_BYTES = 40;
+
+    private static final int ITEM_BYTES = 12;
+    private static final int RELATION_BYTES = 8;
+    private static final int REL_INDEX_BYTES = 12;
+    private static final int VAL_INDEX_BYTES = 8;
+
+    // the code written for a null string
+    private static final int NULL = -1;
+
+    private final File file;
+    private final int itemCount;
+    private final int stringCount;
+    private final int relationCount;
+    private final int metadataCount;
+    private final int relIndexCount;
+    private final int valIndexCount;
+    private final int rangeCount;
+    private final int textCount;
+
+    private final ByteBuffer items;
+    private final ByteBuffer relations;
+    private final ByteBuffer relIndex;
+    private final ByteBuffer valIndex;
+    private final ByteBuffer declarations;
+    private final ByteBuffer stringOffsets;
+    private final ByteBuffer stringBytes;
+
+    private final Bitmaps bitmaps = new Bitmaps();
+
+    private HypercatSnapshot(File file, FileChannel channel) throws IOException {
+        this.file = file;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_BYTES, channel.size()));
+        if (header.limit() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a Hypercat snapshot");
+        }
+        itemCount = header.getInt(4);
+        stringCount = header.getInt(8);
+        relationCount = header.getInt(12);
+        metadataCount = header.getInt(16);
+        relIndexCount = header.getInt(20);
+        valIndexCount = header.getInt(24);
+        rangeCount = header.getInt(28);
+        textCount = header.getInt(32);
+        int stringLength = header.getInt(36);
+
+        long at = HEADER_BYTES;
+        items = map(channel, at, (long) itemCount * ITEM_BYTES);
+        at += items.capacity();
+        relations = map(channel, at, ((long) relationCount + Math.max(metadataCount, 0)) * RELATION_BYTES);
+        at += relations.capacity();
+        relIndex = map(channel, at, (long) relIndexCount * REL_INDEX_BYTES);
+        at += relIndex.capacity();
+        valIndex = map(channel, at, (long) valIndexCount * VAL_INDEX_BYTES);
+        at += valIndex.capacity();
+        declarations = map(channel, at, rangeCount * 8L + textCount * 4L);
+        at += declarations.capacity();
+        stringOffsets = map(channel, at, (stringCount + 1L) * 4);
+        at += stringOffsets.capacity();
+        stringBytes = map(channel, at, stringLength);
+        at += stringBytes.capacity();
+        if (at != channel.size()) {
+            throw new IOException(file + " is " + channel.size() + " bytes long, not the " + at + " its header gives");
+        }
+    }
+
+    private ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE || position + size > channel.size()) {
+            throw new IOException(file + " is truncated or corrupt");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /**
+     * opens a snapshot file by mapping it into memory. The file can be
+     * searched at once; nothing in it is read until a search needs it
+     *
+     * @param file
+     *            - a file written by write or writeInBackground
+     * @throws IOException
+     *             - if the file cannot be read or is not a snapshot
+     */
+    public static HypercatSnapshot open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            // the mappings remain valid once the channel is closed
+            return new HypercatSnapshot(file, channel);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * writes the catalogue as it is now to a snapshot file, replacing the
+     * file atomically once the new one is on the disk
+     *
+     * @param hc
+     *            - the catalogue, which may go on changing meanwhile
+     * @param file
+     *            - the snapshot file
+     * @throws IOException
+     *             - if the file cannot be written
+     */
+    public static void write(Hypercat hc, File file) throws IOException {
+        write(hc.currentState(), file);
+    }
+
+    /**
+     * writes the catalogue, as it is at the time of the call, to a snapshot
+     * file on another thread, replacing the file atomically once the new one
+     * is on the disk. Changes made to the catalogue meanwhile are not
+     * written. The returned future completes with the file, or exceptionally
+     * with an UncheckedIOException if it cannot be written
+     *
+     * @param hc
+     *            - the catalogue
+     * @param file
+     *            - the snapshot file
+     */
+    public static CompletableFuture<File> writeInBackground(Hypercat hc, final File file) {
+        final HypercatState state = hc.currentState();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                write(state, file);
+                return file;
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot write snapshot " + file, e);
+            }
+        });
+    }
+
+    /**
+     * the number of items in the snapshot
+     */
+    public int size() {
+        return itemCount;
+    }
+
+    /**
+     * returns the item held under the given href, or null if there is none
+     */
+    public Item getItem(String href) {
+        BitSet bits = new BitSet();
+        bitmaps.selectHref(href, bits);
+        return bits.isEmpty() ? null : item(bits.nextSetBit(0));
+    }
+
+    /**
+     * returns the items matching the query, in href order. Only the matching
+     * items are read from the file
+     */
+    public List<Item> search(HypercatQuery query) {
+        BitSet bits = query.select(bitmaps);
+        List<Item> matches = new ArrayList<Item>(bits.cardinality());
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            matches.add(item(i));
+        }
+        return matches;
+    }
+
+    /**
+     * returns the number of items matching the query, without reading them
+     */
+    public long count(HypercatQuery query) {
+        return query.select(bitmaps).cardinality();
+    }
+
+    /**
+     * returns the catalogue's item-metadata
+     */
+    public ArrayList<Relation> getItemMetadata() {
+        return relations(relationCount, metadataCount);
+    }
+
+    /**
+     * builds the whole catalogue held in the snapshot, with its declared
+     * range and text indexes, as a new writable Hypercat
+     */
+    public Hypercat toHypercat() {
+        Hypercat hc = Hypercat.emptyCatalogue();
+        HypercatState.Editor tx = hc.beginUpdate();
+        tx.setItemMetadata(getItemMetadata());
+        for (int i = 0; i < rangeCount; i++) {
+            tx.declareRangeIndex(string(declarations.getInt(i * 8)), RangeIndexType.valueOf(string(declarations.getInt(i * 8 + 4))));
+        }
+        for (int i = 0; i < textCount; i++) {
+            tx.declareTextIndex(string(declarations.getInt(rangeCount * 8 + i * 4)));
+        }
+        for (int i = 0; i < itemCount; i++) {
+            Item item = item(i);
+            hc.putItem(tx, item.getHref(), item);
+        }
+        hc.commitUpdate(tx);
+        return hc;
+    }
+
+    @Override
+    public String toString() {
+        return "HypercatSnapshot(" + file + ", " + itemCount + " items)";
+    }
+
+    /**
+     * the snapshot's items, numbered by their position in the file, for
+     * HypercatQuery to select from
+     */
+    private final class Bitmaps implements ItemBitmaps {
+
+        @Override
+        public BitSet all() {
+            BitSet bits = new BitSet(itemCount);
+            bits.set(0, itemCount);
+            return bits;
+        }
+
+        /**
+         * selects the item held under the href
+         */
+        @Override
+        public void selectHref(String href, BitSet bits) {
+            int code = code(href);
+            if (code != NULL) {
+                int i = itemLowerBound(code);
+                if (i < itemCount && items.getInt(i * ITEM_BYTES) == code) {
+                    bits.set(i);
+                }
+            }
+        }
+
+        /**
+         * selects the items whose hrefs start with the prefix
+         */
+        @Override
+        public void selectHrefPrefix(String prefix, BitSet bits) {
+            int from = itemLowerBound(lowerBound(prefix));
+            int to = itemLowerBound(upperBound(prefix));
+            if (from < to) {
+                bits.set(from, to);
+            }
+        }
+
+        /**
+         * selects the items having a relation with the rel
+         */
+        @Override
+        public void selectRel(String rel, BitSet bits) {
+            int code = code(rel);
+            if (code != NULL) {
+                selectRelIndex(relIndexLowerBound(code, Integer.MIN_VALUE), relIndexLowerBound(code + 1, Integer.MIN_VALUE), bits);
+            }
+        }
+
+        /**
+         * selects the items having a single relation with both the rel and the
+         * val
+         */
+        @Override
+        public void selectRelVal(String rel, String val, BitSet bits) {
+            int relCode = code(rel);
+            int valCode = code(val);
+            if (relCode != NULL && valCode != NULL) {
+                selectRelIndex(relIndexLowerBound(relCode, valCode), relIndexLowerBound(relCode, valCode + 1), bits);
+            }
+        }
+
+        /**
+         * selects the items having a relation with the val
+         */
+        @Override
+        public void selectVal(String val, BitSet bits) {
+            int code = code(val);
+            if (code != NULL) {
+                selectValIndex(valIndexLowerBound(code), valIndexLowerBound(code + 1), bits);
+            }
+        }
+
+        /**
+         * selects the items having a relation with a val starting with the
+         * prefix
+         */
+        @Override
+        public void selectValPrefix(String prefix, BitSet bits) {
+            selectValIndex(valIndexLowerBound(lowerBound(prefix)), valIndexLowerBound(upperBound(prefix)), bits);
+        }
+
+        private void selectRelIndex(int from, int to, BitSet bits) {
+            for (int i = from; i < to; i++) {
+                bits.set(relIndex.getInt(i * REL_INDEX_BYTES + 8));
+            }
+        }
+
+        private void selectValIndex(int from, int to, BitSet bits) {
+            for (int i = from; i < to; i++) {
+                bits.set(valIndex.getInt(i * VAL_INDEX_BYTES + 4));
+            }
+        }
+    }
+
+    /**
+     * reads the item numbered i
+     */
+    private Item item(int i) {
+        Item item = new Item();
+        item.setHref(string(items.getInt(i * ITEM_BYTES)));
+        item.setIObjectMetadata(relations(items.getInt(i * ITEM_BYTES + 4), items.getInt(i * ITEM_BYTES + 8)));
+        return item;
+    }
+
+    private ArrayList<Relation> relations(int first, int count) {
+        if (count < 0) {
+            return null;
+        }
+        ArrayList<Relation> list = new ArrayList<Relation>(count);
+        for (int r = first; r < first + count; r++) {
+            list.add(RelationVocabulary.relation(string(relations.getInt(r * RELATION_BYTES)), string(relations.getInt(r * RELATION_BYTES + 4))));
+        }
+        return list;
+    }
+
+    /**
+     * decodes the string with the given code
+     */
+    private String string(int code) {
+        if (code == NULL) {
+            return null;
+        }
+        int start = stringOffsets.getInt(code * 4);
+        int end = stringOffsets.getInt(code * 4 + 4);
+        byte[] utf8 = new byte[end - start];
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = stringBytes.get(start + i);
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * the code of the string, or NULL if it is not in the table
+     */
+    private int code(String s) {
+        int code = lowerBound(s);
+        return code < stringCount && string(code).equals(s) ? code : NULL;
+    }
+
+    /**
+     * the code of the least string not less than s
+     */
+    private int lowerBound(String s) {
+        int low = 0;
+        int high = stringCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (string(mid).compareTo(s) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * the code of the least string greater than every string starting with
+     * the prefix
+     */
+    private int upperBound(String prefix) {
+        String end = PersistentSortedSet.prefixEnd(prefix);
+        return end == null ? stringCount : lowerBound(end);
+    }
+
+    private int itemLowerBound(int hrefCode) {
+        int low = 0;
+        int high = itemCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (items.getInt(mid * ITEM_BYTES) < hrefCode) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int relIndexLowerBound(int relCode, int valCode) {
+        int low = 0;
+        int high = relIndexCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int rel = relIndex.getInt(mid * REL_INDEX_BYTES);
+            if (rel < relCode || (rel == relCode && relIndex.getInt(mid * REL_INDEX_BYTES + 4) < valCode)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int valIndexLowerBound(int valCode) {
+        int low = 0;
+        int high = valIndexCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (valIndex.getInt(mid * VAL_INDEX_BYTES) < valCode) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * writes a snapshot of the state beside the file, forces it to the disk
+     * and moves it into place
+     */
+    private static void write(HypercatState state, File file) throws IOException {
+        ArrayList<Relation> itemMetadata = state.itemMetadata == null ? new ArrayList<Relation>(0) : state.itemMetadata;
+        List<String> rangeRels = new ArrayList<String>(state.index().rangeIndexedRels());
+        List<String> textRels = new ArrayList<String>();
+        for (String rel : state.index().text().rels()) {
+            if (!TextIndex.DESCRIPTION_REL.equals(rel)) {
+                textRels.add(rel);
+            }
+        }
+
+        // the index keeps the hrefs and the items' vals in order, so the
+        // string table is a merge of them and the (few) rels and other
+        // strings, coding each and taking the entries in href order
+        TreeSet<String> others = new TreeSet<String>();
+        for (String rel : state.index().rels()) {
+            if (rel != null) {
+                others.add(rel);
+            }
+        }
+        addStrings(itemMetadata, others);
+        for (String rel : rangeRels) {
+            others.add(rel);
+            others.add(state.index().rangeIndex(rel).type.name());
+        }
+        others.addAll(textRels);
+        int itemCount = state.items == null ? 0 : state.items.size();
+        HypercatState.Entry[] entries = new HypercatState.Entry[itemCount];
+        int[] hrefCodes = new int[itemCount];
+        HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        Iterator<String> hrefs = state.index().hrefsInRange(null, null);
+        Iterator<String> vals = state.index().valsInRange(null, null);
+        Iterator<String> rest = others.iterator();
+        String href = next(hrefs);
+        String val = next(vals);
+        String other = next(rest);
+        int h = 0;
+        while (href != null || val != null || other != null) {
+            String least = least(least(href, val), other);
+            int code = strings.size();
+            strings.add(least);
+            if (least.equals(href)) {
+                entries[h] = state.items.get(href);
+                hrefCodes[h++] = code;
+                href = next(hrefs);
+            }
+            if (least.equals(val)) {
+                codes.put(val, code);
+                val = next(vals);
+            }
+            if (least.equals(other)) {
+                codes.put(other, code);
+                other = next(rest);
+            }
+        }
+        int relationCount = 0;
+        for (HypercatState.Entry entry : entries) {
+            relationCount += entry.metadata == null ? 0 : entry.metadata.size();
+        }
+
+        // the relations, and the order of the rel and val indexes
+        int[] relCodes = new int[relationCount];
+        int[] valCodes = new int[relationCount];
+        int[] itemNumbers = new int[relationCount];
+        int r = 0;
+        for (int i = 0; i < itemCount; i++) {
+            List<Relation> metadata = entries[i].metadata;
+            for (int j = 0; metadata != null && j < metadata.size(); j++) {
+                relCodes[r] = code(metadata.get(j).getRel(), codes);
+                valCodes[r] = code(metadata.get(j).getVal(), codes);
+                itemNumbers[r++] = i;
+            }
+        }
+        int[] byVal = sortBy(null, valCodes, strings.size());
+        int[] byRel = sortBy(byVal, relCodes, strings.size());
+        int relIndexCount = relationCount - countNulls(relCodes);
+        int valIndexCount = relationCount - countNulls(valCodes);
+
+        int[] stringOffsets = new int[strings.size() + 1];
+        long length = 0;
+        for (int i = 0; i < strings.size(); i++) {
+            length += utf8Length(strings.get(i));
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("the strings of the catalogue are too long for a snapshot");
+            }
+            stringOffsets[i + 1] = (int) length;
+        }
+
+        File written = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(written);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(itemCount);
+            out.writeInt(strings.size());
+            out.writeInt(relationCount);
+            out.writeInt(itemMetadata.size());
+            out.writeInt(relIndexCount);
+            out.writeInt(valIndexCount);
+            out.writeInt(rangeRels.size());
+            out.writeInt(textRels.size());
+            out.writeInt((int) length);
+            r = 0;
+            for (int i = 0; i < itemCount; i++) {
+                List<Relation> metadata = entries[i].metadata;
+                out.writeInt(hrefCodes[i]);
+                out.writeInt(r);
+                out.writeInt(metadata == null ? -1 : metadata.size());
+                r += metadata == null ? 0 : metadata.size();
+            }
+            for (int i = 0; i < relationCount; i++) {
+                out.writeInt(relCodes[i]);
+                out.writeInt(valCodes[i]);
+            }
+            for (Relation rel : itemMetadata) {
+                out.writeInt(code(rel.getRel(), codes));
+                out.writeInt(code(rel.getVal(), codes));
+            }
+            for (int i : byRel) {
+                if (relCodes[i] != NULL) {
+                    out.writeInt(relCodes[i]);
+                    out.writeInt(valCodes[i]);
+                    out.writeInt(itemNumbers[i]);
+                }
+            }
+            for (int i : byVal) {
+                if (valCodes[i] != NULL) {
+                    out.writeInt(valCodes[i]);
+                    out.writeInt(itemNumbers[i]);
+                }
+            }
+            for (String rel : rangeRels) {
+                out.writeInt(codes.get(rel));
+                out.writeInt(codes.get(state.index().rangeIndex(rel).type.name()));
+            }
+            for (String rel : textRels) {
+                out.writeInt(codes.get(rel));
+            }
+            for (int offset : stringOffsets) {
+                out.writeInt(offset);
+            }
+            for (String s : strings) {
+                out.write(s.getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void addStrings(List<Relation> relations, Set<String> strings) {
+        for (int i = 0; i < relations.size(); i++) {
+            Relation rel = relations.get(i);
+            if (rel.getRel() != null) {
+                strings.add(rel.getRel());
+            }
+            if (rel.getVal() != null) {
+                strings.add(rel.getVal());
+            }
+        }
+    }
+
+    private static String next(Iterator<String> it) {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * the lesser of two strings, either of which may be null for none
+     */
+    private static String least(String a, String b) {
+        return a == null ? b : b == null || a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static int code(String s, Map<String, Integer> codes) {
+        return s == null ? NULL : codes.get(s);
+    }
+
+    /**
+     * stably sorts positions by their keys (codes, or NULL), by counting:
+     * the given order of the positions, or their natural order if it is
+     * null, is kept among positions with equal keys
+     */
+    private static int[] sortBy(int[] order, int[] keys, int codes) {
+        int[] starts = new int[codes + 2];
+        for (int key : keys) {
+            starts[key + 2]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] sorted = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int position = order == null ? i : order[i];
+            sorted[starts[keys[position] + 1]++] = position;
+        }
+        return sorted;
+    }
+
+    private static int countNulls(int[] codes) {
+        int nulls = 0;
+        for (int code : codes) {
+            if (code == NULL) {
+                nulls++;
+            }
+        }
+        return nulls;
+    }
+
+    /**
+     * the length of the string encoded as UTF-8, as String.getBytes encodes
+     * it
+     */
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // an unpaired surrogate is encoded as '?'
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,325 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatState.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Immutable point-in-time contents of a Hypercat
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * One version of the contents of a Hypercat: its item-metadata, its items
+ * (keyed by href) and the search indexes over them. A state is never changed
+ * once built; a Hypercat moves from one state to the next by replacing a
+ * single reference, so a reader that picks up a state sees every change made
+ * before it and none made after, and a snapshot is simply a held state.
+ * <p>
+ * Items are held as Entries, each recording the item together with the href
+ * and metadata list it had when the entry was made. Metadata lists are
+ * replaced rather than changed in place, so an entry goes on describing the
+ * item as it was even after the item itself is changed.
+ * <p>
+ * The states holding search results are built without indexes, which are
+ * made from their entries the first time they are needed.
+ * <p>
+ * Each state committed with changes carries a version number, unique among
+ * all the states of all the catalogues in the JVM and increasing with each
+ * commit, and the time it was committed; HTTP servers use them as the
+ * catalogue's ETag and Last-Modified time.
+ */
+final class HypercatState {
+
+    /**
+     * the state of a default-constructed Hypercat, which has neither
+     * item-metadata nor an items collection
+     */
+    static final HypercatState UNSET = new HypercatState(null, null, HypercatIndex.EMPTY, 0, 0);
+
+    /**
+     * the state of a new catalogue, with empty item-metadata and items
+     */
+    static final HypercatState EMPTY = new HypercatState(new ArrayList<Relation>(0), PersistentHashTrie.<String, Entry> empty(),
+            HypercatIndex.EMPTY, 0, 0);
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    final ArrayList<Relation> itemMetadata;
+    final PersistentHashTrie<String, Entry> items;
+    final long version;
+    final long lastModified;
+
+    // null until first used in a state made by results
+    private volatile HypercatIndex index;
+
+    private HypercatState(ArrayList<Relation> itemMetadata, PersistentHashTrie<String, Entry> items, HypercatIndex index, long version,
+            long lastModified) {
+        this.itemMetadata = itemMetadata;
+        this.items = items;
+        this.index = index;
+        this.version = version;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * a state holding the given entries, for the results of a search. Most
+     * results are read or written out rather than searched again, so their
+     * indexes are built only when first used
+     */
+    static HypercatState results(ArrayList<Relation> itemMetadata, PersistentHashTrie<String, Entry> items) {
+        return new HypercatState(itemMetadata, items, null, VERSIONS.incrementAndGet(), System.currentTimeMillis());
+    }
+
+    /**
+     * returns the search indexes over the state's items
+     */
+    HypercatIndex index() {
+        HypercatIndex built = index;
+        if (built == null) {
+            synchronized (this) {
+                built = index;
+                if (built == null) {
+                    HypercatIndex.Editor editor = HypercatIndex.EMPTY.edit(new Object());
+                    for (Map.Entry<String, Entry> entry : items.entrySet()) {
+                        editor.addHref(entry.getKey());
+                        editor.indexItem(entry.getKey(), entry.getValue().metadata);
+                    }
+                    built = editor.build();
+                    index = built;
+                }
+            }
+        }
+        return built;
+    }
+
+    /**
+     * starts a run of changes deriving the next state from this one
+     */
+    Editor edit() {
+        return new Editor(this);
+    }
+
+    /**
+     * an item as it stood when it was placed in (or last changed in) a
+     * catalogue
+     */
+    static final class Entry {
+
+        final Item item;
+        final String href;
+        final ArrayList<Relation> metadata;
+
+        // cached UTF-8 JSON for the entry, used by catalogues with fragment
+        // caching enabled. Since the entry never changes the cached bytes
+        // never go stale, and they are shared by every state and snapshot
+        // holding the entry
+        volatile byte[] jsonFragment;
+
+        Entry(Item item, String href, ArrayList<Relation> metadata) {
+            this.item = item;
+            this.href = href;
+            this.metadata = metadata;
+        }
+
+        /**
+         * returns the item if it has not been changed since the entry was
+         * made, or otherwise a detached copy of the item as it was then
+         */
+        Item itemAsRecorded() {
+            if (item.metadata() == metadata && item.getHref() == href) {
+                return item;
+            }
+            Item copy = new Item();
+            copy.setHref(href);
+            copy.setIObjectMetadata(metadata);
+            return copy;
+        }
+    }
+
+    /**
+     * derives the next state. An Editor is used by a single writer; its
+     * changes are made in place on structure created since it started, and
+     * are seen by no one until commit returns the new state. An Editor may
+     * only be committed once.
+     */
+    static final class Editor {
+
+        private Object token = new Object();
+        private final HypercatState base;
+        private boolean changed;
+        private HypercatLog.Batch journal;
+        private ArrayList<Relation> itemMetadata;
+        private PersistentHashTrie<String, Entry> items;
+        private final HypercatIndex.Editor index;
+
+        private Editor(HypercatState base) {
+            this.base = base;
+            this.itemMetadata = base.itemMetadata;
+            this.items = base.items != null ? base.items : PersistentHashTrie.<String, Entry> empty();
+            // giving an unset state an items collection is itself a change
+            this.changed = base.items == null;
+            this.index = base.index().edit(token);
+        }
+
+        Entry get(String href) {
+            return items.get(href);
+        }
+
+        /**
+         * places an entry under the given href, re-indexing if it replaces
+         * an entry with different metadata. Returns the replaced entry, or
+         * null
+         */
+        Entry put(String href, Entry entry) {
+            checkOpen();
+            Entry previous = items.get(href);
+            changed = true;
+            if (journal != null) {
+                journal.put(href, entry.metadata);
+            }
+            items = items.plus(token, href, entry);
+            if (previous == null) {
+                index.addHref(href);
+                index.indexItem(href, entry.metadata);
+            } else if (previous.metadata != entry.metadata) {
+                index.unindexItem(href, previous.metadata);
+                index.indexItem(href, entry.metadata);
+            }
+            return previous;
+        }
+
+        /**
+         * removes the entry held under the given href, returning it, or null
+         * if there was none
+         */
+        Entry remove(String href) {
+            checkOpen();
+            Entry previous = items.get(href);
+            if (previous != null) {
+                changed = true;
+                if (journal != null) {
+                    journal.remove(href);
+                }
+                items = items.minus(token, href);
+                index.removeHref(href);
+                index.unindexItem(href, previous.metadata);
+            }
+            return previous;
+        }
+
+        /**
+         * removes every entry
+         */
+        void clear() {
+            checkOpen();
+            changed = true;
+            if (journal != null) {
+                journal.clear();
+            }
+            items = PersistentHashTrie.empty();
+            index.clear();
+        }
+
+        /**
+         * declares a range index for the rel and indexes every entry's vals
+         * for it
+         */
+        void declareRangeIndex(String rel, RangeIndexType type) {
+            checkOpen();
+            changed = true;
+            if (journal != null) {
+                journal.rangeIndex(rel, type);
+            }
+            index.declareRangeIndex(rel, type);
+            for (Map.Entry<String, Entry> entry : items.entrySet()) {
+                index.indexRange(rel, entry.getKey(), entry.getValue().metadata);
+            }
+        }
+
+        /**
+         * adds the rel to those full-text indexed and indexes every entry's
+         * vals for it
+         */
+        void declareTextIndex(String rel) {
+            checkOpen();
+            if (!index.declareTextIndex(rel)) {
+                return;
+            }
+            changed = true;
+            if (journal != null) {
+                journal.textIndex(rel);
+            }
+            for (Map.Entry<String, Entry> entry : items.entrySet()) {
+                index.indexText(rel, entry.getKey(), entry.getValue().metadata);
+            }
+        }
+
+        void setItemMetadata(ArrayList<Relation> itemMetadata) {
+            checkOpen();
+            changed = true;
+            if (journal != null) {
+                journal.metadata(itemMetadata);
+            }
+            this.itemMetadata = itemMetadata;
+        }
+
+        /**
+         * records the editor's changes, as they are made, in the batch, to
+         * be appended to a HypercatLog
+         */
+        void journal(HypercatLog.Batch batch) {
+            this.journal = batch;
+        }
+
+        HypercatLog.Batch journal() {
+            return journal;
+        }
+
+        ArrayList<Relation> getItemMetadata() {
+            return itemMetadata;
+        }
+
+        /**
+         * returns the new state, with the next version number, or the state
+         * the editor started from if nothing was changed. The editor may not
+         * be used afterwards
+         */
+        HypercatState commit() {
+            checkOpen();
+            token = null;
+            if (!changed) {
+                return base;
+            }
+            return new HypercatState(itemMetadata, items, index.build(), VERSIONS.incrementAndGet(), System.currentTimeMillis());
+        }
+
+        private void checkOpen() {
+            if (token == null) {
+                throw new IllegalStateException("HypercatState.Editor already committed");
+            }
+        }
+    }
+}
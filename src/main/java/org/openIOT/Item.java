@@ -2,19 +2,18 @@ package org.openIOT;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.annotate.JsonGetter;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.node.ObjectNode;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 /* LICENCE INFORMATION for org.openIOT.Item
 
 * Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
@@ -71,16 +70,29 @@ import org.slf4j.LoggerFactory;
  * the basic constructor for Item enforces this by invoking a validator 
  * this requires the item to have Relations for contentType and hasDescription
  * and the values for these two relations to be a  non-null String
+ * <p>
+ * Items may be read and changed from several threads at once. Changes made
+ * through addRelation and setIObjectMetadata replace the metadata list rather
+ * than altering it, so a reader never sees the list change underneath it.
+ * getIObjectMetadata returns a copy of the list, and setIObjectMetadata keeps
+ * a copy of the list it is given, so that the item's metadata (and that
+ * recorded by catalogue snapshots sharing it) can only be changed through
+ * the item.
  **/
 
 public class Item {
 
     @JsonProperty("i-object-metadata")
-    private ArrayList<Relation> iObjectMetadata = new ArrayList<Relation>();
-    private String href;
+    private volatile ArrayList<Relation> iObjectMetadata = new ArrayList<Relation>();
+    private volatile String href;
 
-    private Logger log = LoggerFactory.getLogger(Item.class);
-    private ObjectMapper mapper = new ObjectMapper();
+    // the catalogues (if any) that must follow changes to this item, and the
+    // hrefs under which they hold it: the first in catalogue and
+    // catalogueHref, any others as catalogue, href pairs in otherHolders,
+    // which is replaced rather than altered. Guarded by the item's monitor
+    private Hypercat catalogue;
+    private String catalogueHref;
+    private Object[] otherHolders;
 
     // Item constructors
 
@@ -105,7 +117,7 @@ public class Item {
         this.href = href;
         Relation descriptionRel = new Relation("urn:X-tsbiot:rels:hasDescription:en", description);
         this.iObjectMetadata.add(descriptionRel);
-        Relation contentTypeRel = new Relation("urn:X-tsbiot:rels:isContentType", contentType);
+        Relation contentTypeRel = RelationVocabulary.relation("urn:X-tsbiot:rels:isContentType", contentType);
         this.iObjectMetadata.add(contentTypeRel);
         
         String validated = validateItem(this);
@@ -134,23 +146,13 @@ public class Item {
 
         iObjectMetadata = new ArrayList<Relation>();
         href = "";
-        /*
-         * we would use Jackson's JSONCreator functions here, except it appears
-         * to have a problem with HashMaps - it cannot reliably handle parsing
-         * into a Map. So we have to do it manually
-         */
-        JsonNode rootNode = mapper.readTree(jsonString);
-        JsonNode hrefNode = rootNode.path("href");
-        this.href = hrefNode.getTextValue();
-
-        JsonNode relationsNode = rootNode.path("i-object-metadata");
-
-        Iterator<JsonNode> relations = relationsNode.getElements();
-        while (relations.hasNext()) {
-            ObjectNode relation = (ObjectNode) relations.next();
-             String rel = (String) relation.findValuesAsText("rel").toArray()[0];
-            String val = (String) relation.findValuesAsText("val").toArray()[0];
-            this.addRelation(new Relation(rel, val));
+        // the item is built straight from the parser's token stream, rather
+        // than from an intermediate JsonNode tree
+        JsonParser jp = HypercatJson.FACTORY.createJsonParser(jsonString);
+        try {
+            HypercatJson.readItem(jp, this);
+        } finally {
+            jp.close();
         }
         String validated = validateItem(this);
         if (!"VALID".equals(validated)) {
@@ -172,7 +174,7 @@ public class Item {
      *             - if there is some problem reading the string
      */
     public Item(FileReader fr) throws JsonParseException, JsonMappingException, IOException {
-        this(new Hypercat().getJsonStringFromFileReader(fr), true);
+        this(Hypercat.getJsonStringFromFileReader(fr), true);
     }
 
     /**
@@ -189,20 +191,56 @@ public class Item {
      *            - href to set (the specification suggests an URI)
      */
     public void setHref(String href) {
-        this.href = href;
+        Hypercat hc;
+        String hcHref;
+        Object[] others;
+        synchronized (this) {
+            this.href = href;
+            hc = catalogue;
+            hcHref = catalogueHref;
+            others = otherHolders;
+        }
+        changed(hc, hcHref, others);
     }
 
+    /**
+     * gets a copy of the item's collection of metadata relations. Changing
+     * the copy does not change the item: relations are added through
+     * addRelation, or the collection replaced through setIObjectMetadata, so
+     * that the indexes of the holding catalogue stay up to date
+     */
     @JsonGetter("i-object-metadata")
     public ArrayList<Relation> getIObjectMetadata() {
+        ArrayList<Relation> metadata = iObjectMetadata;
+        return metadata == null ? null : new ArrayList<Relation>(metadata);
+    }
+
+    /**
+     * returns the item's current metadata list itself, without copying, for
+     * reading only. The list is never changed once published, and is shared
+     * with the catalogue states that recorded it
+     */
+    ArrayList<Relation> metadata() {
         return iObjectMetadata;
     }
 
     /**
-     * sets the item's collection of metadata relations
+     * sets the item's collection of metadata relations to a copy of the one
+     * given
      * 
      */
     public void setIObjectMetadata(ArrayList<Relation> iObjectMetadata) {
-        this.iObjectMetadata = iObjectMetadata;
+        ArrayList<Relation> copy = iObjectMetadata == null ? null : new ArrayList<Relation>(iObjectMetadata);
+        Hypercat hc;
+        String hcHref;
+        Object[] others;
+        synchronized (this) {
+            this.iObjectMetadata = copy;
+            hc = catalogue;
+            hcHref = catalogueHref;
+            others = otherHolders;
+        }
+        changed(hc, hcHref, others);
     }
 
     /**
@@ -214,9 +252,120 @@ public class Item {
      *            org.openIOT.Relation
      */
     public void addRelation(Relation rel) {
- 
-         this.iObjectMetadata.add(rel);
-  }
+        Hypercat hc;
+        String hcHref;
+        Object[] others;
+        synchronized (this) {
+            ArrayList<Relation> grown = new ArrayList<Relation>(iObjectMetadata.size() + 1);
+            grown.addAll(iObjectMetadata);
+            grown.add(rel);
+            this.iObjectMetadata = grown;
+            hc = catalogue;
+            hcHref = catalogueHref;
+            others = otherHolders;
+        }
+        changed(hc, hcHref, others);
+    }
+
+    /**
+     * tells each catalogue holding the item that it has changed. Catalogues
+     * are told outside the item's lock, since they take their own write lock
+     * and then the item's lock when adding items
+     */
+    private void changed(Hypercat hc, String hcHref, Object[] others) {
+        if (hc != null) {
+            hc.itemChanged(this, hcHref);
+        }
+        if (others != null) {
+            for (int i = 0; i < others.length; i += 2) {
+                ((Hypercat) others[i]).itemChanged(this, (String) others[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * appends a relation in place, for use only while the item is being
+     * built and before any catalogue or other thread can see it
+     */
+    void appendRelation(Relation rel) {
+        this.iObjectMetadata.add(rel);
+    }
+
+    /**
+     * records a catalogue that holds this item under the given href, so that
+     * changes to the item can be passed on to that catalogue. An item held by
+     * several catalogues, or under several hrefs, passes its changes on to
+     * each of them. Returns the item's current href and metadata as a
+     * catalogue entry.
+     */
+    synchronized HypercatState.Entry claimCatalogue(Hypercat hc, String href) {
+        if (this.catalogue == null) {
+            this.catalogue = hc;
+            this.catalogueHref = href;
+        } else if (!holds(hc, href)) {
+            Object[] others = otherHolders == null ? new Object[2] : Arrays.copyOf(otherHolders, otherHolders.length + 2);
+            others[others.length - 2] = hc;
+            others[others.length - 1] = href;
+            otherHolders = others;
+        }
+        // read under the same lock, so that every change is either in the
+        // returned entry or passed on to the catalogue afterwards
+        return new HypercatState.Entry(this, this.href, iObjectMetadata);
+    }
+
+    /**
+     * returns the item's current href and metadata as a catalogue entry
+     */
+    synchronized HypercatState.Entry currentEntry() {
+        return new HypercatState.Entry(this, href, iObjectMetadata);
+    }
+
+    /**
+     * forgets that the given catalogue holds this item under the given href
+     */
+    synchronized void releaseCatalogue(Hypercat hc, String href) {
+        if (this.catalogue == hc && href.equals(this.catalogueHref)) {
+            if (otherHolders == null) {
+                this.catalogue = null;
+                this.catalogueHref = null;
+                return;
+            }
+            this.catalogue = (Hypercat) otherHolders[0];
+            this.catalogueHref = (String) otherHolders[1];
+            otherHolders = otherHolders.length == 2 ? null : Arrays.copyOfRange(otherHolders, 2, otherHolders.length);
+            return;
+        }
+        if (otherHolders == null) {
+            return;
+        }
+        for (int i = 0; i < otherHolders.length; i += 2) {
+            if (otherHolders[i] == hc && href.equals(otherHolders[i + 1])) {
+                if (otherHolders.length == 2) {
+                    otherHolders = null;
+                } else {
+                    Object[] others = new Object[otherHolders.length - 2];
+                    System.arraycopy(otherHolders, 0, others, 0, i);
+                    System.arraycopy(otherHolders, i + 2, others, i, others.length - i);
+                    otherHolders = others;
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean holds(Hypercat hc, String href) {
+        if (this.catalogue == hc && href.equals(this.catalogueHref)) {
+            return true;
+        }
+        if (otherHolders != null) {
+            for (int i = 0; i < otherHolders.length; i += 2) {
+                if (otherHolders[i] == hc && href.equals(otherHolders[i + 1])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
     /**
      * returns the first relation object in teh metadata collection whose 'rel'
@@ -232,7 +381,7 @@ public class Item {
         Iterator it = this.iObjectMetadata.iterator();
         while (it.hasNext()) {
             rel = (Relation) it.next();
-            if (rel.rel.equals(relLabel))
+            if (relLabel.equals(rel.getRel()))
                 return rel;
         }
         return null;
@@ -254,7 +403,7 @@ public class Item {
         Iterator it = this.iObjectMetadata.iterator();
         while (it.hasNext()) {
             rel = (Relation) it.next();
-            if (rel.rel.equals(relLabel))
+            if (relLabel.equals(rel.getRel()))
                 relations.add(rel);
         }
         return relations;
@@ -279,10 +428,7 @@ public class Item {
      * 
      */
     String toJson() throws JsonGenerationException, JsonMappingException, IOException {
-        String output = "NO JSON";
-        ObjectMapper mapper = new ObjectMapper();
-        output = mapper.writeValueAsString(this);
-        return output;
+        return toJson(false);
     }
 
     /**
@@ -290,12 +436,23 @@ public class Item {
      * 
      */
     String toPrettyJson() throws JsonGenerationException, JsonMappingException, IOException {
-        String output = "NO JSON";
-        ObjectMapper mapper = new ObjectMapper();
-        output = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(this);
-        return output;
+        return toJson(true);
     }
-    
+
+    private String toJson(boolean pretty) throws IOException {
+        StringWriter output = new StringWriter();
+        JsonGenerator jg = HypercatJson.FACTORY.createJsonGenerator(output);
+        if (pretty) {
+            jg.useDefaultPrettyPrinter();
+        }
+        try {
+            HypercatJson.writeItem(jg, this);
+        } finally {
+            jg.close();
+        }
+        return output.toString();
+    }
+
     /**
      * Convenience method to ensure hypercat meets the minimum 1.1 specification.  
      * Returns the string "VALID" if successful, and "INVALID" followed by 
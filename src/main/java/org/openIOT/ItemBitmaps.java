@@ -0,0 +1,61 @@
+package org.openIOT;
+
+import java.util.BitSet;
+
+/* LICENCE INFORMATION for org.openIOT.ItemBitmaps.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Items of a store numbered densely, selected by query terms as bitsets
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * The items of a catalogue store that numbers them densely from 0, as
+ * HypercatQuery sees them when it runs against the store: each query term
+ * sets the bits of the items it matches, and AND, OR and NOT combine the
+ * bitsets. Implemented by the stores that do not hold a HypercatState,
+ * HypercatSnapshot and ColumnarHypercat.
+ * <p>
+ * Each select method adds the matching items to the given bitset; as in
+ * HypercatQuery, relVal matches only items having a single relation with
+ * both the rel and the val.
+ */
+interface ItemBitmaps {
+
+    /**
+     * returns a new bitset of every item in the store
+     */
+    BitSet all();
+
+    void selectHref(String href, BitSet bits);
+
+    void selectHrefPrefix(String prefix, BitSet bits);
+
+    void selectRel(String rel, BitSet bits);
+
+    void selectVal(String val, BitSet bits);
+
+    void selectRelVal(String rel, String val, BitSet bits);
+
+    void selectValPrefix(String prefix, BitSet bits);
+}
@@ -0,0 +1,122 @@
+package org.openIOT;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/* LICENCE INFORMATION for org.openIOT.ItemFilters.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Ready-made item predicates for scanning searches
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Predicates over Items for use with Hypercat.searchItems, covering the
+ * searches the inverted indexes cannot answer: matching part of an href or
+ * of a val. Any other Predicate&lt;Item&gt; may be used as well. The
+ * predicates are stateless, and so safe to evaluate from several threads at
+ * once.
+ */
+public final class ItemFilters {
+
+    private ItemFilters() {
+    }
+
+    /**
+     * matches items whose href starts with the given prefix
+     */
+    public static Predicate<Item> hrefStartsWith(final String prefix) {
+        return new Predicate<Item>() {
+            public boolean test(Item item) {
+                return item.getHref() != null && item.getHref().startsWith(prefix);
+            }
+        };
+    }
+
+    /**
+     * matches items whose href contains the given text
+     */
+    public static Predicate<Item> hrefContains(final String text) {
+        return new Predicate<Item>() {
+            public boolean test(Item item) {
+                return item.getHref() != null && item.getHref().contains(text);
+            }
+        };
+    }
+
+    /**
+     * matches items having a relation with the given rel whose val starts
+     * with the given prefix
+     * 
+     * @param rel
+     *            - the rel to look at, or null to look at every relation
+     * @param prefix
+     *            - the start of the val
+     */
+    public static Predicate<Item> valStartsWith(final String rel, final String prefix) {
+        return new Predicate<Item>() {
+            public boolean test(Item item) {
+                List<Relation> relations = item.metadata();
+                if (relations == null) {
+                    return false;
+                }
+                for (int i = 0; i < relations.size(); i++) {
+                    Relation relation = relations.get(i);
+                    if ((rel == null || rel.equals(relation.getRel())) && relation.getVal() != null
+                            && relation.getVal().startsWith(prefix)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * matches items having a relation with the given rel whose val contains
+     * the given text
+     * 
+     * @param rel
+     *            - the rel to look at, or null to look at every relation
+     * @param text
+     *            - the text to look for in the val
+     */
+    public static Predicate<Item> valContains(final String rel, final String text) {
+        return new Predicate<Item>() {
+            public boolean test(Item item) {
+                List<Relation> relations = item.metadata();
+                if (relations == null) {
+                    return false;
+                }
+                for (int i = 0; i < relations.size(); i++) {
+                    Relation relation = relations.get(i);
+                    if ((rel == null || rel.equals(relation.getRel())) && relation.getVal() != null
+                            && relation.getVal().contains(text)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+}
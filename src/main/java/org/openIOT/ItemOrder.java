@@ -0,0 +1,248 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/* LICENCE INFORMATION for org.openIOT.ItemOrder.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Sort orders for top-k searches of a Hypercat
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * An order in which to return the items found by a search, for
+ * Hypercat.searchSorted: by href, or by the val of a chosen rel, ascending or
+ * descending. Hrefs and undeclared vals are ordered lexicographically; the
+ * vals of a rel declared with Hypercat.declareRangeIndex are ordered as the
+ * numbers or times they hold. Items with the same val are ordered by href.
+ * Under a val order, an item without a (valid) val for the rel is left out,
+ * and an item with several is placed by its first in the order (its least
+ * when ascending, its greatest when descending).
+ * <p>
+ * The first k items are found without sorting every match, in one of two
+ * ways, chosen from the index statistics. Where the order has a sorted index
+ * (hrefs, and declared rels), the index may be walked in order, testing each
+ * item against the query until k have matched; this reads about k / s items
+ * for a query matching a fraction s of the catalogue, and suits broad
+ * queries. Otherwise the matches are passed through a bounded heap holding
+ * the best k seen so far, which costs O(m log k) time for m matches but only
+ * O(k) memory.
+ * <p>
+ * Orders are immutable and may be shared between threads.
+ */
+public final class ItemOrder {
+
+    private final String rel;
+    private final boolean descending;
+    private final Comparator<Candidate> order;
+
+    private ItemOrder(String rel, boolean descending) {
+        this.rel = rel;
+        this.descending = descending;
+        this.order = descending ? Collections.reverseOrder(ASCENDING) : ASCENDING;
+    }
+
+    /**
+     * orders items by href, ascending
+     */
+    public static ItemOrder byHref() {
+        return new ItemOrder(null, false);
+    }
+
+    /**
+     * orders items by their val for the given rel, ascending
+     */
+    public static ItemOrder byVal(String rel) {
+        if (rel == null) {
+            throw new IllegalArgumentException("a val order needs a rel");
+        }
+        return new ItemOrder(rel, false);
+    }
+
+    /**
+     * returns the same order, descending
+     */
+    public ItemOrder descending() {
+        return new ItemOrder(rel, true);
+    }
+
+    /**
+     * returns the same order, ascending
+     */
+    public ItemOrder ascending() {
+        return new ItemOrder(rel, false);
+    }
+
+    @Override
+    public String toString() {
+        return (rel == null ? "href" : rel) + (descending ? " descending" : " ascending");
+    }
+
+    /**
+     * returns the keys of the first items in this order, of the items in the
+     * state matching the query
+     *
+     * @param query
+     *            - the items to order, or null for every item
+     * @param limit
+     *            - the most keys to return
+     */
+    List<String> top(HypercatState state, HypercatQuery query, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        }
+        if (state.items == null || limit == 0) {
+            return Collections.emptyList();
+        }
+        Iterator<String> walk = indexOrder(state);
+        if (walk != null && (query == null || walkIsCheaper(state, query, limit))) {
+            return walk(state, query, walk, limit);
+        }
+        Collection<String> matches = query == null ? state.items.keySet() : query.evaluate(state);
+        return heap(state, matches, limit);
+    }
+
+    /**
+     * the hrefs of every item in this order, from a sorted index, or null if
+     * there is no index in this order
+     */
+    private Iterator<String> indexOrder(HypercatState state) {
+        if (rel == null) {
+            return state.index().hrefsInOrder(descending);
+        }
+        RangeIndex index = state.index().rangeIndex(rel);
+        return index == null ? null : index.hrefsInOrder(descending);
+    }
+
+    /**
+     * walking the index reads about limit * universe / matches items, and
+     * the heap about matches; the query's estimate stands in for its
+     * matches
+     */
+    static boolean walkIsCheaper(HypercatState state, HypercatQuery query, int limit) {
+        double matches = query.estimate(state);
+        return (double) limit * state.items.size() <= matches * matches;
+    }
+
+    private List<String> walk(HypercatState state, HypercatQuery query, Iterator<String> walk, int limit) {
+        List<String> top = new ArrayList<String>(Math.min(limit, state.items.size()));
+        // under a val order an item with several vals is met more than once
+        Set<String> seen = rel == null ? null : new HashSet<String>();
+        while (walk.hasNext() && top.size() < limit) {
+            String href = walk.next();
+            if ((seen == null || seen.add(href)) && (query == null || query.matches(state, href))) {
+                top.add(href);
+            }
+        }
+        return top;
+    }
+
+    private List<String> heap(HypercatState state, Collection<String> matches, int limit) {
+        // the heap's head is the worst of the best limit candidates so far
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.min(limit, 1024) + 1, Collections.reverseOrder(order));
+        RangeIndex index = rel == null ? null : state.index().rangeIndex(rel);
+        for (String href : matches) {
+            Candidate candidate = candidate(href, state.items.get(href), index);
+            if (candidate == null) {
+                continue;
+            }
+            if (best.size() < limit) {
+                best.add(candidate);
+            } else if (order.compare(candidate, best.peek()) < 0) {
+                best.poll();
+                best.add(candidate);
+            }
+        }
+        Candidate[] sorted = best.toArray(new Candidate[best.size()]);
+        Arrays.sort(sorted, order);
+        List<String> top = new ArrayList<String>(sorted.length);
+        for (Candidate candidate : sorted) {
+            top.add(candidate.href);
+        }
+        return top;
+    }
+
+    /**
+     * the sort key of an item, or null if it has none in this order
+     */
+    private Candidate candidate(String href, HypercatState.Entry entry, RangeIndex index) {
+        if (rel == null) {
+            return new Candidate(href, 0, null);
+        }
+        if (entry == null || entry.metadata == null) {
+            return null;
+        }
+        Candidate first = null;
+        for (int i = 0; i < entry.metadata.size(); i++) {
+            Relation relation = entry.metadata.get(i);
+            if (!rel.equals(relation.getRel()) || relation.getVal() == null) {
+                continue;
+            }
+            Candidate candidate;
+            if (index != null) {
+                Long key = index.type.keyOrNull(relation.getVal());
+                if (key == null) {
+                    continue;
+                }
+                candidate = new Candidate(href, key.longValue(), null);
+            } else {
+                candidate = new Candidate(href, 0, relation.getVal());
+            }
+            if (first == null || order.compare(candidate, first) < 0) {
+                first = candidate;
+            }
+        }
+        return first;
+    }
+
+    private static final Comparator<Candidate> ASCENDING = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+            int c = a.val != null ? a.val.compareTo(b.val) : Long.compare(a.key, b.key);
+            return c != 0 ? c : a.href.compareTo(b.href);
+        }
+    };
+
+    /**
+     * an item's href and sort key: the val itself, or a range index key
+     */
+    private static final class Candidate {
+        final String href;
+        final long key;
+        final String val;
+
+        Candidate(String href, long key, String val) {
+            this.href = href;
+            this.key = key;
+            this.val = val;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/* LICENCE INFORMATION for org.openIOT.Links.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Traversal of the links between a Hypercat's items
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Traversal of the links between a Hypercat's items, for
+ * Hypercat.referencesTo, searchLinksTo and searchLinksFrom. A relation links
+ * its item to another when its val is the other item's href (eg an
+ * isLocatedIn relation naming a site item, or the relations of a catalogue
+ * added with addItem(Hypercat, href)).
+ * <p>
+ * No separate graph is kept: the val index already maps each href used as a
+ * val to the items linking to it, and the (rel, val) index to those linking
+ * to it by a given rel, and both are kept up to date by every addItem,
+ * removeItem and relation change. Following links backwards costs one index
+ * lookup per item reached; following them forwards reads the metadata of
+ * each item reached. Both walks are breadth first, visit each item once,
+ * and stop after the given number of hops, so cycles are harmless.
+ */
+final class Links {
+
+    private Links() {
+    }
+
+    /**
+     * returns, for each item having a relation whose val is the href, the
+     * rels of those relations in the order the item holds them. The map is
+     * in order of the linking items' hrefs
+     */
+    static Map<String, List<String>> referencesTo(HypercatState state, String href) {
+        Map<String, List<String>> references = new TreeMap<String, List<String>>();
+        if (href == null) {
+            return references;
+        }
+        for (String source : state.index().hrefsForVal(href)) {
+            List<Relation> metadata = state.items.get(source).metadata;
+            List<String> rels = new ArrayList<String>(1);
+            for (int i = 0; i < metadata.size(); i++) {
+                if (href.equals(metadata.get(i).getVal())) {
+                    rels.add(metadata.get(i).getRel());
+                }
+            }
+            references.put(source, Collections.unmodifiableList(rels));
+        }
+        return references;
+    }
+
+    /**
+     * returns the items that reach the href by following between one and
+     * maxHops links backwards, each mapped to the fewest hops it takes, in
+     * breadth-first order. Only links by the rel are followed, or links by
+     * any rel if it is null
+     */
+    static Map<String, Integer> linkedTo(HypercatState state, String href, String rel, int maxHops) {
+        Map<String, Integer> reached = new LinkedHashMap<String, Integer>();
+        List<String> frontier = Collections.singletonList(href);
+        for (int hops = 1; hops <= maxHops && !frontier.isEmpty(); hops++) {
+            List<String> next = new ArrayList<String>();
+            for (String target : frontier) {
+                Set<String> sources = rel == null ? state.index().hrefsForVal(target) : state.index().hrefsForRelVal(rel, target);
+                for (String source : sources) {
+                    if (!source.equals(href) && !reached.containsKey(source)) {
+                        reached.put(source, hops);
+                        next.add(source);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return reached;
+    }
+
+    /**
+     * returns the items the href's item reaches by following between one and
+     * maxHops links forwards, each mapped to the fewest hops it takes, in
+     * breadth-first order. Only links by the rel are followed, or links by
+     * any rel if it is null; vals that are not the hrefs of items are not
+     * links
+     */
+    static Map<String, Integer> linkedFrom(HypercatState state, String href, String rel, int maxHops) {
+        Map<String, Integer> reached = new LinkedHashMap<String, Integer>();
+        List<String> frontier = Collections.singletonList(href);
+        for (int hops = 1; hops <= maxHops && !frontier.isEmpty(); hops++) {
+            List<String> next = new ArrayList<String>();
+            for (String source : frontier) {
+                HypercatState.Entry entry = state.items == null ? null : state.items.get(source);
+                if (entry == null || entry.metadata == null) {
+                    continue;
+                }
+                for (int i = 0; i < entry.metadata.size(); i++) {
+                    Relation link = entry.metadata.get(i);
+                    String target = link.getVal();
+                    if ((rel == null || rel.equals(link.getRel())) && target != null && !target.equals(href)
+                            && !reached.containsKey(target) && state.items.containsKey(target)) {
+                        reached.put(target, hops);
+                        next.add(target);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return reached;
+    }
+}
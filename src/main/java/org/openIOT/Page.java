@@ -0,0 +1,197 @@
+package org.openIOT;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+
+/* LICENCE INFORMATION for org.openIOT.Page.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* One page of a paged catalogue listing or search
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * One page of the items of a catalogue, or of the items matching a search,
+ * as returned by Hypercat.listItems and Hypercat.searchPage. Items are paged
+ * in lexicographic order of href, which does not change from call to call.
+ * <p>
+ * A page that is not the last carries an opaque cursor; passing it back
+ * returns the next page, starting after the last href of this one. Each
+ * page is read from the catalogue as it is when the page is asked for, so
+ * items added or removed between pages are seen or missed according to
+ * where their hrefs fall, but no item present throughout is ever returned
+ * twice or skipped.
+ * <p>
+ * A page of the whole catalogue is read from the sorted href index in
+ * O(log n + page size) time. A page of a search is found, like a top-k
+ * search (see ItemOrder), either by walking the href index from the cursor
+ * and testing each item, or, for selective queries, by keeping the first
+ * hrefs after the cursor in a bounded heap as the matches are read.
+ */
+public final class Page {
+
+    private final ArrayList<Relation> itemMetadata;
+    private final List<Item> items;
+    private final String nextCursor;
+
+    Page(ArrayList<Relation> itemMetadata, List<Item> items, String nextCursor) {
+        this.itemMetadata = itemMetadata;
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * gets the catalogue's item-metadata
+     */
+    public ArrayList<Relation> getItemMetadata() {
+        return itemMetadata;
+    }
+
+    /**
+     * gets the page's items, in order of href
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * gets the cursor for the next page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * writes the page as UTF-8 JSON: a catalogue whose "items" are an array
+     * holding this page's items, with the next page's cursor (if there is
+     * one) in a "next-cursor" property. The stream is flushed but not
+     * closed.
+     *
+     * @param out
+     *            - the stream to write to
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        JsonGenerator jg = HypercatJson.FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+        try {
+            HypercatJson.writePage(jg, this);
+        } finally {
+            jg.close();
+        }
+    }
+
+    /**
+     * returns the page as a JSON string, as written by writeJson
+     */
+    public String toJson() throws IOException {
+        StringWriter output = new StringWriter();
+        JsonGenerator jg = HypercatJson.FACTORY.createJsonGenerator(output);
+        try {
+            HypercatJson.writePage(jg, this);
+        } finally {
+            jg.close();
+        }
+        return output.toString();
+    }
+
+    /**
+     * returns the cursor continuing after the given href
+     */
+    static String cursorAfter(String href) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(href.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * returns the href a cursor continues after, or null for no cursor
+     *
+     * @throws IllegalArgumentException
+     *             - if the cursor is not one returned by a Page
+     */
+    static String hrefAfter(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid page cursor: " + cursor, e);
+        }
+    }
+
+    /**
+     * returns, in order, up to limit keys of the items of the state that
+     * come after the given href and match the query
+     *
+     * @param query
+     *            - the items to page through, or null for every item
+     * @param after
+     *            - the last href of the previous page, or null for the
+     *            first page
+     */
+    static List<String> hrefs(HypercatState state, HypercatQuery query, String after, int limit) {
+        List<String> hrefs = new ArrayList<String>();
+        if (state.items == null || limit == 0) {
+            return hrefs;
+        }
+        // the least string greater than after
+        String from = after == null ? null : after + '\0';
+        if (query == null || ItemOrder.walkIsCheaper(state, query, limit)) {
+            Iterator<String> walk = state.index().hrefsInRange(from, null);
+            while (walk.hasNext() && hrefs.size() < limit) {
+                String href = walk.next();
+                if (query == null || query.matches(state, href)) {
+                    hrefs.add(href);
+                }
+            }
+            return hrefs;
+        }
+        Collection<String> matches = query.evaluate(state);
+        // the heap's head is the greatest of the least limit hrefs so far
+        PriorityQueue<String> first = new PriorityQueue<String>(Math.min(limit, 1024) + 1, Collections.reverseOrder());
+        for (String href : matches) {
+            if (from != null && href.compareTo(from) < 0) {
+                continue;
+            }
+            if (first.size() < limit) {
+                first.add(href);
+            } else if (href.compareTo(first.peek()) < 0) {
+                first.poll();
+                first.add(href);
+            }
+        }
+        hrefs.addAll(first);
+        Collections.sort(hrefs);
+        return hrefs;
+    }
+}
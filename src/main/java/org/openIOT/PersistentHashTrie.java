@@ -0,0 +1,635 @@
+package org.openIOT;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/* LICENCE INFORMATION for org.openIOT.PersistentHashTrie.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Immutable hash map sharing structure between versions
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * An immutable map held as a hash array mapped trie: each level of the trie
+ * consumes five bits of the key's hash, and a node holds only the slots in use
+ * (marked in a 32-bit bitmap). Changing the map copies just the nodes on the
+ * path from the root to the changed key, a handful of small arrays, and shares
+ * everything else with the previous version, which stays valid and unchanged.
+ * Keys whose whole hash codes are equal share a collision node.
+ * <p>
+ * Changes made with an edit token are applied in place to the nodes that were
+ * created under that same token, so that a run of changes (a bulk load, or a
+ * batch of registrations) copies each node at most once. Once a version made
+ * with a token has been handed to other threads the token must not be used
+ * again. Changes made without a token (a null edit) always copy.
+ * <p>
+ * Keys and values may not be null. The Map interface is read-only: put,
+ * remove and the other mutators throw UnsupportedOperationException. The
+ * entry set's Spliterator splits along the trie's nodes, so that the entries
+ * can be shared out between fork-join tasks.
+ */
+final class PersistentHashTrie<K, V> extends AbstractMap<K, V> {
+
+    private static final PersistentHashTrie<Object, Object> EMPTY = new PersistentHashTrie<Object, Object>(null, null, 0);
+
+    // the token under which this instance may be changed in place, or null
+    private final Object edit;
+    private Node root;
+    private int size;
+
+    private PersistentHashTrie(Object edit, Node root, int size) {
+        this.edit = edit;
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * returns the empty map
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashTrie<K, V> empty() {
+        return (PersistentHashTrie<K, V>) EMPTY;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null || key == null) {
+            return null;
+        }
+        return (V) root.find(0, hash(key), key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * returns a map with the key mapped to the value, sharing structure with
+     * this one
+     */
+    PersistentHashTrie<K, V> plus(K key, V value) {
+        return plus(null, key, value);
+    }
+
+    /**
+     * returns a map without the key, sharing structure with this one
+     */
+    PersistentHashTrie<K, V> minus(Object key) {
+        return minus(null, key);
+    }
+
+    /**
+     * as plus(key, value), but changes nodes created under the same edit
+     * token in place. Returns this map itself if it too was created under the
+     * token, or if the key was already mapped to the value
+     *
+     * @param edit
+     *            - the edit token of the current run of changes, or null
+     */
+    PersistentHashTrie<K, V> plus(Object edit, K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("PersistentHashTrie does not hold null keys or values");
+        }
+        Box added = new Box();
+        Node start = root != null ? root : BitmapNode.EMPTY;
+        Node newRoot = start.put(edit, 0, hash(key), key, value, added);
+        if (newRoot == root && !added.changed) {
+            return this;
+        }
+        return with(edit, newRoot, added.changed ? size + 1 : size);
+    }
+
+    /**
+     * as minus(key), but changes nodes created under the same edit token in
+     * place
+     *
+     * @param edit
+     *            - the edit token of the current run of changes, or null
+     */
+    PersistentHashTrie<K, V> minus(Object edit, Object key) {
+        if (root == null || key == null) {
+            return this;
+        }
+        Box removed = new Box();
+        Node newRoot = root.remove(edit, 0, hash(key), key, removed);
+        if (!removed.changed) {
+            return this;
+        }
+        return with(edit, newRoot, size - 1);
+    }
+
+    private PersistentHashTrie<K, V> with(Object edit, Node newRoot, int newSize) {
+        if (edit != null && this.edit == edit) {
+            this.root = newRoot;
+            this.size = newSize;
+            return this;
+        }
+        return new PersistentHashTrie<K, V>(edit, newRoot, newSize);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return PersistentHashTrie.this.iterator(EntryIterator.ENTRIES);
+            }
+
+            @Override
+            public Spliterator<Map.Entry<K, V>> spliterator() {
+                return new EntrySpliterator<K, V>(root == null ? new Object[0] : root.array, size);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * a view of the keys, whose iterator allocates nothing per key
+     */
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                return PersistentHashTrie.this.iterator(EntryIterator.KEYS);
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * a view of the values, whose iterator allocates nothing per value
+     */
+    @Override
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return PersistentHashTrie.this.iterator(EntryIterator.VALUES);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private <T> Iterator<T> iterator(int mode) {
+        return new EntryIterator<T>(root == null ? null : root.array, 0, root == null ? 0 : root.array.length, mode);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * records whether a put added a new key, or a remove found its key
+     */
+    private static final class Box {
+        boolean changed;
+    }
+
+    /**
+     * a trie node. Its array holds key/value pairs; in a BitmapNode a null
+     * key marks a slot whose value is the sub-node for that slot
+     */
+    private abstract static class Node {
+        Object edit;
+        Object[] array;
+
+        Node(Object edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value, Box added);
+
+        /**
+         * returns the node without the key, or null if the node would be
+         * left empty
+         */
+        abstract Node remove(Object edit, int shift, int hash, Object key, Box removed);
+    }
+
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit, array);
+            this.bitmap = bitmap;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private BitmapNode editable(Object edit) {
+            if (edit != null && this.edit == edit) {
+                return this;
+            }
+            return new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                return ((Node) array[i + 1]).find(shift + 5, hash, key);
+            }
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, Box added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[i];
+                Object v = array[i + 1];
+                if (k == null) {
+                    Node sub = ((Node) v).put(edit, shift + 5, hash, key, value, added);
+                    if (sub == v) {
+                        return this;
+                    }
+                    BitmapNode node = editable(edit);
+                    node.array[i + 1] = sub;
+                    return node;
+                }
+                if (key.equals(k)) {
+                    if (v == value) {
+                        return this;
+                    }
+                    BitmapNode node = editable(edit);
+                    node.array[i + 1] = value;
+                    return node;
+                }
+                added.changed = true;
+                Node sub = pair(edit, shift + 5, k, v, hash, key, value);
+                BitmapNode node = editable(edit);
+                node.array[i] = null;
+                node.array[i + 1] = sub;
+                return node;
+            }
+            added.changed = true;
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, i);
+            grown[i] = key;
+            grown[i + 1] = value;
+            System.arraycopy(array, i, grown, i + 2, array.length - i);
+            if (edit != null && this.edit == edit) {
+                this.array = grown;
+                this.bitmap |= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, grown);
+        }
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key, Box removed) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = 2 * index(bit);
+            Object k = array[i];
+            if (k == null) {
+                Node sub = (Node) array[i + 1];
+                Node shrunk = sub.remove(edit, shift + 5, hash, key, removed);
+                if (shrunk == sub) {
+                    return this;
+                }
+                if (shrunk != null) {
+                    BitmapNode node = editable(edit);
+                    if (shrunk.array.length == 2 && shrunk.array[0] != null) {
+                        // a sub-node left holding a single key is folded
+                        // back into this slot
+                        node.array[i] = shrunk.array[0];
+                        node.array[i + 1] = shrunk.array[1];
+                    } else {
+                        node.array[i + 1] = shrunk;
+                    }
+                    return node;
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            } else {
+                removed.changed = true;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (edit != null && this.edit == edit) {
+                this.array = shrunk;
+                this.bitmap ^= bit;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, shrunk);
+        }
+
+        /**
+         * returns a node holding two keys that fall in the same slot at the
+         * level above
+         */
+        private static Node pair(Object edit, int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+            int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(edit, hash1, new Object[] { key1, value1, key2, value2 });
+            }
+            Box ignored = new Box();
+            return EMPTY.put(edit, shift, hash1, key1, value1, ignored).put(edit, shift, hash2, key2, value2, ignored);
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit, array);
+            this.hash = hash;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value, Box added) {
+            if (hash != this.hash) {
+                // the new key differs somewhere below this level, so this
+                // node moves down under a bitmap node
+                BitmapNode parent = new BitmapNode(edit, 1 << ((this.hash >>> shift) & 31), new Object[] { null, this });
+                return parent.put(edit, shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            Object[] changed;
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                changed = array.clone();
+                changed[i + 1] = value;
+            } else {
+                added.changed = true;
+                changed = new Object[array.length + 2];
+                System.arraycopy(array, 0, changed, 0, array.length);
+                changed[array.length] = key;
+                changed[array.length + 1] = value;
+            }
+            if (edit != null && this.edit == edit) {
+                this.array = changed;
+                return this;
+            }
+            return new CollisionNode(edit, hash, changed);
+        }
+
+        @Override
+        Node remove(Object edit, int shift, int hash, Object key, Box removed) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+            removed.changed = true;
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (edit != null && this.edit == edit) {
+                this.array = shrunk;
+                return this;
+            }
+            return new CollisionNode(edit, hash, shrunk);
+        }
+    }
+
+    /**
+     * walks the trie depth-first, keeping the path from the root as a stack
+     * of node arrays and positions. The walk may be limited to a range of
+     * slots of the node it starts from. It yields entries, or, without
+     * allocating anything per pair, just the keys or just the values
+     */
+    private static final class EntryIterator<T> implements Iterator<T> {
+
+        static final int ENTRIES = 0;
+        static final int KEYS = 1;
+        static final int VALUES = 2;
+
+        // seven bitmap levels cover the 32-bit hash, plus one collision level
+        private final Object[][] arrays = new Object[8][];
+        private final int[] positions = new int[8];
+        private final int end;
+        private final int mode;
+        private int depth = -1;
+        private Object next;
+
+        /**
+         * @param array
+         *            - the array of the node to start from, or null
+         * @param from
+         *            - the array index of the first key/value pair to visit
+         * @param to
+         *            - the array index just past the last pair to visit
+         * @param mode
+         *            - ENTRIES, KEYS or VALUES
+         */
+        EntryIterator(Object[] array, int from, int to, int mode) {
+            this.end = to;
+            this.mode = mode;
+            if (array != null) {
+                depth = 0;
+                arrays[0] = array;
+                positions[0] = from;
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int i = positions[depth];
+                if (i >= (depth == 0 ? end : array.length)) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = i + 2;
+                if (array[i] == null) {
+                    depth++;
+                    arrays[depth] = ((Node) array[i + 1]).array;
+                    positions[depth] = 0;
+                } else {
+                    next = mode == KEYS ? array[i] : mode == VALUES ? array[i + 1]
+                            : new AbstractMap.SimpleImmutableEntry<Object, Object>(array[i], array[i + 1]);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Object element = next;
+            advance();
+            return (T) element;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * splits the entries by the slots of the trie's nodes: a range of slots
+     * is halved, and a range holding a single sub-node is replaced by the
+     * sub-node's own slots. The size of each part is estimated by halving,
+     * as the trie does not count the entries below each node
+     */
+    private static final class EntrySpliterator<K, V> implements Spliterator<Map.Entry<K, V>> {
+
+        private Object[] array;
+        private int from;
+        private int to;
+        private long estimate;
+        private EntryIterator<Map.Entry<K, V>> walk;
+
+        EntrySpliterator(Object[] array, long estimate) {
+            this(array, 0, array.length, estimate);
+        }
+
+        private EntrySpliterator(Object[] array, int from, int to, long estimate) {
+            this.array = array;
+            this.from = from;
+            this.to = to;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            if (walk == null) {
+                walk = new EntryIterator<Map.Entry<K, V>>(array, from, to, EntryIterator.ENTRIES);
+            }
+            if (!walk.hasNext()) {
+                return false;
+            }
+            action.accept(walk.next());
+            return true;
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            if (walk != null) {
+                return null;
+            }
+            while (to - from == 2 && array[from] == null) {
+                array = ((Node) array[from + 1]).array;
+                from = 0;
+                to = array.length;
+            }
+            int pairs = (to - from) / 2;
+            if (pairs < 2) {
+                return null;
+            }
+            int middle = from + (pairs / 2) * 2;
+            estimate >>>= 1;
+            EntrySpliterator<K, V> prefix = new EntrySpliterator<K, V>(array, from, middle, estimate);
+            from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL | IMMUTABLE;
+        }
+    }
+}
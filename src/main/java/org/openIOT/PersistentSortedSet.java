@@ -0,0 +1,345 @@
+package org.openIOT;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/* LICENCE INFORMATION for org.openIOT.PersistentSortedSet.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Immutable sorted set sharing structure between versions
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * An immutable sorted set, held as an AVL tree: by default a set of strings
+ * in lexicographic (String.compareTo) order. Adding or removing an element
+ * copies only the nodes on the path to it, O(log n) of them, and shares the
+ * rest of the tree with the previous version, which stays valid and
+ * unchanged.
+ * <p>
+ * Each node records the size of its subtree, so the number of elements in
+ * any range is counted in O(log n) without visiting them. Ranges are
+ * half-open: from (inclusive) to (exclusive), with null standing for no
+ * bound.
+ */
+final class PersistentSortedSet<E> {
+
+    private static final PersistentSortedSet<String> EMPTY = new PersistentSortedSet<String>(Comparator.<String> naturalOrder(), null);
+
+    private final Comparator<? super E> comparator;
+    private final Node root;
+
+    private PersistentSortedSet(Comparator<? super E> comparator, Node root) {
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    /**
+     * returns the empty set of strings
+     */
+    static PersistentSortedSet<String> empty() {
+        return EMPTY;
+    }
+
+    /**
+     * returns an empty set ordered by the given comparator
+     */
+    static <E> PersistentSortedSet<E> empty(Comparator<? super E> comparator) {
+        return new PersistentSortedSet<E>(comparator, null);
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    boolean contains(E key) {
+        Node n = root;
+        while (n != null) {
+            int c = compare(key, n.key);
+            if (c == 0) {
+                return true;
+            }
+            n = c < 0 ? n.left : n.right;
+        }
+        return false;
+    }
+
+    /**
+     * returns a set with the key added, or this set if it already holds it
+     */
+    PersistentSortedSet<E> plus(E key) {
+        Node added = insert(root, key);
+        return added == root ? this : new PersistentSortedSet<E>(comparator, added);
+    }
+
+    /**
+     * returns a set without the key, or this set if it does not hold it
+     */
+    PersistentSortedSet<E> minus(E key) {
+        Node removed = delete(root, key);
+        return removed == root ? this : new PersistentSortedSet<E>(comparator, removed);
+    }
+
+    /**
+     * returns the number of elements in the range [from, to)
+     */
+    int count(E from, E to) {
+        int upper = to == null ? size(root) : rank(to);
+        int lower = from == null ? 0 : rank(from);
+        return Math.max(0, upper - lower);
+    }
+
+    /**
+     * iterates, in order, over the elements in the range [from, to)
+     */
+    Iterator<E> range(E from, E to) {
+        return new RangeIterator(from, to);
+    }
+
+    /**
+     * iterates over every element, from the greatest to the least
+     */
+    Iterator<E> descendingIterator() {
+        return new DescendingIterator();
+    }
+
+    /**
+     * returns the exclusive upper bound of the range of strings starting with
+     * the prefix: the shortest string greater than all of them, or null if
+     * there is none
+     */
+    static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * the number of elements less than the key
+     */
+    private int rank(E key) {
+        int rank = 0;
+        Node n = root;
+        while (n != null) {
+            if (compare(key, n.key) <= 0) {
+                n = n.left;
+            } else {
+                rank += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return rank;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(E key, Object nodeKey) {
+        return comparator.compare(key, (E) nodeKey);
+    }
+
+    private static final class Node {
+        final Object key;
+        final Node left;
+        final Node right;
+        final int height;
+        final int size;
+
+        Node(Object key, Node left, Node right) {
+            this.key = key;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    private static int height(Node n) {
+        return n == null ? 0 : n.height;
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private Node insert(Node n, E key) {
+        if (n == null) {
+            return new Node(key, null, null);
+        }
+        int c = compare(key, n.key);
+        if (c == 0) {
+            return n;
+        }
+        if (c < 0) {
+            Node left = insert(n.left, key);
+            return left == n.left ? n : balance(n.key, left, n.right);
+        }
+        Node right = insert(n.right, key);
+        return right == n.right ? n : balance(n.key, n.left, right);
+    }
+
+    private Node delete(Node n, E key) {
+        if (n == null) {
+            return null;
+        }
+        int c = compare(key, n.key);
+        if (c < 0) {
+            Node left = delete(n.left, key);
+            return left == n.left ? n : balance(n.key, left, n.right);
+        }
+        if (c > 0) {
+            Node right = delete(n.right, key);
+            return right == n.right ? n : balance(n.key, n.left, right);
+        }
+        if (n.left == null) {
+            return n.right;
+        }
+        if (n.right == null) {
+            return n.left;
+        }
+        Node successor = n.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.key, n.left, deleteFirst(n.right));
+    }
+
+    private static Node deleteFirst(Node n) {
+        if (n.left == null) {
+            return n.right;
+        }
+        return balance(n.key, deleteFirst(n.left), n.right);
+    }
+
+    /**
+     * builds a node from two subtrees whose heights differ by at most two,
+     * rotating to restore the AVL balance
+     */
+    private static Node balance(Object key, Node left, Node right) {
+        int hl = height(left);
+        int hr = height(right);
+        if (hl > hr + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node(left.key, left.left, new Node(key, left.right, right));
+            }
+            Node lr = left.right;
+            return new Node(lr.key, new Node(left.key, left.left, lr.left), new Node(key, lr.right, right));
+        }
+        if (hr > hl + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node(right.key, new Node(key, left, right.left), right.right);
+            }
+            Node rl = right.left;
+            return new Node(rl.key, new Node(key, left, rl.left), new Node(right.key, rl.right, right.right));
+        }
+        return new Node(key, left, right);
+    }
+
+    /**
+     * reverse in-order walk, the mirror image of RangeIterator over the whole
+     * set
+     */
+    private final class DescendingIterator implements Iterator<E> {
+
+        private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+
+        DescendingIterator() {
+            for (Node n = root; n != null; n = n.right) {
+                stack.push(n);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node n = stack.pop();
+            for (Node m = n.left; m != null; m = m.right) {
+                stack.push(m);
+            }
+            return (E) n.key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * in-order walk from the first element not less than from, keeping the
+     * path of nodes still to visit on a stack
+     */
+    private final class RangeIterator implements Iterator<E> {
+
+        private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        private final E to;
+
+        RangeIterator(E from, E to) {
+            this.to = to;
+            Node n = root;
+            while (n != null) {
+                if (from == null || compare(from, n.key) <= 0) {
+                    stack.push(n);
+                    n = n.left;
+                } else {
+                    n = n.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty() && (to == null || compare(to, stack.peek().key) > 0);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node n = stack.pop();
+            for (Node m = n.right; m != null; m = m.left) {
+                stack.push(m);
+            }
+            return (E) n.key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/* LICENCE INFORMATION for org.openIOT.RangeIndex.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Typed range index over the vals of one rel
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * A sorted index over the vals of one rel, read as numbers or times (see
+ * RangeIndexType). Each relation with the rel is held as a (key, href) pair
+ * in a PersistentSortedSet ordered by key and then href, so the items whose
+ * vals lie in a range are found in O(log n + k) time, and no val is parsed
+ * after the item carrying it is indexed. An index is immutable; adding and
+ * removing pairs returns a new version sharing most of the tree.
+ */
+final class RangeIndex {
+
+    private static final Comparator<Key> ORDER = new Comparator<Key>() {
+        public int compare(Key a, Key b) {
+            int c = Long.compare(a.key, b.key);
+            return c != 0 ? c : a.href.compareTo(b.href);
+        }
+    };
+
+    final RangeIndexType type;
+    private final PersistentSortedSet<Key> keys;
+
+    RangeIndex(RangeIndexType type) {
+        this(type, PersistentSortedSet.empty(ORDER));
+    }
+
+    private RangeIndex(RangeIndexType type, PersistentSortedSet<Key> keys) {
+        this.type = type;
+        this.keys = keys;
+    }
+
+    /**
+     * returns the number of (key, href) pairs held
+     */
+    int size() {
+        return keys.size();
+    }
+
+    /**
+     * returns the hrefs of the items with a val whose key lies between min
+     * and max inclusive, in order of key. An item with several vals in the
+     * range is listed once for each
+     */
+    List<String> hrefsInRange(long min, long max) {
+        List<String> hrefs = new ArrayList<String>();
+        if (min > max) {
+            return hrefs;
+        }
+        // "" is the least href, so (min, "") is the first pair with key min
+        Key to = max == Long.MAX_VALUE ? null : new Key(max + 1, "");
+        Iterator<Key> it = keys.range(new Key(min, ""), to);
+        while (it.hasNext()) {
+            hrefs.add(it.next().href);
+        }
+        return hrefs;
+    }
+
+    /**
+     * iterates over the hrefs of the items in order of key (and of href
+     * among equal keys), or in reverse order if descending. An item with
+     * several indexed vals appears once for each
+     */
+    Iterator<String> hrefsInOrder(boolean descending) {
+        final Iterator<Key> it = descending ? keys.descendingIterator() : keys.range(null, null);
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return it.next().href;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * returns an index also holding the item's vals for this index's rel
+     */
+    RangeIndex plus(String rel, String href, List<Relation> relations) {
+        PersistentSortedSet<Key> next = keys;
+        for (int i = 0; i < relations.size(); i++) {
+            Key key = key(rel, href, relations.get(i));
+            if (key != null) {
+                next = next.plus(key);
+            }
+        }
+        return next == keys ? this : new RangeIndex(type, next);
+    }
+
+    /**
+     * returns an index no longer holding the item's vals for this index's
+     * rel
+     */
+    RangeIndex minus(String rel, String href, List<Relation> relations) {
+        PersistentSortedSet<Key> next = keys;
+        for (int i = 0; i < relations.size(); i++) {
+            Key key = key(rel, href, relations.get(i));
+            if (key != null) {
+                next = next.minus(key);
+            }
+        }
+        return next == keys ? this : new RangeIndex(type, next);
+    }
+
+    private Key key(String rel, String href, Relation relation) {
+        if (!rel.equals(relation.getRel())) {
+            return null;
+        }
+        Long key = type.keyOrNull(relation.getVal());
+        return key == null ? null : new Key(key.longValue(), href);
+    }
+
+    /**
+     * one indexed val: its key, and the href of the item carrying it
+     */
+    private static final class Key {
+        final long key;
+        final String href;
+
+        Key(long key, String href) {
+            this.key = key;
+            this.href = href;
+        }
+    }
+}
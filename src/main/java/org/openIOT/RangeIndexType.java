@@ -0,0 +1,113 @@
+package org.openIOT;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/* LICENCE INFORMATION for org.openIOT.RangeIndexType.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Value types for the typed range indexes of a Hypercat
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * The type of the vals held in a range index (see
+ * Hypercat.declareRangeIndex). Each type converts the val strings of a rel to
+ * long keys whose order is the order of the values, once, when an item is
+ * indexed; vals that are not valid for the type are left out of the index.
+ */
+public enum RangeIndexType {
+
+    /**
+     * whole numbers, as read by Long.parseLong
+     */
+    LONG {
+        @Override
+        long key(String val) {
+            return Long.parseLong(val.trim());
+        }
+    },
+
+    /**
+     * decimal numbers, as read by Double.parseDouble. NaN is not indexed
+     */
+    DOUBLE {
+        @Override
+        long key(String val) {
+            double d = Double.parseDouble(val.trim());
+            if (Double.isNaN(d)) {
+                throw new NumberFormatException("NaN");
+            }
+            return doubleKey(d);
+        }
+    },
+
+    /**
+     * ISO-8601 date-times with an offset or 'Z' (eg 2014-06-24T09:30:00Z),
+     * keyed by milliseconds since the epoch
+     */
+    TIME {
+        @Override
+        long key(String val) {
+            return DateTimeFormatter.ISO_OFFSET_DATE_TIME.parse(val.trim(), Instant::from).toEpochMilli();
+        }
+    };
+
+    /**
+     * converts a val to its key
+     *
+     * @throws NumberFormatException
+     *             - if the val is not a number of the type
+     * @throws DateTimeParseException
+     *             - if the val is not an ISO-8601 date-time
+     */
+    abstract long key(String val);
+
+    /**
+     * returns the key of a val, or null if the val is not valid for the
+     * type
+     */
+    Long keyOrNull(String val) {
+        if (val == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(key(val));
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * maps a double to a long such that the longs are ordered as the doubles
+     * are: negative doubles have their magnitude bits flipped. -0.0 is keyed
+     * as 0.0
+     */
+    static long doubleKey(double d) {
+        long bits = Double.doubleToLongBits(d + 0.0);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+}
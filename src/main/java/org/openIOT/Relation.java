@@ -47,7 +47,19 @@ import java.util.LinkedHashMap;
  * example: item-metadata":{ "rel": "urn:X-tsbiot:rels:isContentType", "val": "
  * application/vnd.tsbiot.catalogue+json"}
  * 
- * This class represents a single metadata Relation
+ * This class represents a single metadata Relation. Two Relations are equal
+ * when their rel and val are equal.
+ * <p>
+ * The rel and val strings of every Relation are interned through
+ * RelationVocabulary, and the Relations built when parsing are shared between
+ * all items carrying the same rel and val. Shared Relations cannot be changed
+ * through setRel or setVal; to change an item's metadata, replace the
+ * relation instead.
+ * <p>
+ * The rel and val fields stay public for compatibility with code written
+ * against earlier versions, but must be treated as read-only: assigning them
+ * on a shared Relation bypasses the check in setRel and setVal and changes
+ * the relation for every item holding it. Use getRel and getVal to read them.
  * 
  * 
  * @author jdj
@@ -55,15 +67,20 @@ import java.util.LinkedHashMap;
  */
 public class Relation {
 
+    // public for compatibility only; never assigned directly (see above)
     public String rel; //eg"urn:X-tsbiot:rels:isContentType"- name of relation
     public String val; //eg "application/vnd.tsbiot.catalogue+json" MUST be a URI
 
+    // true for the instances handed out by RelationVocabulary, which may be
+    // held by many items at once
+    private final boolean shared;
+
     /**
      * default constructor required by Jackson
      * 
      */
     public Relation() {
-
+        this.shared = false;
     }
 
     /**
@@ -77,8 +94,18 @@ public class Relation {
      *             eg "Example Hypercat with three items"
      */
     public Relation(String rel, String val) {
+        this.rel = RelationVocabulary.internRel(rel);
+        this.val = RelationVocabulary.internVal(this.rel, val);
+        this.shared = false;
+    }
+
+    /**
+     * constructor for RelationVocabulary, whose strings are already interned
+     */
+    Relation(String rel, String val, boolean shared) {
         this.rel = rel;
         this.val = val;
+        this.shared = shared;
     }
 
     public String toString() {
@@ -86,12 +113,30 @@ public class Relation {
 
     }
 
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Relation)) {
+            return false;
+        }
+        Relation other = (Relation) o;
+        return (rel == null ? other.rel == null : rel.equals(other.rel))
+                && (val == null ? other.val == null : val.equals(other.val));
+    }
+
+    public int hashCode() {
+        int hash = (rel == null ? 0 : rel.hashCode());
+        return 31 * hash + (val == null ? 0 : val.hashCode());
+    }
+
     public String getRel() {
         return rel;
     }
 
     public void setRel(String rel) {
-        this.rel = rel;
+        checkNotShared();
+        this.rel = RelationVocabulary.internRel(rel);
     }
 
     public String getVal() {
@@ -99,6 +144,13 @@ public class Relation {
     }
 
     public void setVal(String val) {
-        this.val = val;
+        checkNotShared();
+        this.val = RelationVocabulary.internVal(this.rel, val);
+    }
+
+    private void checkNotShared() {
+        if (shared) {
+            throw new UnsupportedOperationException("shared Relation " + this + " cannot be changed; replace it instead");
+        }
     }
 }
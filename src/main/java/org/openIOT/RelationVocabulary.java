@@ -0,0 +1,176 @@
+package org.openIOT;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* LICENCE INFORMATION for org.openIOT.RelationVocabulary.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Shared dictionary of rel and val strings, and of Relation instances
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * A process-wide dictionary of the rel and val strings used by metadata
+ * Relations. Across a large catalogue the same few rel URNs, and a small set
+ * of vals (content-types, units and so on), are repeated for every item; the
+ * dictionary lets all of those Relations share one copy of each string, and
+ * lets identical (rel, val) pairs share one Relation instance.
+ * <p>
+ * rel strings are always interned. vals are interned, and (rel, val) pairs
+ * shared, except for rels registered as free text (by default
+ * urn:X-tsbiot:rels:hasDescription:en and the wgs84_pos lat and long rels),
+ * whose vals are expected to differ from item to item. To keep the dictionary from growing without limit, each table
+ * stops taking new entries once it holds MAX_ENTRIES; strings and pairs seen
+ * after that are simply not shared.
+ */
+public final class RelationVocabulary {
+
+    /**
+     * the most entries each of the dictionary's tables will hold
+     */
+    public static final int MAX_ENTRIES = 1 << 16;
+
+    private static final ConcurrentHashMap<String, String> rels = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentHashMap<String, String> vals = new ConcurrentHashMap<String, String>();
+    // keyed by the pair's strings rather than by the Relation itself, whose
+    // public fields could be assigned while it is held here
+    private static final ConcurrentHashMap<Pair, Relation> relations = new ConcurrentHashMap<Pair, Relation>();
+    private static final Set<String> freeTextRels = ConcurrentHashMap.newKeySet();
+    static {
+        freeTextRels.add("urn:X-tsbiot:rels:hasDescription:en");
+        freeTextRels.add(GeoIndex.LAT_REL);
+        freeTextRels.add(GeoIndex.LONG_REL);
+    }
+
+    private RelationVocabulary() {
+    }
+
+    /**
+     * returns the dictionary's copy of a rel string
+     */
+    public static String internRel(String rel) {
+        return intern(rels, rel);
+    }
+
+    /**
+     * returns the dictionary's copy of a val string, unless the val belongs
+     * to a free-text rel, in which case it is returned as it is
+     *
+     * @param rel
+     *            - the rel the val is paired with
+     * @param val
+     *            - the val to intern
+     */
+    public static String internVal(String rel, String val) {
+        if (rel != null && freeTextRels.contains(rel)) {
+            return val;
+        }
+        return intern(vals, val);
+    }
+
+    /**
+     * returns a shared, unmodifiable Relation for the given rel and val. For
+     * free-text rels, or once the dictionary is full, a new (still
+     * unmodifiable) Relation with interned strings is returned instead
+     *
+     * @param rel
+     *            - the REL label of the relation
+     * @param val
+     *            - the value of the relation
+     */
+    public static Relation relation(String rel, String val) {
+        String internedRel = internRel(rel);
+        String internedVal = internVal(internedRel, val);
+        Relation candidate = new Relation(internedRel, internedVal, true);
+        if (rel == null || val == null || freeTextRels.contains(internedRel)) {
+            return candidate;
+        }
+        Pair pair = new Pair(internedRel, internedVal);
+        Relation shared = relations.get(pair);
+        if (shared != null) {
+            if (internedRel.equals(shared.getRel()) && internedVal.equals(shared.getVal())) {
+                return shared;
+            }
+            // its public fields have been assigned: share a new instance
+            // from now on
+            relations.replace(pair, shared, candidate);
+            return candidate;
+        }
+        if (relations.size() >= MAX_ENTRIES) {
+            return candidate;
+        }
+        shared = relations.putIfAbsent(pair, candidate);
+        return shared != null ? shared : candidate;
+    }
+
+    /**
+     * an immutable (rel, val) key for the table of shared Relations
+     */
+    private static final class Pair {
+        private final String rel;
+        private final String val;
+
+        Pair(String rel, String val) {
+            this.rel = rel;
+            this.val = val;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Pair)) {
+                return false;
+            }
+            Pair other = (Pair) o;
+            return rel.equals(other.rel) && val.equals(other.val);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * rel.hashCode() + val.hashCode();
+        }
+    }
+
+    /**
+     * registers a rel whose vals are free text, and so should not be
+     * interned or shared
+     */
+    public static void addFreeTextRel(String rel) {
+        freeTextRels.add(rel);
+    }
+
+    private static String intern(ConcurrentHashMap<String, String> table, String s) {
+        if (s == null) {
+            return null;
+        }
+        String interned = table.get(s);
+        if (interned != null) {
+            return interned;
+        }
+        if (table.size() >= MAX_ENTRIES) {
+            return s;
+        }
+        interned = table.putIfAbsent(s, s);
+        return interned != null ? interned : s;
+    }
+}
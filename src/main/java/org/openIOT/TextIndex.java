@@ -0,0 +1,310 @@
+package org.openIOT;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/* LICENCE INFORMATION for org.openIOT.TextIndex.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Full-text index over the descriptions of a Hypercat's items
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * An inverted index from the words in the vals of chosen rels (by default
+ * urn:X-tsbiot:rels:hasDescription:en) to the items whose vals contain them,
+ * for keyword search ranked by relevance.
+ * <p>
+ * A val is split into words at every character that is not a letter or
+ * digit, and the words are lower-cased; the same is done to the search text.
+ * Each word maps to the hrefs of the items containing it, with the number of
+ * times each contains it, and the number of words each item holds is kept
+ * for length normalisation. Matches are scored with Okapi BM25, so an item
+ * ranks higher for containing more of the search words, for containing rarer
+ * ones, and for being shorter.
+ * <p>
+ * Like HypercatIndex, the index is immutable and its maps are
+ * PersistentHashTries, so an Editor derives the next version by copying only
+ * the postings it changes.
+ */
+final class TextIndex {
+
+    static final String DESCRIPTION_REL = "urn:X-tsbiot:rels:hasDescription:en";
+
+    /**
+     * BM25 term-frequency saturation and length normalisation parameters
+     */
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    static final TextIndex EMPTY = new TextIndex(PersistentHashTrie.<String, String> empty().plus(DESCRIPTION_REL, DESCRIPTION_REL),
+            PersistentHashTrie.<String, PersistentHashTrie<String, Integer>> empty(), PersistentHashTrie.<String, Integer> empty(), 0);
+
+    // the indexed rels, each mapped to itself
+    private final PersistentHashTrie<String, String> rels;
+    // word -> href -> occurrences of the word in the item's indexed vals
+    private final PersistentHashTrie<String, PersistentHashTrie<String, Integer>> postings;
+    // href -> number of words in the item's indexed vals
+    private final PersistentHashTrie<String, Integer> lengths;
+    private final long totalLength;
+
+    private TextIndex(PersistentHashTrie<String, String> rels, PersistentHashTrie<String, PersistentHashTrie<String, Integer>> postings,
+            PersistentHashTrie<String, Integer> lengths, long totalLength) {
+        this.rels = rels;
+        this.postings = postings;
+        this.lengths = lengths;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * returns the indexed rels
+     */
+    Set<String> rels() {
+        return rels.keySet();
+    }
+
+    /**
+     * returns whether the vals of the rel are indexed
+     */
+    boolean indexes(String rel) {
+        return rels.containsKey(rel);
+    }
+
+    /**
+     * returns the hrefs of the items containing at least one of the words of
+     * the text, most relevant first, up to the limit. Items scoring the same
+     * are in order of href
+     */
+    List<String> search(String text, int limit) {
+        if (text == null || limit <= 0 || lengths.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> words = words(text);
+        Map<String, double[]> scores = new HashMap<String, double[]>();
+        double docs = lengths.size();
+        double averageLength = (double) totalLength / docs;
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            PersistentHashTrie<String, Integer> posting = postings.get(word);
+            if (posting == null || words.indexOf(word) < i) {
+                continue;
+            }
+            double df = posting.size();
+            double idf = Math.log(1 + (docs - df + 0.5) / (df + 0.5));
+            for (Map.Entry<String, Integer> match : posting.entrySet()) {
+                double tf = match.getValue();
+                double length = lengths.get(match.getKey());
+                double score = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageLength));
+                double[] total = scores.get(match.getKey());
+                if (total == null) {
+                    scores.put(match.getKey(), new double[] { score });
+                } else {
+                    total[0] += score;
+                }
+            }
+        }
+        return top(scores, limit);
+    }
+
+    /**
+     * the limit best-scoring hrefs, found with a bounded heap whose head is
+     * the worst of those kept so far
+     */
+    private static List<String> top(final Map<String, double[]> scores, int limit) {
+        Comparator<String> worstFirst = new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = Double.compare(scores.get(a)[0], scores.get(b)[0]);
+                return c != 0 ? c : b.compareTo(a);
+            }
+        };
+        PriorityQueue<String> heap = new PriorityQueue<String>(Math.min(limit, Math.max(1, scores.size())), worstFirst);
+        for (String href : scores.keySet()) {
+            if (heap.size() < limit) {
+                heap.add(href);
+            } else if (worstFirst.compare(href, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(href);
+            }
+        }
+        List<String> hrefs = new ArrayList<String>(heap.size());
+        while (!heap.isEmpty()) {
+            hrefs.add(heap.poll());
+        }
+        Collections.reverse(hrefs);
+        return hrefs;
+    }
+
+    /**
+     * splits text into lower-case words at every character that is not a
+     * letter or digit
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i < lower.length();) {
+            int c = lower.codePointAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+            i += Character.charCount(c);
+        }
+        if (start >= 0) {
+            words.add(lower.substring(start));
+        }
+        return words;
+    }
+
+    /**
+     * starts a run of changes to this index under the given edit token
+     */
+    Editor edit(Object token) {
+        return new Editor(this, token);
+    }
+
+    /**
+     * derives a new version of the index. Not thread-safe; used by the
+     * HypercatIndex.Editor that owns it
+     */
+    static final class Editor {
+
+        private final Object token;
+        private PersistentHashTrie<String, String> rels;
+        private PersistentHashTrie<String, PersistentHashTrie<String, Integer>> postings;
+        private PersistentHashTrie<String, Integer> lengths;
+        private long totalLength;
+
+        private Editor(TextIndex base, Object token) {
+            this.token = token;
+            this.rels = base.rels;
+            this.postings = base.postings;
+            this.lengths = base.lengths;
+            this.totalLength = base.totalLength;
+        }
+
+        /**
+         * adds the words of an item's vals for every indexed rel
+         */
+        void indexItem(String href, List<Relation> relations) {
+            index(href, relations, null);
+        }
+
+        /**
+         * adds the words of an item's vals for one rel, which must be indexed
+         */
+        void indexRel(String rel, String href, List<Relation> relations) {
+            index(href, relations, rel);
+        }
+
+        private void index(String href, List<Relation> relations, String onlyRel) {
+            if (relations == null) {
+                return;
+            }
+            int added = 0;
+            for (int i = 0; i < relations.size(); i++) {
+                Relation rel = relations.get(i);
+                if (rel.getVal() == null || !(onlyRel == null ? rels.containsKey(rel.getRel()) : onlyRel.equals(rel.getRel()))) {
+                    continue;
+                }
+                for (String word : words(rel.getVal())) {
+                    PersistentHashTrie<String, Integer> posting = postings.get(word);
+                    if (posting == null) {
+                        posting = PersistentHashTrie.empty();
+                    }
+                    Integer occurrences = posting.get(href);
+                    posting = posting.plus(token, href, occurrences == null ? 1 : occurrences + 1);
+                    postings = postings.plus(token, word, posting);
+                    added++;
+                }
+            }
+            if (added > 0) {
+                Integer length = lengths.get(href);
+                lengths = lengths.plus(token, href, length == null ? added : length + added);
+                totalLength += added;
+            }
+        }
+
+        /**
+         * removes an item, given the metadata it was indexed with
+         */
+        void unindexItem(String href, List<Relation> relations) {
+            Integer length = lengths.get(href);
+            if (length == null || relations == null) {
+                return;
+            }
+            for (int i = 0; i < relations.size(); i++) {
+                Relation rel = relations.get(i);
+                if (rel.getVal() == null || !rels.containsKey(rel.getRel())) {
+                    continue;
+                }
+                for (String word : words(rel.getVal())) {
+                    PersistentHashTrie<String, Integer> posting = postings.get(word);
+                    if (posting != null) {
+                        posting = posting.minus(token, href);
+                        postings = posting.isEmpty() ? postings.minus(token, word) : postings.plus(token, word, posting);
+                    }
+                }
+            }
+            lengths = lengths.minus(token, href);
+            totalLength -= length;
+        }
+
+        /**
+         * adds a rel to those indexed, returning false if it already was. Its
+         * vals are not indexed until the caller indexes the existing items
+         * with indexRel
+         */
+        boolean declare(String rel) {
+            if (rels.containsKey(rel)) {
+                return false;
+            }
+            rels = rels.plus(token, rel, rel);
+            return true;
+        }
+
+        /**
+         * empties the index, keeping the rels it indexes
+         */
+        void clear() {
+            postings = PersistentHashTrie.empty();
+            lengths = PersistentHashTrie.empty();
+            totalLength = 0;
+        }
+
+        TextIndex build() {
+            return new TextIndex(rels, postings, lengths, totalLength);
+        }
+    }
+}
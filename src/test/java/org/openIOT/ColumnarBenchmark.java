@@ -0,0 +1,123 @@
+package org.openIOT;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/* LICENCE INFORMATION for org.openIOT.ColumnarBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Compares the heap used by Hypercat and ColumnarHypercat
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Fills a Hypercat, and then a ColumnarHypercat, with 1M items (by default)
+ * of 8 relations each, some of whose vals are unique to the item and some
+ * shared, and prints the heap each uses per item and the mean time of a
+ * selective query and of fetching an item from the columnar catalogue. Not
+ * run as part of the unit tests; run by hand with
+ * <p>
+ * java -Xmx4g -cp ... org.openIOT.ColumnarBenchmark [items]
+ */
+public class ColumnarBenchmark {
+
+    private static final int REQUESTS = 100;
+
+    private static final String[] KINDS = { "temperature", "humidity", "pressure", "light", "motion" };
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        long before = usedHeap();
+        Hypercat hc = new Hypercat("columnar benchmark");
+        fill(hc, size);
+        System.out.printf("Hypercat: %d bytes per item%n", (usedHeap() - before) / size);
+        hc = null;
+
+        before = usedHeap();
+        ColumnarHypercat columnar = new ColumnarHypercat("columnar benchmark");
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < size; i++) {
+            batch.put(href(i), item(i));
+            if (batch.size() == 10000) {
+                columnar.addItems(batch);
+                batch.clear();
+            }
+        }
+        columnar.addItems(batch);
+        batch = null;
+        System.out.printf("ColumnarHypercat: %d bytes per item%n", (usedHeap() - before) / size);
+
+        HypercatQuery query = HypercatQuery.parse("rel=urn:X-hypercat:rels:owner&val=owner-42 AND val=pressure");
+        long matches = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < REQUESTS; r++) {
+            matches = columnar.search(query).size();
+        }
+        System.out.printf("selective query (%d items): %.3f ms%n", matches, (System.nanoTime() - start) / 1e6 / REQUESTS);
+        start = System.nanoTime();
+        for (int r = 0; r < REQUESTS; r++) {
+            columnar.getItem(href((int) ((r * 7919L) % size)));
+        }
+        System.out.printf("getItem: %.4f ms%n", (System.nanoTime() - start) / 1e6 / REQUESTS);
+    }
+
+    private static void fill(Hypercat hc, int size) {
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < size; i++) {
+            batch.put(href(i), item(i));
+            if (batch.size() == 10000) {
+                hc.addItems(batch);
+                batch.clear();
+            }
+        }
+        hc.addItems(batch);
+    }
+
+    private static String href(int i) {
+        return "http://devices/" + (i % 1000) + "/sensor/" + i;
+    }
+
+    /**
+     * an item with a description, content type, position, kind, unit, owner
+     * and site
+     */
+    private static Item item(int i) {
+        Item item = new Item(href(i), "sensor " + i, "application/json");
+        item.addRelation(new Relation(GeoIndex.LAT_REL, String.valueOf(50 + (i % 100000) / 10000.0)));
+        item.addRelation(new Relation(GeoIndex.LONG_REL, String.valueOf((i / 100000) / 100.0)));
+        item.addRelation(new Relation("urn:X-hypercat:rels:kind", KINDS[i % KINDS.length]));
+        item.addRelation(new Relation("urn:X-hypercat:rels:unit", i % 2 == 0 ? "celsius" : "percent"));
+        item.addRelation(new Relation("urn:X-hypercat:rels:owner", "owner-" + (i % 1000)));
+        item.addRelation(new Relation("urn:X-hypercat:rels:site", "site-" + (i % 10000)));
+        return item;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
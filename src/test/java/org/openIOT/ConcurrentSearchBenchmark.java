@@ -0,0 +1,98 @@
+package org.openIOT;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* LICENCE INFORMATION for org.openIOT.ConcurrentSearchBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Measures search throughput against reader thread count
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Read-scaling benchmark for a shared Hypercat. Builds a catalogue, then runs
+ * href and rel&amp;val searches from 1, 2, 4 ... threads (up to the number of
+ * cores) while one extra thread keeps adding and removing items, and prints
+ * searches per second for each thread count. Since reads take no locks,
+ * throughput should grow with the number of reader threads until the cores
+ * run out. Not run as part of the unit tests; run by hand with
+ * <p>
+ * java -cp ... org.openIOT.ConcurrentSearchBenchmark [items] [seconds]
+ */
+public class ConcurrentSearchBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final Hypercat hc = new Hypercat("concurrent search benchmark");
+        for (int i = 0; i < itemCount; i++) {
+            String href = "http://devices/sensor/" + i;
+            Item item = new Item(href, "sensor " + i, "application/json");
+            item.addRelation(new Relation("urn:X-hypercat:rels:isLocatedIn", "site" + (i % 1000)));
+            hc.addItem(item, href);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("items=" + itemCount + " cores=" + cores);
+        System.out.println("readers  searches/s");
+        for (int readers = 1; readers <= Math.max(cores, 1); readers *= 2) {
+            System.out.printf("%-8d %d%n", readers, run(hc, itemCount, readers, seconds));
+        }
+    }
+
+    private static long run(final Hypercat hc, final int itemCount, int readers, int seconds) throws InterruptedException {
+        final AtomicLong searches = new AtomicLong();
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        Thread[] threads = new Thread[readers + 1];
+        for (int t = 0; t < readers; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    long n = 0;
+                    for (int i = seed; System.nanoTime() < end; i += 7) {
+                        hc.searchCat("href=http://devices/sensor/" + (i % itemCount));
+                        hc.searchCat("rel=urn:X-hypercat:rels:isLocatedIn&val=site" + (i % 1000));
+                        n += 2;
+                    }
+                    searches.addAndGet(n);
+                }
+            });
+        }
+        threads[readers] = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; System.nanoTime() < end; i++) {
+                    String href = "http://devices/new/" + i;
+                    hc.addItem(new Item(href, "new sensor", "application/json"), href);
+                    hc.removeItem(href);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return searches.get() / seconds;
+    }
+}
@@ -0,0 +1,91 @@
+package org.openIOT;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/* LICENCE INFORMATION for org.openIOT.FacetBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Times facet counts over the whole catalogue and over search results
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Times facet counts by rel and by content type, over the whole of a
+ * catalogue of 1M items (by default) and over the matches of queries
+ * selecting a tenth and a thousandth of them, and prints the mean time per request. Not run
+ * as part of the unit tests; run by hand with
+ * <p>
+ * java -Xmx4g -cp ... org.openIOT.FacetBenchmark [items]
+ */
+public class FacetBenchmark {
+
+    private static final int REQUESTS = 100;
+
+    private static final String KIND = "urn:X-hypercat:rels:kind";
+    private static final String CONTENT_TYPE = "urn:X-tsbiot:rels:isContentType";
+    private static final String[] CONTENT_TYPES = { "application/json", "text/csv", "application/xml", "text/plain" };
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Hypercat hc = new Hypercat("facet benchmark");
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < size; i++) {
+            String href = "http://devices/sensor/" + i;
+            Item item = new Item(href, "temperature sensor " + i, CONTENT_TYPES[i % CONTENT_TYPES.length]);
+            item.addRelation(new Relation(KIND, "kind-" + (i % 10)));
+            batch.put(href, item);
+            if (batch.size() == 100000) {
+                hc.addItems(batch);
+                batch.clear();
+            }
+        }
+        hc.addItems(batch);
+        HypercatQuery tenth = HypercatQuery.relVal(KIND, "kind-3");
+        HypercatQuery narrow = HypercatQuery.hrefPrefix("http://devices/sensor/123");
+
+        // the first rounds warm up the JIT
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                hc.facetRels(null);
+                hc.facetVals(null, CONTENT_TYPE, 10);
+            }
+            long whole = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                hc.facetRels(tenth);
+                hc.facetVals(tenth, CONTENT_TYPE, 10);
+            }
+            long filtered = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                hc.facetRels(narrow);
+                hc.facetVals(narrow, CONTENT_TYPE, 10);
+            }
+            long narrowed = System.nanoTime() - start;
+            System.out.printf("items=%d  whole catalogue: %.3f ms/request  a tenth: %.3f ms/request  a thousandth: %.3f ms/request%n", size,
+                    whole / 1e6 / REQUESTS, filtered / 1e6 / REQUESTS, narrowed / 1e6 / REQUESTS);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.openIOT;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/* LICENCE INFORMATION for org.openIOT.GeoSearchBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Times bounding-box and radius searches against the spatial index
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Times Hypercat.searchRadius (2km) and Hypercat.searchBoundingBox (about
+ * 4km square) at random points over a catalogue of 1M items (by default)
+ * spread across a 10 by 10 degree area, and prints the mean time per search.
+ * Not run as part of the unit tests; run by hand with
+ * <p>
+ * java -Xmx4g -cp ... org.openIOT.GeoSearchBenchmark [items]
+ */
+public class GeoSearchBenchmark {
+
+    private static final int SEARCHES = 10000;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Random random = new Random(13);
+        Hypercat hc = new Hypercat("geo search benchmark");
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < size; i++) {
+            String href = "http://devices/sensor/" + i;
+            Item item = new Item(href, "temperature sensor " + i, "application/json");
+            item.addRelation(new Relation(GeoIndex.LAT_REL, Double.toString(50 + 10 * random.nextDouble())));
+            item.addRelation(new Relation(GeoIndex.LONG_REL, Double.toString(-5 + 10 * random.nextDouble())));
+            batch.put(href, item);
+            if (batch.size() == 100000) {
+                hc.addItems(batch);
+                batch.clear();
+            }
+        }
+        hc.addItems(batch);
+
+        // the first rounds warm up the JIT
+        for (int round = 0; round < 3; round++) {
+            long matches = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < SEARCHES; i++) {
+                matches += hc.searchRadius(51 + 8 * random.nextDouble(), -4 + 8 * random.nextDouble(), 2000).itemsView().size();
+            }
+            long radius = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < SEARCHES; i++) {
+                double lat = 51 + 8 * random.nextDouble();
+                double lng = -4 + 8 * random.nextDouble();
+                matches += hc.searchBoundingBox(lat, lng, lat + 0.036, lng + 0.058).itemsView().size();
+            }
+            long box = System.nanoTime() - start;
+            System.out.printf("items=%d  radius 2km: %.1f us/search  box: %.1f us/search  (mean matches %.1f)%n", size,
+                    radius / 1e3 / SEARCHES, box / 1e3 / SEARCHES, matches / (2.0 * SEARCHES));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.openIOT;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/* LICENCE INFORMATION for org.openIOT.HypercatLoadBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Measures catalogue load time against file size
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Load-time benchmark for Hypercat.load. Writes synthetic catalogue files of
+ * increasing size to the temp directory, loads each one, and prints the load
+ * time per MB, which should stay roughly flat as the size grows. Not run as
+ * part of the unit tests; run by hand with
+ * <p>
+ * java -Xmx8g -cp ... org.openIOT.HypercatLoadBenchmark [sizeInMB ...]
+ * <p>
+ * The default sizes run from 1MB to 1GB; the larger sizes need a heap of
+ * several times the file size to hold the loaded catalogue.
+ */
+public class HypercatLoadBenchmark {
+
+    private static final int[] DEFAULT_SIZES_MB = { 1, 4, 16, 64, 256, 1024 };
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = DEFAULT_SIZES_MB;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        // warm up the parser before timing anything
+        File warmup = writeCatalogue(1);
+        Hypercat.load(warmup);
+        Hypercat.load(warmup);
+        warmup.delete();
+
+        System.out.println("size(MB)  items      load(ms)  ms/MB");
+        for (int mb : sizes) {
+            File file = writeCatalogue(mb);
+            System.gc();
+            long start = System.nanoTime();
+            Hypercat hc = Hypercat.load(file);
+            long ms = (System.nanoTime() - start) / 1000000;
+            System.out.printf("%-9d %-10d %-9d %.1f%n", mb, hc.itemsView().size(), ms, (double) ms / mb);
+            file.delete();
+        }
+    }
+
+    /**
+     * writes a catalogue of device items of roughly the given size
+     */
+    static File writeCatalogue(int mb) throws IOException {
+        File file = File.createTempFile("hypercat-bench-", ".json");
+        long target = mb * 1024L * 1024L;
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write("{\"item-metadata\":[{\"rel\":\"urn:X-tsbiot:rels:isContentType\",\"val\":\"application/vnd.tsbiot.catalogue+json\"},"
+                    + "{\"rel\":\"urn:X-tsbiot:rels:hasDescription:en\",\"val\":\"load benchmark\"}],\n\"items\":[\n");
+            long written = 0;
+            for (int i = 0; written < target; i++) {
+                String item = (i > 0 ? ",\n" : "") + "{\"href\":\"http://devices/site/" + (i % 100) + "/sensor/" + i + "\","
+                        + "\"i-object-metadata\":[{\"rel\":\"urn:X-tsbiot:rels:isContentType\",\"val\":\"application/json\"},"
+                        + "{\"rel\":\"urn:X-tsbiot:rels:hasDescription:en\",\"val\":\"sensor " + i + "\"},"
+                        + "{\"rel\":\"http://www.w3.org/2003/01/geo/wgs84_pos#lat\",\"val\":\"" + (51.0 + (i % 1000) / 1000.0) + "\"}]}";
+                out.write(item);
+                written += item.length();
+            }
+            out.write("\n]}");
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
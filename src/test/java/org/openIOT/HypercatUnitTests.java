@@ -27,9 +27,51 @@ package org.openIOT;
 */
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonParseException;
@@ -297,6 +339,1683 @@ public class HypercatUnitTests {
 
     }
 
+    /**
+     * Search-index tests: 12) rel, val and rel&val searches follow items as
+     * they are added and removed, and as their relations change
+     */
+    @Test
+    public void testSearchIndexMaintenance() {
+        Hypercat hc = new Hypercat("index-maintenance-catalogue");
+        Item item = new Item("http://sensor/1", "sensor one", "text/plain");
+        hc.addItem(item, item.getHref());
+        hc.addItem(new Item("http://sensor/2", "sensor two", "text/plain"), "http://sensor/2");
+
+        Assert.assertEquals(2, hc.searchCat("val=text/plain").getItems().size());
+        Assert.assertEquals(0, hc.searchCat("rel=urn:X-tsbiot:rels:hasUnit").getItems().size());
+
+        // relation added after the item joined the catalogue
+        item.addRelation(new Relation("urn:X-tsbiot:rels:hasUnit", "celsius"));
+        Assert.assertEquals(1, hc.searchCat("rel=urn:X-tsbiot:rels:hasUnit").getItems().size());
+        Assert.assertEquals(1, hc.searchCat("rel=urn:X-tsbiot:rels:hasUnit&val=celsius").getItems().size());
+        Assert.assertEquals(0, hc.searchCat("rel=urn:X-tsbiot:rels:hasDescription:en&val=celsius").getItems().size());
+
+        // whole metadata collection replaced
+        ArrayList<Relation> metadata = new ArrayList<Relation>();
+        metadata.add(new Relation("urn:X-tsbiot:rels:hasDescription:en", "sensor one"));
+        metadata.add(new Relation("urn:X-tsbiot:rels:isContentType", "application/json"));
+        item.setIObjectMetadata(metadata);
+        Assert.assertEquals(0, hc.searchCat("rel=urn:X-tsbiot:rels:hasUnit").getItems().size());
+        Assert.assertEquals(1, hc.searchCat("val=text/plain").getItems().size());
+        Assert.assertEquals(1, hc.searchCat("val=application/json").getItems().size());
+
+        // removed items no longer match
+        hc.removeItem("http://sensor/2");
+        Assert.assertEquals(0, hc.searchCat("val=text/plain").getItems().size());
+        Assert.assertEquals(1, hc.searchCat("href=http://sensor/1").getItems().size());
+    }
+
+    /**
+     * Streaming-parser tests: 13) Hypercat.parse builds the same catalogue as
+     * the JSON-string constructor, and re-reads its own toJson output
+     */
+    @Test
+    public void testStreamingParse() throws JsonParseException, JsonMappingException, IOException {
+        FileInputStream in = new FileInputStream("src/test/resources/searchHypercatExample.json");
+        Hypercat hc;
+        try {
+            hc = Hypercat.parse(in);
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals("Search Test Catalogue", hc.findFirstRelation("urn:X-tsbiot:rels:hasDescription:en").val);
+        Assert.assertEquals(3, hc.getItemMetadata().size());
+        Assert.assertEquals(5, hc.getItems().size());
+
+        Item item = (Item) hc.getItems().get("http://FIXME");
+        Assert.assertEquals("http://FIXME", item.getHref());
+        Assert.assertEquals("3", item.findFirstRelation("urn:X-tsbiot:rels:isAnIntegerValue").val);
+
+        Assert.assertEquals(1, hc.searchCat("href=http://A").getItems().size());
+        Assert.assertEquals(3, hc.searchCat("val=3").getItems().size());
+
+        Hypercat reparsed = Hypercat.parse(new StringReader(hc.toJson()));
+        Assert.assertEquals(5, reparsed.getItems().size());
+        Assert.assertEquals(hc.toJson(), reparsed.toJson());
+
+        try {
+            Hypercat.parse(new StringReader("{\"item-metadata\":[],\"items\":[]}"));
+            Assert.fail("hypercat without a description should not parse");
+        } catch (InvalidHypercatException e) {
+            log.info("invalid hypercat rejected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * File-loading tests: 14) load from a File and a Path, and through a
+     * memory-mapped window, give the same catalogue; the FileReader
+     * constructor keeps the file's line breaks
+     */
+    @Test
+    public void testLoadFromFile() throws JsonParseException, JsonMappingException, IOException {
+        Hypercat fromFile = Hypercat.load(new File("src/test/resources/searchHypercatExample.json"));
+        Hypercat fromPath = Hypercat.load(Paths.get("src/test/resources/searchHypercatExample.json"));
+        Assert.assertEquals(5, fromFile.getItems().size());
+        Assert.assertEquals(fromFile.toJson(), fromPath.toJson());
+
+        FileChannel channel = FileChannel.open(Paths.get("src/test/resources/searchHypercatExample.json"), StandardOpenOption.READ);
+        try {
+            Hypercat mapped = Hypercat.parse(new MappedFileInputStream(channel));
+            Assert.assertEquals(fromFile.toJson(), mapped.toJson());
+        } finally {
+            channel.close();
+        }
+
+        String json = Hypercat.getJsonStringFromFileReader(new FileReader("src/test/resources/itemExample.json"));
+        Assert.assertTrue(json.contains("\n"));
+        Assert.assertEquals(new File("src/test/resources/itemExample.json").length(), json.length());
+    }
+
+    /**
+     * Streaming-serializer tests: 15) writeJson, toJson and toPrettyJson
+     * produce the same documents as Jackson's bean serialization
+     */
+    @Test
+    public void testStreamingSerializer() throws JsonParseException, JsonMappingException, IOException {
+        Hypercat hc = Hypercat.load(new File("src/test/resources/searchHypercatExample.json"));
+        hc.addItem(new Item("http://C", "item with \"quotes\" and unicode \u00e9", "text/plain"), "http://C");
+
+        String expected = new ObjectMapper().writeValueAsString(hc);
+        Assert.assertEquals(expected, hc.toJson());
+        Assert.assertEquals(prettyPrint(hc), hc.toPrettyJson());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hc.writeJson(bytes);
+        Assert.assertEquals(expected, new String(bytes.toByteArray(), "UTF-8"));
+
+        StringWriter chars = new StringWriter();
+        hc.writeJson(chars);
+        Assert.assertEquals(expected, chars.toString());
+
+        Item item = (Item) hc.getItems().get("http://C");
+        Assert.assertEquals(new ObjectMapper().writeValueAsString(item), item.toJson());
+        Assert.assertEquals(prettyPrint(item), item.toPrettyJson());
+    }
+
+    /**
+     * Fragment-cache tests: 16) cached output matches uncached output, and
+     * changed items are re-serialized while unchanged ones come from the cache
+     */
+    @Test
+    public void testFragmentCache() throws JsonParseException, JsonMappingException, IOException {
+        Hypercat hc = Hypercat.load(new File("src/test/resources/searchHypercatExample.json"));
+        String uncached = hc.toJson();
+
+        hc.setFragmentCaching(true);
+        Assert.assertEquals(uncached, hc.toJson());
+        Assert.assertEquals(0, hc.getFragmentCacheHits());
+        Assert.assertEquals(5, hc.getFragmentCacheMisses());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hc.writeJson(bytes);
+        Assert.assertEquals(uncached, new String(bytes.toByteArray(), "UTF-8"));
+        Assert.assertEquals(5, hc.getFragmentCacheHits());
+        Assert.assertEquals(5, hc.getFragmentCacheMisses());
+
+        // each kind of change invalidates only the changed item
+        Item a = (Item) hc.getItems().get("http://A");
+        a.addRelation(new Relation("urn:X-tsbiot:rels:4", "4"));
+        Item b = (Item) hc.getItems().get("http://B");
+        b.setHref("http://B2");
+        String changed = hc.toJson();
+        Assert.assertEquals(8, hc.getFragmentCacheHits());
+        Assert.assertEquals(7, hc.getFragmentCacheMisses());
+        Assert.assertTrue(changed.contains("\"rel\":\"urn:X-tsbiot:rels:4\""));
+        Assert.assertTrue(changed.contains("\"href\":\"http://B2\""));
+
+        hc.setFragmentCaching(false);
+        Assert.assertEquals(changed, hc.toJson());
+        Assert.assertEquals(7, hc.getFragmentCacheMisses());
+    }
+
+    /**
+     * Concurrency tests: 18) writers adding and removing items and relations
+     * while readers search and serialize see no exceptions, and leave the
+     * indexes agreeing with the items
+     */
+    @Test
+    public void testConcurrentReadersAndWriters() throws Exception {
+        final Hypercat hc = new Hypercat("concurrent-catalogue");
+        final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 600; i++) {
+                            if (id % 2 == 0) {
+                                String href = "http://writer" + id + "/" + i;
+                                Item item = new Item(href, "item " + i, "text/plain");
+                                hc.addItem(item, href);
+                                item.addRelation(new Relation("urn:X-tsbiot:rels:writer", "w" + id));
+                                if (i % 3 == 0) {
+                                    hc.removeItem(href);
+                                }
+                            } else {
+                                hc.searchCat("href=http://writer0/" + i);
+                                hc.searchCat("rel=urn:X-tsbiot:rels:writer&val=w" + (i % 8));
+                                if (i % 50 == 0) {
+                                    hc.searchCat("val=text/plain");
+                                    hc.toJson();
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue("failures: " + failures, failures.isEmpty());
+
+        Assert.assertEquals(4 * 400, hc.getItems().size());
+        Assert.assertEquals(hc.getItems().size(), hc.searchCat("val=text/plain").getItems().size());
+        for (int id = 0; id < threads.length; id += 2) {
+            Map results = hc.searchCat("rel=urn:X-tsbiot:rels:writer&val=w" + id).getItems();
+            Assert.assertEquals(400, results.size());
+        }
+    }
+
+    /**
+     * Snapshot tests: 19) a snapshot keeps the contents, search results and
+     * JSON of the catalogue as they were, while the catalogue goes on
+     * changing, and cannot itself be changed
+     */
+    @Test
+    public void testSnapshot() throws JsonParseException, JsonMappingException, IOException {
+        Hypercat hc = Hypercat.load(new File("src/test/resources/searchHypercatExample.json"));
+        String json = hc.toJson();
+        Hypercat snapshot = hc.snapshot();
+        Assert.assertTrue(snapshot.isSnapshot());
+        Assert.assertFalse(hc.isSnapshot());
+
+        Map<String, Item> batch = new LinkedHashMap<String, Item>();
+        for (int i = 0; i < 100; i++) {
+            batch.put("http://batch/" + i, new Item("http://batch/" + i, "batch item", "text/plain"));
+        }
+        batch.put("http://A", new Item("http://A", "duplicate", "text/plain"));
+        Assert.assertEquals(100, hc.addItems(batch));
+        hc.removeItem("http://B");
+        Item a = (Item) hc.getItems().get("http://A");
+        a.addRelation(new Relation("urn:X-tsbiot:rels:4", "4"));
+        hc.addRelation(new Relation("urn:X-tsbiot:rels:hasHomepage", "http://example.org"));
+
+        Assert.assertEquals(104, hc.getItems().size());
+        Assert.assertEquals(100, hc.searchCat("val=batch item").getItems().size());
+        Assert.assertEquals(1, hc.searchCat("rel=urn:X-tsbiot:rels:4").getItems().size());
+
+        Assert.assertEquals(5, snapshot.getItems().size());
+        Assert.assertEquals(json, snapshot.toJson());
+        Assert.assertEquals(0, snapshot.searchCat("val=batch item").getItems().size());
+        Assert.assertEquals(0, snapshot.searchCat("rel=urn:X-tsbiot:rels:4").getItems().size());
+        Assert.assertEquals(1, snapshot.searchCat("href=http://B").getItems().size());
+        Item recorded = (Item) snapshot.getItems().get("http://A");
+        Assert.assertNotSame(a, recorded);
+        Assert.assertNull(recorded.findFirstRelation("urn:X-tsbiot:rels:4"));
+
+        hc.removeItems(Arrays.asList("http://batch/0", "http://batch/1", "http://missing"));
+        Assert.assertEquals(102, hc.getItems().size());
+
+        try {
+            snapshot.addItem(new Item("http://D", "item D", "text/plain"), "http://D");
+            Assert.fail("snapshot accepted an item");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        Assert.assertEquals(5, snapshot.getItems().size());
+    }
+
+    /**
+     * Persistent hash trie tests: 20) a trie agrees with a HashMap through a
+     * run of random puts and removes, including keys whose hash codes
+     * collide, and earlier versions are left unchanged
+     */
+    @Test
+    public void testPersistentHashTrie() {
+        Random random = new Random(42);
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        PersistentHashTrie<String, Integer> trie = PersistentHashTrie.empty();
+        PersistentHashTrie<String, Integer> halfway = null;
+        Map<String, Integer> expectedHalfway = null;
+        Object edit = new Object();
+        for (int i = 0; i < 20000; i++) {
+            // "Aa" and "BB" have the same hash code, so keys built from them
+            // collide
+            String key = (random.nextBoolean() ? "Aa" : "BB") + (random.nextBoolean() ? "Aa" : "BB") + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                trie = i < 10000 ? trie.minus(key) : trie.minus(edit, key);
+            } else {
+                expected.put(key, i);
+                trie = i < 10000 ? trie.plus(key, i) : trie.plus(edit, key, i);
+            }
+            if (i == 9999) {
+                halfway = trie;
+                expectedHalfway = new HashMap<String, Integer>(expected);
+            }
+        }
+        Assert.assertEquals(expected, trie);
+        Assert.assertEquals(expected.size(), trie.size());
+        Assert.assertEquals(expectedHalfway, halfway);
+        for (String key : expected.keySet()) {
+            trie = trie.minus(key);
+        }
+        Assert.assertTrue(trie.isEmpty());
+        Assert.assertFalse(trie.entrySet().iterator().hasNext());
+    }
+
+    /**
+     * Parallel scan tests: 21) searchItems finds the same items whether it
+     * scans on the calling thread, on the common pool or on a dedicated pool,
+     * and the val filters reject items without metadata
+     */
+    @Test
+    public void testParallelSearchItems() throws Exception {
+        Hypercat hc = new Hypercat("scan-catalogue");
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < 30000; i++) {
+            String href = "http://devices/" + (i % 3 == 0 ? "meter/" : "sensor/") + i;
+            batch.put(href, new Item(href, "device number " + i, "application/json"));
+        }
+        hc.addItems(batch);
+
+        hc.setParallelSearchThreshold(Integer.MAX_VALUE);
+        Assert.assertEquals(10000, hc.searchItems(ItemFilters.hrefStartsWith("http://devices/meter/")).getItems().size());
+        Assert.assertEquals(11, hc.searchItems(ItemFilters.valContains(null, "number 2999")).getItems().size());
+
+        hc.setParallelSearchThreshold(0);
+        Hypercat results = hc.searchItems(ItemFilters.hrefStartsWith("http://devices/meter/"));
+        Assert.assertEquals(10000, results.getItems().size());
+        Assert.assertEquals(10000, results.searchCat("val=application/json").getItems().size());
+        Assert.assertEquals(11, hc.searchItems(ItemFilters.valContains(null, "number 2999")).getItems().size());
+        Assert.assertEquals(30000, hc.searchItems(ItemFilters.valStartsWith("urn:X-tsbiot:rels:isContentType", "application/")).getItems().size());
+        Assert.assertEquals(0, hc.searchItems(ItemFilters.hrefContains("nowhere")).getItems().size());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            hc.setSearchPool(pool);
+            Assert.assertEquals(20000, hc.searchItems(ItemFilters.hrefContains("/sensor/")).getItems().size());
+        } finally {
+            pool.shutdown();
+        }
+
+        Item bare = new Item();
+        bare.setIObjectMetadata(null);
+        Assert.assertFalse(ItemFilters.valStartsWith(null, "application/").test(bare));
+        Assert.assertFalse(ItemFilters.valContains(null, "number").test(bare));
+    }
+
+    /**
+     * Boolean query tests: 22) AND, OR and NOT queries over the indexes, the
+     * plans chosen for them, and query-string decoding
+     */
+    @Test
+    public void testBooleanQuery() throws Exception {
+        Hypercat hc = Hypercat.load(new File("src/test/resources/searchHypercatExample.json"));
+
+        Assert.assertEquals(1, hc.search(HypercatQuery.parse("val=3 AND NOT rel=urn:X-tsbiot:rels:1")).getItems().size());
+        Assert.assertEquals(3, hc.search(HypercatQuery.parse("rel=urn:X-tsbiot:rels:1 or rel=urn:X-tsbiot:rels:isAnIntegerValue")).getItems().size());
+        Assert.assertEquals(2, hc.search(HypercatQuery.parse("rel=urn:X-tsbiot:rels:3&val=3 (href=http://A OR href=http://B)")).getItems().size());
+        Assert.assertEquals(2, hc.search(HypercatQuery.parse("NOT val=3")).getItems().size());
+        Assert.assertEquals(1, hc.search(HypercatQuery.parse("val=\"A resource\"")).getItems().size());
+        Assert.assertEquals(0, hc.search(HypercatQuery.parse("rel=urn:X-tsbiot:rels:hasDescription:en&val=3")).getItems().size());
+        Assert.assertEquals(1, hc.search(HypercatQuery.and(HypercatQuery.val("3"), HypercatQuery.not(HypercatQuery.href("http://A")),
+                HypercatQuery.not(HypercatQuery.relVal("urn:X-tsbiot:rels:3", "3")))).getItems().size());
+
+        // the single-item rel drives the AND; the three-item val filters it
+        HypercatQuery query = HypercatQuery.parse("val=3 AND rel=urn:X-tsbiot:rels:isAnIntegerValue AND NOT href=http://B");
+        String plan = hc.explain(query);
+        Assert.assertTrue(plan, plan.contains("drive: index rel=urn:X-tsbiot:rels:isAnIntegerValue  [~1 items]"));
+        Assert.assertTrue(plan, plan.indexOf("filter: index val=3") < plan.indexOf("filter: NOT"));
+        Assert.assertEquals(query.toString(), HypercatQuery.parse(query.toString()).toString());
+
+        try {
+            HypercatQuery.parse("val=3 AND (rel=urn:X");
+            Assert.fail("unbalanced query parsed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        String encoded = URLEncoder.encode("val=3 AND NOT rel=urn:X-tsbiot:rels:1", "UTF-8");
+        Assert.assertEquals(1, hc.searchCat("q=" + encoded).getItems().size());
+        Assert.assertEquals(1, hc.searchCat("val=A%20resource").getItems().size());
+
+        Map<String, String> params = Hypercat.getQueryMap("a=b=c&d=&e&&f=%3D");
+        Assert.assertEquals("b=c", params.get("a"));
+        Assert.assertEquals("", params.get("d"));
+        Assert.assertEquals("", params.get("e"));
+        Assert.assertEquals("=", params.get("f"));
+    }
+
+    /**
+     * Sorted search tests: 23) href and val prefix and range searches return
+     * items in lexicographic order, follow additions and removals, and leave
+     * snapshots unchanged
+     */
+    @Test
+    public void testPrefixAndRangeSearch() throws Exception {
+        Hypercat hc = new Hypercat("sorted-search-catalogue");
+        for (String href : new String[] { "http://b/2", "http://a/10", "http://b/1", "http://a/2", "http://c/1" }) {
+            hc.addItem(new Item(href, "sensor " + href.substring(7), "application/json"), href);
+        }
+
+        Assert.assertEquals(Arrays.asList("http://a/10", "http://a/2"), hrefsOf(hc.searchHrefPrefix("http://a/")));
+        Assert.assertEquals(Arrays.asList("http://a/10", "http://a/2", "http://b/1", "http://b/2", "http://c/1"),
+                hrefsOf(hc.searchHrefPrefix("")));
+        Assert.assertEquals(Arrays.asList("http://a/2", "http://b/1", "http://b/2"), hrefsOf(hc.searchHrefRange("http://a/2", "http://c")));
+        Assert.assertEquals(Arrays.asList("http://c/1"), hrefsOf(hc.searchHrefRange("http://c", null)));
+        Assert.assertEquals(Arrays.asList("http://b/1", "http://b/2"), hrefsOf(hc.searchValPrefix("sensor b/")));
+        // ordered by val; every item shares the content type, so by href
+        Assert.assertEquals(5, hc.searchValRange("application/", "application0").size());
+        Assert.assertEquals(Arrays.asList("http://a/2", "http://b/1"), hrefsOf(hc.searchValRange("sensor a/2", "sensor b/2")));
+
+        Hypercat before = hc.snapshot();
+        hc.removeItem("http://a/2");
+        hc.addItem(new Item("http://a/3", "sensor a/3", "application/json"), "http://a/3");
+        Assert.assertEquals(Arrays.asList("http://a/10", "http://a/3"), hrefsOf(hc.searchHrefPrefix("http://a/")));
+        Assert.assertEquals(Arrays.asList("http://a/10", "http://a/3"), hrefsOf(hc.searchValPrefix("sensor a")));
+        Assert.assertEquals(Arrays.asList("http://a/10", "http://a/2"), hrefsOf(before.searchHrefPrefix("http://a/")));
+
+        Assert.assertEquals(3, hc.search(HypercatQuery.parse("href^=http://a/ OR val^=\"sensor c\"")).getItems().size());
+        Assert.assertEquals(1, hc.search(HypercatQuery.parse("val^=sensor AND NOT href^=http://a AND NOT href^=http://b")).getItems().size());
+        Assert.assertEquals("href^=http://a/", HypercatQuery.hrefPrefix("http://a/").toString());
+
+        // the sorted set agrees with a TreeSet over random adds and removes
+        PersistentSortedSet<String> set = PersistentSortedSet.empty();
+        TreeSet<String> expected = new TreeSet<String>();
+        Random random = new Random(23);
+        for (int i = 0; i < 20000; i++) {
+            String key = Integer.toString(random.nextInt(5000), 36);
+            if (random.nextBoolean()) {
+                set = set.plus(key);
+                expected.add(key);
+            } else {
+                set = set.minus(key);
+                expected.remove(key);
+            }
+        }
+        Assert.assertEquals(expected.size(), set.size());
+        Assert.assertEquals(expected.subSet("1", "2").size(), set.count("1", PersistentSortedSet.prefixEnd("1")));
+        List<String> range = new ArrayList<String>();
+        for (Iterator<String> it = set.range("a", "b"); it.hasNext();) {
+            range.add(it.next());
+        }
+        Assert.assertEquals(new ArrayList<String>(expected.subSet("a", "b")), range);
+    }
+
+    /**
+     * Geospatial tests: 24) bounding-box and radius searches over items'
+     * wgs84 positions, including boxes crossing the 180th meridian, items
+     * without valid positions, removals and snapshots
+     */
+    @Test
+    public void testGeoSearch() {
+        Hypercat hc = new Hypercat("geo-catalogue");
+        hc.addItem(positioned("http://london", "51.5074", "-0.1278"), "http://london");
+        hc.addItem(positioned("http://greenwich", "51.4769", "0.0005"), "http://greenwich");
+        hc.addItem(positioned("http://paris", "48.8566", "2.3522"), "http://paris");
+        hc.addItem(positioned("http://fiji", "-17.7134", "178.0650"), "http://fiji");
+        hc.addItem(positioned("http://samoa", "-13.7590", "-172.1046"), "http://samoa");
+        hc.addItem(positioned("http://nowhere", "north", "0"), "http://nowhere");
+        hc.addItem(new Item("http://unplaced", "no position", "text/plain"), "http://unplaced");
+
+        Assert.assertEquals(2, hc.searchBoundingBox(51, -1, 52, 1).getItems().size());
+        Assert.assertEquals(5, hc.searchBoundingBox(-90, -180, 90, 180).getItems().size());
+        // london to greenwich is about 9.5km
+        Assert.assertEquals(1, hc.searchRadius(51.5074, -0.1278, 9000).getItems().size());
+        Assert.assertEquals(2, hc.searchRadius(51.5074, -0.1278, 10000).getItems().size());
+        Assert.assertEquals(3, hc.searchRadius(51.5074, -0.1278, 400000).getItems().size());
+        Assert.assertEquals(2, hc.searchBoundingBox(-20, 170, -10, -170).getItems().size());
+        Assert.assertEquals(2, hc.searchRadius(-16, 180, 1000000).getItems().size());
+
+        Hypercat before = hc.snapshot();
+        hc.removeItem("http://greenwich");
+        Assert.assertEquals(1, hc.searchBoundingBox(51, -1, 52, 1).getItems().size());
+        Assert.assertEquals(2, before.searchBoundingBox(51, -1, 52, 1).getItems().size());
+
+        // the index agrees with testing every position directly
+        Random random = new Random(24);
+        double[][] points = new double[2000][];
+        Hypercat grid = new Hypercat("geo-grid");
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[] { 50 + random.nextDouble(), random.nextDouble() };
+            grid.addItem(positioned("p" + i, Double.toString(points[i][0]), Double.toString(points[i][1])), "p" + i);
+        }
+        for (int q = 0; q < 20; q++) {
+            double lat = 50 + random.nextDouble();
+            double lng = random.nextDouble();
+            double metres = 1000 + 20000 * random.nextDouble();
+            int expected = 0;
+            for (double[] p : points) {
+                if (new GeoIndex.Point(lat, lng).angleTo(new GeoIndex.Point(p[0], p[1])) * GeoIndex.EARTH_RADIUS_METRES <= metres) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(expected, grid.searchRadius(lat, lng, metres).getItems().size());
+        }
+    }
+
+    /**
+     * Range index tests: 25) long, double and time range searches over
+     * declared rels, for items added before and after the declaration, with
+     * invalid vals left out and snapshots unchanged
+     */
+    @Test
+    public void testRangeIndex() {
+        final String battery = "urn:X-hypercat:rels:batteryLevel";
+        final String rate = "urn:X-hypercat:rels:samplingRate";
+        final String updated = "urn:X-hypercat:rels:lastUpdated";
+        Hypercat hc = new Hypercat("range-catalogue");
+        hc.addItem(ranged("http://s/1", battery, "15", rate, "0.5", updated, "2014-06-24T09:00:00Z"), "http://s/1");
+        hc.addItem(ranged("http://s/2", battery, "20", rate, "-2.25", updated, "2014-06-24T10:30:00+01:00"), "http://s/2");
+        hc.declareRangeIndex(battery, RangeIndexType.LONG);
+        hc.declareRangeIndex(rate, RangeIndexType.DOUBLE);
+        hc.declareRangeIndex(updated, RangeIndexType.TIME);
+        hc.addItem(ranged("http://s/3", battery, "85", rate, "10", updated, "2014-06-24T11:00:00Z"), "http://s/3");
+        hc.addItem(ranged("http://s/4", battery, "low", rate, "NaN", updated, "yesterday"), "http://s/4");
+
+        Assert.assertEquals(1, hc.searchRange(battery, Double.NEGATIVE_INFINITY, Math.nextDown(20.0)).getItems().size());
+        Assert.assertEquals(2, hc.searchRange(battery, 15, 20).getItems().size());
+        Assert.assertEquals(3, hc.searchRange(battery, Long.MIN_VALUE, Long.MAX_VALUE).getItems().size());
+        Assert.assertEquals(2, hc.searchRange(rate, -3, 1).getItems().size());
+        Assert.assertEquals(1, hc.searchRange(rate, -0.0, 0.5).getItems().size());
+        Assert.assertEquals(0, hc.searchRange(rate, 1, -1).getItems().size());
+        // 10:30+01:00 is 09:30Z
+        Assert.assertEquals(2, hc.searchTimeRange(updated, Instant.parse("2014-06-24T09:00:00Z"), Instant.parse("2014-06-24T09:30:00Z"))
+                .getItems().size());
+        Assert.assertEquals(1, hc.searchTimeRange(updated, Instant.parse("2014-06-24T10:00:00Z"), null).getItems().size());
+
+        Hypercat before = hc.snapshot();
+        hc.removeItem("http://s/1");
+        Assert.assertEquals(1, hc.searchRange(battery, 0, 20).getItems().size());
+        Assert.assertEquals(2, before.searchRange(battery, 0, 20).getItems().size());
+
+        try {
+            hc.searchRange(updated, 0, 1);
+            Assert.fail("numeric search of a time index");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            hc.searchRange("urn:X-hypercat:rels:undeclared", 0, 1);
+            Assert.fail("search of an undeclared rel");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Top-k tests: 26) sorted searches with a limit, walking the sorted
+     * indexes for broad queries and keeping a bounded heap for selective
+     * ones, agree with sorting every match
+     */
+    @Test
+    public void testSortedSearch() {
+        final String updated = "urn:X-hypercat:rels:lastUpdated";
+        final String kind = "urn:X-hypercat:rels:kind";
+        Hypercat hc = new Hypercat("top-k-catalogue");
+        hc.declareRangeIndex(updated, RangeIndexType.TIME);
+        Random random = new Random(26);
+        long[] times = new long[2000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = 1400000000000L + random.nextInt(1000) * 60000L;
+            String href = "http://s/" + i;
+            String k = i % 100 == 0 ? "rare" : (i % 2 == 0 ? "even" : "odd");
+            hc.addItem(ranged(href, updated, Instant.ofEpochMilli(times[i]).toString(), kind, k), href);
+        }
+        // a val order on an undeclared rel, and an item with no val for it
+        hc.addItem(new Item("http://s/unstamped", "sensor", "application/json"), "http://s/unstamped");
+
+        List<String> all = new ArrayList<String>(hc.getItems().keySet());
+        Collections.sort(all);
+        Assert.assertEquals(all.subList(0, 10), hrefsOf(hc.searchSorted(null, ItemOrder.byHref(), 10)));
+        Assert.assertEquals(all.get(all.size() - 1), hc.searchSorted(null, ItemOrder.byHref().descending(), 1).get(0).getHref());
+
+        for (String k : new String[] { "even", "rare" }) {
+            // newest first, ties by href descending
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < times.length; i++) {
+                if (k.equals(i % 100 == 0 ? "rare" : (i % 2 == 0 ? "even" : "odd"))) {
+                    expected.add(i);
+                }
+            }
+            final long[] t = times;
+            Collections.sort(expected, (a, b) -> t[a] != t[b] ? Long.compare(t[b], t[a]) : ("http://s/" + b).compareTo("http://s/" + a));
+            List<String> top = hrefsOf(hc.searchSorted(HypercatQuery.relVal(kind, k), ItemOrder.byVal(updated).descending(), 15));
+            Assert.assertEquals(15, top.size());
+            for (int i = 0; i < top.size(); i++) {
+                Assert.assertEquals("http://s/" + expected.get(i), top.get(i));
+            }
+        }
+
+        List<Item> byKind = hc.searchSorted(HypercatQuery.rel(kind), ItemOrder.byVal(kind), 5000);
+        Assert.assertEquals(2000, byKind.size());
+        Assert.assertEquals("even", byKind.get(0).findFirstRelation(kind).getVal());
+        Assert.assertEquals("rare", byKind.get(1999).findFirstRelation(kind).getVal());
+        Assert.assertEquals(0, hc.searchSorted(null, ItemOrder.byHref(), 0).size());
+    }
+
+    /**
+     * Paging tests: 27) listing and searching a page at a time returns every
+     * item once, in href order, across changes made between pages, and
+     * pages serialize as catalogues
+     */
+    @Test
+    public void testPaging() throws Exception {
+        final String kind = "urn:X-hypercat:rels:kind";
+        Hypercat hc = new Hypercat("paged-catalogue");
+        for (int i = 0; i < 1000; i++) {
+            String href = "http://s/" + i;
+            hc.addItem(ranged(href, kind, i % 50 == 0 ? "rare" : "common"), href);
+        }
+        List<String> all = new ArrayList<String>(hc.getItems().keySet());
+        Collections.sort(all);
+
+        List<String> listed = new ArrayList<String>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            Page page = hc.listItems(cursor, 64);
+            listed.addAll(hrefsOf(page.getItems()));
+            cursor = page.getNextCursor();
+            if (pages++ == 3) {
+                // a change between pages: an item already listed goes, one
+                // not yet listed arrives
+                hc.removeItem("http://s/0");
+                hc.addItem(ranged("http://s/~new", kind, "rare"), "http://s/~new");
+                all.add("http://s/~new");
+            }
+        } while (cursor != null);
+        Assert.assertEquals(all, listed);
+        Assert.assertEquals(16, pages);
+
+        for (String k : new String[] { "common", "rare" }) {
+            List<String> expected = new ArrayList<String>();
+            for (String href : all) {
+                Item item = hc.getItems().get(href);
+                if (item != null && k.equals(item.findFirstRelation(kind).getVal())) {
+                    expected.add(href);
+                }
+            }
+            List<String> found = new ArrayList<String>();
+            cursor = null;
+            do {
+                Page page = hc.searchPage(HypercatQuery.relVal(kind, k), cursor, 7);
+                Assert.assertTrue(page.getItems().size() <= 7);
+                found.addAll(hrefsOf(page.getItems()));
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            Assert.assertEquals(expected, found);
+        }
+
+        Page first = hc.listItems(null, 2);
+        Hypercat parsed = Hypercat.parse(new StringReader(first.toJson()));
+        Assert.assertEquals(2, parsed.getItems().size());
+        Assert.assertTrue(first.toJson().contains("\"next-cursor\":\"" + first.getNextCursor() + "\""));
+        try {
+            hc.listItems("not a cursor!", 10);
+            Assert.fail("invalid cursor accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Lazy search tests: 28) streamed, counted and exists-only searches agree
+     * with the materialised results for terms, prefixes, AND, OR and NOT
+     */
+    @Test
+    public void testLazySearch() throws Exception {
+        final String kind = "urn:X-hypercat:rels:kind";
+        final String zone = "urn:X-hypercat:rels:zone";
+        Hypercat hc = new Hypercat("lazy-catalogue");
+        for (int i = 0; i < 300; i++) {
+            String href = "http://l/" + (i % 3) + "/" + i;
+            hc.addItem(ranged(href, kind, i % 2 == 0 ? "even" : "odd", zone, "zone-" + (i % 7)), href);
+        }
+        String[] queries = { "val=even", "rel=" + kind + "&val=odd", "href^=http://l/1/", "val^=zone-1",
+                "val=even OR val=zone-3", "val=even AND href^=http://l/2/", "NOT val=zone-0", "val=odd AND NOT val^=zone-",
+                "val=nothing", "(val=zone-1 OR val=zone-2) AND (href^=http://l/0/ OR val=odd)" };
+        for (String q : queries) {
+            HypercatQuery query = HypercatQuery.parse(q);
+            TreeSet<String> expected = new TreeSet<String>(hc.search(query).getItems().keySet());
+            List<String> streamed = new ArrayList<String>();
+            Iterator<Item> items = hc.searchStream(query).iterator();
+            while (items.hasNext()) {
+                streamed.add(items.next().getHref());
+            }
+            Assert.assertEquals(q, expected.size(), streamed.size());
+            Assert.assertEquals(q, expected, new TreeSet<String>(streamed));
+            Assert.assertEquals(q, expected.size(), hc.count(query));
+            Assert.assertEquals(q, !expected.isEmpty(), hc.exists(query));
+        }
+        Assert.assertEquals(300, hc.streamItems().count());
+        Assert.assertEquals(150, hc.streamItems().filter(item -> "even".equals(item.findFirstRelation(kind).getVal())).count());
+    }
+
+    /**
+     * Full-text search tests: 29) keyword search over descriptions ranks the
+     * items by relevance, follows changes to the items, and covers declared
+     * rels
+     */
+    @Test
+    public void testTextSearch() throws Exception {
+        final String location = "urn:X-hypercat:rels:hasLocation";
+        Hypercat hc = new Hypercat("text-catalogue");
+        hc.addItem(new Item("http://t/1", "Boiler temperature, floor 3", "application/json"), "http://t/1");
+        hc.addItem(new Item("http://t/2", "Boiler pressure floor 2", "application/json"), "http://t/2");
+        hc.addItem(new Item("http://t/3", "Room temperature sensor on floor 3 next to the boiler room door", "application/json"), "http://t/3");
+        Item humidity = new Item("http://t/4", "Humidity", "application/json");
+        hc.addItem(humidity, "http://t/4");
+        Item located = new Item("http://t/5", "Meter", "application/json");
+        located.addRelation(new Relation(location, "Boiler house"));
+        hc.addItem(located, "http://t/5");
+
+        Assert.assertEquals(Arrays.asList("http://t/1", "http://t/3", "http://t/2"), hrefsOf(hc.searchText("boiler temperature floor 3", 10)));
+        Assert.assertEquals(Arrays.asList("http://t/1", "http://t/3"), hrefsOf(hc.searchText("TEMPERATURE", 10)));
+        Assert.assertEquals(Arrays.asList("http://t/1"), hrefsOf(hc.searchText("boiler temperature floor 3", 1)));
+        Assert.assertTrue(hc.searchText("temp", 10).isEmpty());
+        Assert.assertTrue(hc.searchText("  ,. ", 10).isEmpty());
+
+        hc.declareTextIndex(location);
+        Assert.assertEquals(Arrays.asList("http://t/5"), hrefsOf(hc.searchText("house", 10)));
+        Assert.assertEquals(4, hc.searchText("boiler", 10).size());
+
+        hc.removeItem("http://t/1");
+        humidity.addRelation(new Relation("urn:X-tsbiot:rels:hasDescription:en", "in the boiler room"));
+        Assert.assertEquals(Arrays.asList("http://t/4", "http://t/3"), hrefsOf(hc.searchText("humidity temperature", 10)));
+        Assert.assertEquals(Arrays.asList("http://t/5", "http://t/2", "http://t/4", "http://t/3"), hrefsOf(hc.searchText("boiler", 10)));
+    }
+
+    /**
+     * Facet tests: 30) per-rel and per-val counts, for every item and for a
+     * query's matches, agree with counting the items one by one
+     */
+    @Test
+    public void testFacets() throws Exception {
+        final String kind = "urn:X-hypercat:rels:kind";
+        final String type = "urn:X-tsbiot:rels:isContentType";
+        Hypercat hc = new Hypercat("faceted-catalogue");
+        for (int i = 0; i < 500; i++) {
+            String href = "http://f/" + i;
+            Item item = ranged(href, kind, "k" + (i % 5), "urn:X-hypercat:rels:extra" + (i % 3), "x");
+            if (i % 4 == 0) {
+                item.addRelation(new Relation(kind, "k" + (i % 5)));
+                item.addRelation(new Relation(kind, "shared"));
+            }
+            hc.addItem(item, href);
+        }
+        HypercatQuery[] queries = { null, HypercatQuery.parse("val=k1"), HypercatQuery.parse("val=shared OR href=http://f/7"),
+                HypercatQuery.parse("href=http://f/8"), HypercatQuery.parse("val=none") };
+        for (HypercatQuery query : queries) {
+            Map<String, Integer> relCounts = new HashMap<String, Integer>();
+            Map<String, Integer> valCounts = new HashMap<String, Integer>();
+            for (Item item : (query == null ? hc : hc.search(query)).getItems().values()) {
+                for (String rel : new TreeSet<String>(relsOf(item))) {
+                    relCounts.put(rel, relCounts.containsKey(rel) ? relCounts.get(rel) + 1 : 1);
+                }
+                TreeSet<String> vals = new TreeSet<String>();
+                for (Relation rel : item.getIObjectMetadata()) {
+                    if (kind.equals(rel.getRel())) {
+                        vals.add(rel.getVal());
+                    }
+                }
+                for (String val : vals) {
+                    valCounts.put(val, valCounts.containsKey(val) ? valCounts.get(val) + 1 : 1);
+                }
+            }
+            Assert.assertEquals(String.valueOf(query), relCounts, hc.facetRels(query));
+            Assert.assertEquals(String.valueOf(query), valCounts, hc.facetVals(query, kind, Integer.MAX_VALUE));
+        }
+        Map<String, Integer> content = hc.facetVals(null, type, 10);
+        Assert.assertEquals(Collections.singletonMap("application/json", 500), content);
+        List<String> top = new ArrayList<String>(hc.facetVals(null, kind, 2).keySet());
+        Assert.assertEquals(Arrays.asList("shared", "k0"), top);
+        Assert.assertTrue(hc.facetVals(null, "urn:X-hypercat:rels:unknown", 10).isEmpty());
+    }
+
+    private static List<String> relsOf(Item item) {
+        List<String> rels = new ArrayList<String>();
+        for (Relation rel : item.getIObjectMetadata()) {
+            rels.add(rel.getRel());
+        }
+        return rels;
+    }
+
+    /**
+     * Link tests: 31) reverse link lookups and bounded traversals in both
+     * directions follow additions, removals and relation changes
+     */
+    @Test
+    public void testLinks() throws Exception {
+        final String in = "urn:X-hypercat:rels:isLocatedIn";
+        final String owner = "urn:X-hypercat:rels:hasOwner";
+        Hypercat hc = new Hypercat("linked-catalogue");
+        hc.addItem(ranged("http://site"), "http://site");
+        hc.addItem(ranged("http://building", in, "http://site"), "http://building");
+        hc.addItem(ranged("http://room", in, "http://building", owner, "http://site"), "http://room");
+        Item sensor = ranged("http://sensor", in, "http://room");
+        hc.addItem(sensor, "http://sensor");
+        hc.addItem(ranged("http://cycle", in, "http://cycle", owner, "http://nowhere"), "http://cycle");
+
+        Map<String, List<String>> refs = hc.referencesTo("http://site");
+        Assert.assertEquals(Arrays.asList("http://building", "http://room"), new ArrayList<String>(refs.keySet()));
+        Assert.assertEquals(Arrays.asList(in), refs.get("http://building"));
+        Assert.assertEquals(Arrays.asList(owner), refs.get("http://room"));
+
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("http://building")), hc.searchLinksTo("http://site", in, 1).getItems().keySet());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("http://building", "http://room")), hc.searchLinksTo("http://site", in, 2).getItems().keySet());
+        Assert.assertEquals(3, hc.searchLinksTo("http://site", in, 10).getItems().size());
+        Assert.assertEquals(3, hc.searchLinksTo("http://site", null, 2).getItems().size());
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("http://room", "http://building")), hc.searchLinksFrom("http://sensor", in, 2).getItems().keySet());
+        Assert.assertEquals(3, hc.searchLinksFrom("http://sensor", null, 5).getItems().size());
+        Assert.assertTrue(hc.searchLinksFrom("http://cycle", null, 5).getItems().isEmpty());
+        Assert.assertTrue(hc.searchLinksTo("http://cycle", null, 5).getItems().isEmpty());
+
+        hc.removeItem("http://room");
+        Assert.assertEquals(Arrays.asList("http://building"), new ArrayList<String>(hc.referencesTo("http://site").keySet()));
+        Assert.assertTrue(hc.searchLinksFrom("http://sensor", in, 5).getItems().isEmpty());
+        sensor.addRelation(new Relation(in, "http://building"));
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("http://building", "http://sensor")), hc.searchLinksTo("http://site", in, 2).getItems().keySet());
+    }
+
+    /**
+     * Version tests: 32) every change to a catalogue or its items gives it a
+     * new, greater version, a change that changes nothing does not, and a
+     * snapshot keeps the version it was taken at
+     */
+    @Test
+    public void testVersions() throws Exception {
+        Hypercat hc = new Hypercat("versioned-catalogue");
+        long v0 = hc.getVersion();
+        Assert.assertTrue(hc.getLastModified() > 0);
+        Item item = new Item("http://v/1", "sensor", "application/json");
+        hc.addItem(item, "http://v/1");
+        long v1 = hc.getVersion();
+        Assert.assertTrue(v1 > v0);
+        Hypercat before = hc.snapshot();
+
+        hc.addItem(new Item("http://v/1", "duplicate", "application/json"), "http://v/1");
+        hc.removeItem("http://v/absent");
+        Assert.assertEquals(v1, hc.getVersion());
+
+        hc.addRelation(new Relation("urn:X-hypercat:rels:hasLicense", "open"));
+        long v2 = hc.getVersion();
+        Assert.assertTrue(v2 > v1);
+        item.addRelation(new Relation("urn:X-hypercat:rels:kind", "thermometer"));
+        long v3 = hc.getVersion();
+        Assert.assertTrue(v3 > v2);
+        hc.removeItem("http://v/1");
+        Assert.assertTrue(hc.getVersion() > v3);
+
+        Assert.assertEquals(v1, before.getVersion());
+        Assert.assertTrue(hc.getVersion() != new Hypercat("another-catalogue").getVersion());
+    }
+
+    /**
+     * Write-ahead log tests: 33) a logged catalogue reopens as it was left,
+     * through additions, removals, relation changes, concurrent writers, a
+     * torn final frame and compaction
+     */
+    @Test
+    public void testWriteAheadLog() throws Exception {
+        final String kind = "urn:X-hypercat:rels:kind";
+        File file = File.createTempFile("hypercat", ".log");
+        file.delete();
+        try {
+            final Hypercat hc = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "logged-catalogue");
+            Item changed = ranged("http://w/changed", kind, "before");
+            hc.addItem(changed, "http://w/changed");
+            hc.addItem(ranged("http://w/removed"), "http://w/removed");
+            hc.removeItem("http://w/removed");
+            hc.addRelation(new Relation("urn:X-hypercat:rels:hasLicense", "open"));
+            changed.addRelation(new Relation(kind, "after"));
+            hc.declareRangeIndex("urn:X-hypercat:rels:size", RangeIndexType.LONG);
+            Thread[] writers = new Thread[4];
+            for (int t = 0; t < writers.length; t++) {
+                final int writer = t;
+                writers[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < 50; i++) {
+                            String href = "http://w/" + writer + "/" + i;
+                            hc.addItem(ranged(href, "urn:X-hypercat:rels:size", String.valueOf(i)), href);
+                        }
+                    }
+                };
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            String expected = hc.toJson();
+            hc.getLog().close();
+            hc.addItem(ranged("http://w/unlogged"), "http://w/unlogged");
+
+            Hypercat reopened = HypercatLog.open(file, HypercatLog.SyncPolicy.everyRecords(10), "ignored");
+            Assert.assertEquals(expected, reopened.toJson());
+            Assert.assertEquals(201, reopened.getItems().size());
+            Assert.assertEquals(4, reopened.searchRange("urn:X-hypercat:rels:size", 10, 10).getItems().size());
+            reopened.removeItem("http://w/0/0");
+            expected = reopened.toJson();
+            reopened.getLog().close();
+
+            // a crash part-way through appending leaves a partial frame
+            long whole = file.length();
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.APPEND);
+            channel.write(java.nio.ByteBuffer.wrap(new byte[] { 0, 0, 1, 0, 7, 7 }));
+            channel.close();
+            reopened = HypercatLog.open(file, HypercatLog.SyncPolicy.everyMillis(5), "ignored");
+            Assert.assertEquals(expected, reopened.toJson());
+            Assert.assertEquals(whole, file.length());
+
+            reopened.getLog().compact();
+            Assert.assertTrue(file.length() < whole);
+            reopened.addItem(ranged("http://w/after-compaction"), "http://w/after-compaction");
+            expected = reopened.toJson();
+            reopened.getLog().close();
+            reopened = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "ignored");
+            Assert.assertEquals(expected, reopened.toJson());
+            reopened.getLog().close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Snapshot file tests: 34) queries run against a mapped snapshot file
+     * find what they find in the catalogue, and the snapshot rebuilds the
+     * catalogue with its declared indexes
+     */
+    @Test
+    public void testSnapshotFile() throws Exception {
+        final String kind = "urn:X-hypercat:rels:kind";
+        final String size = "urn:X-hypercat:rels:size";
+        Hypercat hc = new Hypercat("snapshot-catalogue");
+        hc.addRelation(new Relation("urn:X-hypercat:rels:hasLicense", "open"));
+        hc.declareRangeIndex(size, RangeIndexType.LONG);
+        hc.declareTextIndex(kind);
+        for (int i = 0; i < 100; i++) {
+            String href = "http://s/" + (i % 2 == 0 ? "even/" : "odd/") + i;
+            hc.addItem(ranged(href, kind, i % 3 == 0 ? "thermometer" : "hygrometer", size, String.valueOf(i)), href);
+        }
+        hc.addItem(ranged("http://s/caf\u00e9", kind, "caf\u00e9 \ud83d\ude00"), "http://s/caf\u00e9");
+        File file = File.createTempFile("hypercat", ".snapshot");
+        try {
+            HypercatSnapshot.write(hc, file);
+            HypercatSnapshot snapshot = HypercatSnapshot.open(file);
+            Assert.assertEquals(101, snapshot.size());
+            Assert.assertEquals(hc.getItemMetadata().size(), snapshot.getItemMetadata().size());
+            Assert.assertEquals("caf\u00e9 \ud83d\ude00", snapshot.getItem("http://s/caf\u00e9").findFirstRelation(kind).getVal());
+            Assert.assertNull(snapshot.getItem("http://s/none"));
+
+            String[] queries = { "rel=" + kind, "val=thermometer", "rel=" + kind + "&val=hygrometer", "href^=http://s/even/",
+                    "val^=hyg", "href=http://s/odd/7", "val=thermometer AND href^=http://s/odd/", "val=thermometer OR val=9",
+                    "NOT val=thermometer", "href^=http://s/ AND NOT (val=hygrometer OR val=3)", "val=missing" };
+            for (String expression : queries) {
+                HypercatQuery query = HypercatQuery.parse(expression);
+                List<String> expected = new ArrayList<String>(hc.search(query).getItems().keySet());
+                Collections.sort(expected);
+                Assert.assertEquals(expression, expected, hrefsOf(snapshot.search(query)));
+                Assert.assertEquals(expression, expected.size(), snapshot.count(query));
+            }
+
+            hc.removeItem("http://s/even/0");
+            HypercatSnapshot.writeInBackground(hc, file).get();
+            Hypercat rebuilt = HypercatSnapshot.open(file).toHypercat();
+            Assert.assertEquals(hc.toJson(), rebuilt.toJson());
+            Assert.assertEquals(11, rebuilt.searchRange(size, 10, 20).getItems().size());
+            Assert.assertEquals(1, rebuilt.searchText("caf\u00e9", 10).size());
+            rebuilt.addItem(ranged("http://s/new"), "http://s/new");
+            Assert.assertEquals(101, rebuilt.getItems().size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Columnar store tests: 35) a columnar copy of a catalogue answers
+     * queries as the catalogue does, through additions, replacements,
+     * removals and compaction, and converts back to the same catalogue
+     */
+    @Test
+    public void testColumnarStore() throws Exception {
+        final String kind = "urn:X-hypercat:rels:kind";
+        Hypercat hc = new Hypercat("columnar-catalogue");
+        for (int i = 0; i < 60; i++) {
+            String href = "http://c/" + (i % 2 == 0 ? "even/" : "odd/") + i;
+            hc.addItem(ranged(href, kind, i % 3 == 0 ? "thermometer" : "hygrometer", "urn:X-hypercat:rels:size", String.valueOf(i)), href);
+        }
+        ColumnarHypercat columnar = ColumnarHypercat.of(hc);
+        Assert.assertEquals(60, columnar.size());
+        Assert.assertEquals(hc.getItems().get("http://c/odd/7").getIObjectMetadata(), columnar.getItem("http://c/odd/7").getIObjectMetadata());
+        Assert.assertEquals("itemExists", columnar.addItem(ranged("http://c/odd/7"), "http://c/odd/7"));
+
+        Item extra = ranged("http://c/extra", kind, "thermometer");
+        Assert.assertEquals("http://c/extra", columnar.addItem(extra, "http://c/extra"));
+        hc.addItem(ranged("http://c/extra", kind, "thermometer"), "http://c/extra");
+        columnar.replaceItem(ranged("http://c/even/0", kind, "barometer"), "http://c/even/0");
+        hc.removeItem("http://c/even/0");
+        hc.addItem(ranged("http://c/even/0", kind, "barometer"), "http://c/even/0");
+        Assert.assertTrue(columnar.removeItem("http://c/odd/1"));
+        Assert.assertFalse(columnar.removeItem("http://c/odd/1"));
+        hc.removeItem("http://c/odd/1");
+        assertSameMatches(hc, columnar);
+
+        // removing most of the items compacts the columns
+        for (int i = 2; i < 50; i++) {
+            String href = "http://c/" + (i % 2 == 0 ? "even/" : "odd/") + i;
+            columnar.removeItem(href);
+            hc.removeItem(href);
+        }
+        Assert.assertNull(columnar.getItem("http://c/even/2"));
+        assertSameMatches(hc, columnar);
+        Assert.assertEquals(hc.toJson(), columnar.toHypercat().toJson());
+    }
+
+    private static void assertSameMatches(Hypercat hc, ColumnarHypercat columnar) {
+        final String kind = "urn:X-hypercat:rels:kind";
+        String[] queries = { "rel=" + kind, "val=thermometer", "rel=" + kind + "&val=hygrometer", "href^=http://c/even/", "val^=hyg",
+                "href=http://c/odd/7", "val=barometer OR val=9", "NOT val=thermometer", "href^=http://c/ AND NOT (val=hygrometer OR val=3)",
+                "val=missing" };
+        Assert.assertEquals(hc.getItems().size(), columnar.size());
+        for (String expression : queries) {
+            HypercatQuery query = HypercatQuery.parse(expression);
+            List<String> expected = new ArrayList<String>(hc.search(query).getItems().keySet());
+            List<String> actual = hrefsOf(columnar.search(query));
+            Collections.sort(expected);
+            Collections.sort(actual);
+            Assert.assertEquals(expression, expected, actual);
+            Assert.assertEquals(expression, expected.size(), columnar.count(query));
+        }
+    }
+
+    /**
+     * Items-collection tests: 36) getItems returns a HashMap copy of the
+     * items, which can be changed without changing the catalogue, while
+     * itemsView follows the catalogue
+     */
+    @Test
+    public void testGetItemsCopy() {
+        Hypercat hc = new Hypercat("items-copy-catalogue");
+        hc.addItem(ranged("http://i/1"), "http://i/1");
+        Map<String, Item> view = hc.itemsView();
+        HashMap<String, Item> items = hc.getItems();
+        items.put("http://i/2", ranged("http://i/2"));
+        items.remove("http://i/1");
+        Assert.assertEquals(1, hc.getItems().size());
+        Assert.assertTrue(hc.getItems().containsKey("http://i/1"));
+
+        hc.addItem(ranged("http://i/3"), "http://i/3");
+        Assert.assertEquals(2, view.size());
+        Assert.assertTrue(view.containsKey("http://i/3"));
+        Assert.assertFalse(items.containsKey("http://i/3"));
+    }
+
+    /**
+     * Snapshot search tests: 37) every kind of search over a snapshot returns
+     * the items as the snapshot recorded them, after the live items have
+     * changed, and the results cannot be changed
+     */
+    @Test
+    public void testSnapshotSearchResults() {
+        String battery = "urn:X-hypercat:rels:batteryLevel";
+        Hypercat hc = new Hypercat("snapshot-search-catalogue");
+        hc.declareRangeIndex(battery, RangeIndexType.LONG);
+        Item item = ranged("http://s/1", battery, "50");
+        hc.addItem(item, "http://s/1");
+        Hypercat snapshot = hc.snapshot();
+        item.addRelation(new Relation("urn:X-tsbiot:rels:later", "later"));
+        Assert.assertEquals(4, item.getIObjectMetadata().size());
+
+        List<Hypercat> searches = Arrays.asList(snapshot.searchCat("href=http://s/1"),
+                snapshot.searchCat("rel=" + battery),
+                snapshot.searchCat("q=val%3D50%20OR%20val%3Dlater"),
+                snapshot.search(HypercatQuery.parse("rel=" + battery)),
+                snapshot.searchRange(battery, 0, 100),
+                snapshot.searchItems(i -> i.getHref().startsWith("http://s/")));
+        for (Hypercat results : searches) {
+            Assert.assertTrue(results.isSnapshot());
+            Item recorded = results.getItems().get("http://s/1");
+            Assert.assertNotSame(item, recorded);
+            Assert.assertEquals(3, recorded.getIObjectMetadata().size());
+            Assert.assertNull(recorded.findFirstRelation("urn:X-tsbiot:rels:later"));
+        }
+        Assert.assertEquals(0, snapshot.searchCat("val=later").getItems().size());
+
+        Hypercat live = hc.searchCat("href=http://s/1");
+        Assert.assertFalse(live.isSnapshot());
+        Assert.assertSame(item, live.getItems().get("http://s/1"));
+    }
+
+    /**
+     * Metadata-copy tests: 38) the metadata lists returned by getItemMetadata
+     * and getIObjectMetadata, and those passed to setIObjectMetadata, are
+     * copies, so changing them changes neither the catalogue, its version
+     * nor its snapshots
+     */
+    @Test
+    public void testMetadataCopies() {
+        Hypercat hc = new Hypercat("metadata-copy-catalogue");
+        Item item = ranged("http://m/1");
+        hc.addItem(item, "http://m/1");
+        Hypercat snapshot = hc.snapshot();
+        long version = hc.getVersion();
+
+        hc.getItemMetadata().add(new Relation("urn:X-tsbiot:rels:hasHomepage", "http://example.org"));
+        item.getIObjectMetadata().add(new Relation("urn:X-tsbiot:rels:extra", "extra"));
+        Assert.assertEquals(1, hc.getItemMetadata().size());
+        Assert.assertEquals(1, snapshot.getItemMetadata().size());
+        Assert.assertEquals(2, item.getIObjectMetadata().size());
+        Assert.assertEquals(0, hc.searchCat("rel=urn:X-tsbiot:rels:extra").getItems().size());
+        Assert.assertEquals(version, hc.getVersion());
+
+        ArrayList<Relation> metadata = item.getIObjectMetadata();
+        metadata.add(new Relation("urn:X-tsbiot:rels:extra", "extra"));
+        item.setIObjectMetadata(metadata);
+        metadata.add(new Relation("urn:X-tsbiot:rels:later", "later"));
+        Assert.assertEquals(3, item.getIObjectMetadata().size());
+        Assert.assertEquals(1, hc.searchCat("rel=urn:X-tsbiot:rels:extra").getItems().size());
+        Assert.assertEquals(0, hc.searchCat("rel=urn:X-tsbiot:rels:later").getItems().size());
+        Assert.assertEquals(2, snapshot.getItems().get("http://m/1").getIObjectMetadata().size());
+        Assert.assertTrue(hc.getVersion() != version);
+    }
+
+    /**
+     * Shared relation tests: 45) shared relations refuse their setters, and
+     * a shared relation whose public fields are assigned is no longer handed
+     * out for its old rel and val
+     */
+    @Test
+    public void testSharedRelationFields() {
+        Relation shared = RelationVocabulary.relation("urn:X-hypercat:rels:testUnit", "kelvin");
+        Assert.assertSame(shared, RelationVocabulary.relation("urn:X-hypercat:rels:testUnit", new String("kelvin")));
+        try {
+            shared.setVal("celsius");
+            Assert.fail("a shared relation was changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        shared.val = "celsius";
+        Relation fresh = RelationVocabulary.relation("urn:X-hypercat:rels:testUnit", "kelvin");
+        Assert.assertNotSame(shared, fresh);
+        Assert.assertEquals("kelvin", fresh.getVal());
+        Assert.assertSame(fresh, RelationVocabulary.relation("urn:X-hypercat:rels:testUnit", "kelvin"));
+    }
+
+    /**
+     * Search results tests: 44) the catalogue a search returns is valid,
+     * carries its description, and can be searched and changed in turn,
+     * its indexes being built when first needed
+     */
+    @Test
+    public void testSearchResultsCatalogue() {
+        String kind = "urn:X-hypercat:rels:kind";
+        Hypercat hc = new Hypercat("results-catalogue");
+        for (int i = 0; i < 100; i++) {
+            String href = "http://r/" + i;
+            hc.addItem(ranged(href, kind, i % 2 == 0 ? "even" : "odd", "urn:X-hypercat:rels:tenth", String.valueOf(i / 10)), href);
+        }
+        Hypercat results = hc.searchCat("rel=" + kind + "&val=even");
+        Assert.assertEquals("VALID", results.validateHypercat(results));
+        Assert.assertEquals("Search results for querystring: rel=" + kind + "&val=even",
+                results.findFirstRelation("urn:X-tsbiot:rels:hasDescription:en").getVal());
+        Assert.assertEquals(50, results.getItems().size());
+        Assert.assertTrue(results.getVersion() != hc.getVersion());
+
+        Assert.assertEquals(5, results.searchCat("val=3").getItems().size());
+        Assert.assertEquals(0, results.searchCat("val=odd").getItems().size());
+        Assert.assertEquals(5, results.search(HypercatQuery.parse("val=3 AND rel=" + kind)).getItems().size());
+        results.addItem(ranged("http://r/extra", kind, "odd"), "http://r/extra");
+        results.removeItem("http://r/0");
+        Assert.assertEquals(1, results.searchCat("val=odd").getItems().size());
+        Assert.assertEquals(4, results.searchCat("val=0").getItems().size());
+        Assert.assertEquals(50, hc.searchCat("val=odd").getItems().size());
+    }
+
+    /**
+     * Write-ahead log failure tests: 43) a change whose frame is only partly
+     * written is refused and cut back out of the log, so the changes
+     * acknowledged after it survive a reopen; if the cut fails too, the log
+     * refuses changes until it is compacted
+     */
+    @Test
+    public void testWriteAheadLogFailedAppend() throws Exception {
+        File file = File.createTempFile("hypercat", ".log");
+        file.delete();
+        try {
+            FailingChannel channel = new FailingChannel(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE));
+            Hypercat hc = HypercatLog.open(file, channel, HypercatLog.SyncPolicy.everyWrite(), "failing-catalogue");
+            hc.addItem(ranged("http://f/1"), "http://f/1");
+            channel.failWrites = true;
+            try {
+                hc.addItem(ranged("http://f/torn"), "http://f/torn");
+                Assert.fail("a torn append was acknowledged");
+            } catch (UncheckedIOException e) {
+                // expected
+            }
+            Assert.assertFalse(hc.itemsView().containsKey("http://f/torn"));
+            hc.addItem(ranged("http://f/2"), "http://f/2");
+
+            channel.failWrites = true;
+            channel.failTruncates = true;
+            try {
+                hc.addItem(ranged("http://f/torn"), "http://f/torn");
+                Assert.fail("a torn append was acknowledged");
+            } catch (UncheckedIOException e) {
+                // expected
+            }
+            channel.failTruncates = false;
+            try {
+                hc.addItem(ranged("http://f/3"), "http://f/3");
+                Assert.fail("a failed log was appended to");
+            } catch (UncheckedIOException e) {
+                // expected
+            }
+            hc.getLog().compact();
+            Assert.assertFalse(new File(file.getPath() + ".compact").exists());
+            hc.addItem(ranged("http://f/3"), "http://f/3");
+            String expected = hc.toJson();
+            hc.getLog().close();
+
+            Hypercat reopened = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "ignored");
+            Assert.assertEquals(expected, reopened.toJson());
+            Assert.assertEquals(new TreeSet<String>(Arrays.asList("http://f/1", "http://f/2", "http://f/3")), new TreeSet<String>(reopened.itemsView().keySet()));
+            reopened.getLog().close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * a channel to a file whose next write can be made to fail part-way
+     * through, and whose truncates can be made to fail
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        volatile boolean failWrites;
+        volatile boolean failTruncates;
+
+        FailingChannel(FileChannel file) {
+            this.file = file;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (failWrites) {
+                failWrites = false;
+                ByteBuffer part = srcs[offset].duplicate();
+                part.limit(part.position() + part.remaining() / 2);
+                file.write(part);
+                throw new IOException("disk full");
+            }
+            return file.write(srcs, offset, length);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncates) {
+                throw new IOException("cannot truncate");
+            }
+            file.truncate(size);
+            return this;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return file.transferFrom(src, position, count);
+        }
+
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        public int write(ByteBuffer src, long position) throws IOException {
+            return file.write(src, position);
+        }
+
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Shared item tests: 42) an item held by two catalogues, and by one of
+     * them under two hrefs, has its later changes indexed and written by
+     * each of them, until it is removed from them
+     */
+    @Test
+    public void testItemInTwoCatalogues() throws Exception {
+        Hypercat a = new Hypercat("catalogue A");
+        Hypercat b = new Hypercat("catalogue B");
+        Item item = ranged("http://shared/1");
+        a.addItem(item, "http://shared/1");
+        b.addItem(item, "http://shared/1");
+        b.addItem(item, "http://shared/alias");
+
+        item.addRelation(new Relation("urn:unit", "celsius"));
+        Assert.assertEquals(1, a.searchCat("rel=urn:unit").getItems().size());
+        Assert.assertEquals(2, b.searchCat("rel=urn:unit").getItems().size());
+        Assert.assertTrue(a.toJson().contains("celsius"));
+        Assert.assertTrue(b.toJson().contains("celsius"));
+
+        a.removeItem("http://shared/1");
+        b.removeItem("http://shared/alias");
+        item.addRelation(new Relation("urn:scale", "linear"));
+        Assert.assertEquals(1, b.searchCat("rel=urn:scale").getItems().size());
+        Assert.assertTrue(b.toJson().contains("linear"));
+
+        a.addItem(item, "http://shared/1");
+        b.removeItem("http://shared/1");
+        long version = b.getVersion();
+        item.addRelation(new Relation("urn:precision", "0.1"));
+        Assert.assertEquals(1, a.searchCat("rel=urn:precision").getItems().size());
+        Assert.assertEquals(version, b.getVersion());
+    }
+
+    /**
+     * Write-ahead log replay and close tests: 41) a log replayed a small
+     * window at a time, with frames crossing the window edges and a
+     * compacted frame larger than a window, reopens as it was left; closing
+     * the log while writers are waiting for their changes to be forced fails
+     * none of them, and keeps every change made before the close
+     */
+    @Test
+    public void testWriteAheadLogWindowsAndClose() throws Exception {
+        File file = File.createTempFile("hypercat", ".log");
+        file.delete();
+        int window = HypercatLog.replayWindowBytes;
+        try {
+            Hypercat hc = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "windowed-catalogue");
+            for (int i = 0; i < 300; i++) {
+                String href = "http://l/" + i;
+                hc.addItem(ranged(href, "urn:X-hypercat:rels:padding", new String(new char[i % 97]).replace('\0', 'x')), href);
+            }
+            String expected = hc.toJson();
+            hc.getLog().close();
+            HypercatLog.replayWindowBytes = 256;
+            Hypercat reopened = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "ignored");
+            Assert.assertEquals(expected, reopened.toJson());
+            reopened.getLog().compact();
+            reopened.removeItem("http://l/0");
+            expected = reopened.toJson();
+            reopened.getLog().close();
+            Assert.assertTrue(file.length() > 256);
+            reopened = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "ignored");
+            Assert.assertEquals(expected, reopened.toJson());
+            Assert.assertEquals(299, reopened.getItems().size());
+            reopened.getLog().close();
+            HypercatLog.replayWindowBytes = window;
+
+            final Hypercat logged = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "ignored");
+            final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+            Thread[] writers = new Thread[4];
+            for (int t = 0; t < writers.length; t++) {
+                final int writer = t;
+                writers[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 500; i++) {
+                                String href = "http://c/" + writer + "/" + i;
+                                logged.addItem(ranged(href), href);
+                            }
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                };
+                writers[t].start();
+            }
+            while (logged.itemsView().size() < 299 + 200) {
+                Thread.yield();
+            }
+            int beforeClose = logged.itemsView().size();
+            logged.getLog().close();
+            int afterClose = logged.itemsView().size();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            Assert.assertTrue("failures: " + failures, failures.isEmpty());
+            Assert.assertEquals(299 + 2000, logged.itemsView().size());
+            reopened = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "ignored");
+            Assert.assertTrue(reopened.itemsView().size() >= beforeClose);
+            Assert.assertTrue(reopened.itemsView().size() <= afterClose);
+            reopened.getLog().close();
+        } finally {
+            HypercatLog.replayWindowBytes = window;
+            file.delete();
+        }
+    }
+
+    /**
+     * Servlet tests: 39) PUT creates (201) and replaces (204) a catalogue,
+     * POST adds an item (201) unless its href is taken (409), DELETE removes
+     * an item or the catalogue (204), requests naming no catalogue or item
+     * get 404, and bodies that are malformed, have values of the wrong
+     * types, or have relations or items missing a rel, val or href get 400
+     */
+    @Test
+    public void testServletRequests() throws Exception {
+        HypercatServlet servlet = new HypercatServlet();
+        String catalogue = new Hypercat("served catalogue").toJson();
+        String item = new Item("http://served/1", "served item", "text/plain").toJson();
+
+        Assert.assertEquals(201, serve(servlet, "PUT", "/cat", null, null, catalogue).status);
+        Assert.assertEquals(204, serve(servlet, "PUT", "/cat", null, null, catalogue).status);
+        Assert.assertEquals(201, serve(servlet, "POST", "/cat", null, null, item).status);
+        Assert.assertEquals(409, serve(servlet, "POST", "/cat", null, null, item).status);
+        Assert.assertEquals(1, servlet.getCatalogue("cat").getItems().size());
+
+        Served found = serve(servlet, "GET", "/cat", "href=http://served/1", null, null);
+        Assert.assertEquals(200, found.status);
+        Assert.assertEquals(1, Hypercat.parse(new ByteArrayInputStream(found.body.toByteArray())).getItems().size());
+
+        Assert.assertEquals(404, serve(servlet, "GET", "/missing", null, null, null).status);
+        Assert.assertEquals(404, serve(servlet, "POST", "/missing", null, null, item).status);
+        Assert.assertEquals(404, serve(servlet, "DELETE", "/cat", "href=http://served/2", null, null).status);
+
+        String[] malformed = { "{\"item-metadata\": [", "{\"item-metadata\": 5, \"items\": []}", "[1]", "" };
+        for (String body : malformed) {
+            Assert.assertEquals(body, 400, serve(servlet, "PUT", "/cat", null, null, body).status);
+            Assert.assertEquals(body, 400, serve(servlet, "POST", "/cat", null, null, body).status);
+        }
+        Assert.assertEquals(400, serve(servlet, "POST", "/cat", null, null, "{\"href\": \"http://served/2\", \"i-object-metadata\": 7}").status);
+        Assert.assertEquals(400, serve(servlet, "POST", "/cat", null, null, "{\"href\": \"http://served/2\"}").status);
+        String description = "{\"rel\": \"urn:X-tsbiot:rels:hasDescription:en\", \"val\": \"d\"}";
+        String[] badRelations = { "{\"val\": \"d\"}", "{\"rel\": null, \"val\": \"d\"}", "{\"rel\": \"urn:X-tsbiot:rels:x\"}",
+                "{\"rel\": \"urn:X-tsbiot:rels:x\", \"val\": null}", "{\"rel\": {}, \"val\": \"d\"}", "{\"rel\": \"urn:X-tsbiot:rels:x\", \"val\": [1]}" };
+        for (String relation : badRelations) {
+            String badCatalogue = "{\"item-metadata\": [" + relation + ", " + description + "], \"items\": []}";
+            Assert.assertEquals(relation, 400, serve(servlet, "PUT", "/cat", null, null, badCatalogue).status);
+            String badItem = "{\"href\": \"http://served/2\", \"i-object-metadata\": [" + relation + ", " + description + "]}";
+            Assert.assertEquals(relation, 400, serve(servlet, "POST", "/cat", null, null, badItem).status);
+        }
+        Assert.assertEquals(400, serve(servlet, "POST", "/cat", null, null, "{\"href\": null, \"i-object-metadata\": [" + description + "]}").status);
+        Assert.assertEquals(400, serve(servlet, "PUT", "/cat", null, null,
+                "{\"item-metadata\": [" + description + "], \"items\": [{\"href\": null, \"i-object-metadata\": []}]}").status);
+        Assert.assertNull(servlet.getCatalogue("cat").getItems().get("null"));
+        Assert.assertEquals(1, servlet.getCatalogue("cat").getItems().size());
+
+        Assert.assertEquals(204, serve(servlet, "DELETE", "/cat", "href=http://served/1", null, null).status);
+        Assert.assertEquals(0, servlet.getCatalogue("cat").getItems().size());
+        Assert.assertEquals(204, serve(servlet, "DELETE", "/cat", null, null, null).status);
+        Assert.assertNull(servlet.getCatalogue("cat"));
+        Assert.assertEquals(404, serve(servlet, "GET", "/cat", null, null, null).status);
+    }
+
+    /**
+     * Conditional GET tests: 40) a poll quoting the ETag or Last-Modified
+     * time of the previous one is answered 304 with no body until the
+     * catalogue changes, after which it gets the new contents under a new
+     * ETag; repeated gzipped downloads are served from the cached gzip
+     */
+    @Test
+    public void testServletConditionalGet() throws Exception {
+        HypercatServlet servlet = new HypercatServlet();
+        Hypercat hc = new Hypercat("polled catalogue");
+        hc.addItem(new Item("http://polled/1", "polled item", "text/plain"), "http://polled/1");
+        servlet.putCatalogue("cat", hc);
+
+        Served first = serve(servlet, "GET", "/cat", null, null, null);
+        String etag = first.headers.get("ETag");
+        Assert.assertEquals(200, first.status);
+        Assert.assertNotNull(etag);
+        Assert.assertNotNull(first.headers.get("Last-Modified"));
+        Assert.assertEquals(hc.toJson(), first.body.toString("UTF-8"));
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("If-None-Match", etag);
+        Served unchanged = serve(servlet, "GET", "/cat", null, headers, null);
+        Assert.assertEquals(304, unchanged.status);
+        Assert.assertEquals(0, unchanged.body.size());
+        Assert.assertEquals(etag, unchanged.headers.get("ETag"));
+        Assert.assertEquals(304, serve(servlet, "GET", "/cat", "val=polled item", headers, null).status);
+
+        Map<String, String> since = new HashMap<String, String>();
+        since.put("If-Modified-Since", first.headers.get("Last-Modified"));
+        Assert.assertEquals(304, serve(servlet, "GET", "/cat", null, since, null).status);
+
+        hc.addItem(new Item("http://polled/2", "polled item", "text/plain"), "http://polled/2");
+        Served changed = serve(servlet, "GET", "/cat", null, headers, null);
+        Assert.assertEquals(200, changed.status);
+        Assert.assertFalse(etag.equals(changed.headers.get("ETag")));
+        Assert.assertEquals(hc.toJson(), changed.body.toString("UTF-8"));
+        headers.put("If-None-Match", changed.headers.get("ETag"));
+        Assert.assertEquals(304, serve(servlet, "GET", "/cat", null, headers, null).status);
+
+        Map<String, String> gzip = new HashMap<String, String>();
+        gzip.put("Accept-Encoding", "gzip, deflate");
+        Served zipped = serve(servlet, "GET", "/cat", null, gzip, null);
+        Assert.assertEquals("gzip", zipped.headers.get("Content-Encoding"));
+        Assert.assertTrue(zipped.headers.get("ETag").endsWith("-gz\""));
+        Assert.assertEquals(1, servlet.getGzipCacheMisses());
+        Assert.assertEquals(0, servlet.getGzipCacheHits());
+        Served rezipped = serve(servlet, "GET", "/cat", null, gzip, null);
+        Assert.assertEquals(1, servlet.getGzipCacheMisses());
+        Assert.assertEquals(1, servlet.getGzipCacheHits());
+        Assert.assertArrayEquals(zipped.body.toByteArray(), rezipped.body.toByteArray());
+        GZIPInputStream unzipped = new GZIPInputStream(new ByteArrayInputStream(rezipped.body.toByteArray()));
+        Assert.assertEquals(hc.toJson(), Hypercat.parse(unzipped).toJson());
+
+        hc.removeItem("http://polled/1");
+        serve(servlet, "GET", "/cat", null, gzip, null);
+        Assert.assertEquals(2, servlet.getGzipCacheMisses());
+    }
+
+    /**
+     * a response recorded by serve: its status, the headers set on it (dates
+     * formatted as in HTTP) and its body
+     */
+    private static final class Served {
+        int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    }
+
+    /**
+     * passes a request to the servlet's handler for the method, through
+     * proxies standing in for the container's request and response
+     */
+    private static Served serve(HypercatServlet servlet, String method, final String path, final String querystring,
+            final Map<String, String> headers, final String body) throws Exception {
+        final Map<String, String> parameters = querystring == null ? new HashMap<String, String>() : Hypercat.getQueryMap(querystring);
+        final Map<String, String> requestHeaders = headers == null ? new HashMap<String, String>() : headers;
+        HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(HypercatUnitTests.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        String name = m.getName();
+                        if (name.equals("getPathInfo")) {
+                            return path;
+                        } else if (name.equals("getQueryString")) {
+                            return querystring;
+                        } else if (name.equals("getParameter")) {
+                            return parameters.get(args[0]);
+                        } else if (name.equals("getHeader")) {
+                            return requestHeaders.get(args[0]);
+                        } else if (name.equals("getDateHeader")) {
+                            String date = requestHeaders.get(args[0]);
+                            return date == null ? -1L : ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                        } else if (name.equals("getCharacterEncoding")) {
+                            return "UTF-8";
+                        } else if (name.equals("getReader")) {
+                            return new BufferedReader(new StringReader(body));
+                        } else if (name.equals("getInputStream")) {
+                            final InputStream in = new ByteArrayInputStream(body.getBytes("UTF-8"));
+                            return new ServletInputStream() {
+                                public int read() throws IOException {
+                                    return in.read();
+                                }
+                            };
+                        }
+                        return null;
+                    }
+                });
+        final Served served = new Served();
+        HttpServletResponse res = (HttpServletResponse) Proxy.newProxyInstance(HypercatUnitTests.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        String name = m.getName();
+                        if (name.equals("setStatus") || name.equals("sendError")) {
+                            served.status = (Integer) args[0];
+                        } else if (name.equals("setHeader")) {
+                            served.headers.put((String) args[0], (String) args[1]);
+                        } else if (name.equals("setDateHeader")) {
+                            Instant date = Instant.ofEpochMilli((Long) args[1]);
+                            served.headers.put((String) args[0], DateTimeFormatter.RFC_1123_DATE_TIME.format(date.atZone(ZoneOffset.UTC)));
+                        } else if (name.equals("getOutputStream")) {
+                            return new ServletOutputStream() {
+                                public void write(int b) {
+                                    served.body.write(b);
+                                }
+                            };
+                        }
+                        return null;
+                    }
+                });
+        if (method.equals("GET")) {
+            servlet.doGet(req, res);
+        } else if (method.equals("PUT")) {
+            servlet.doPut(req, res);
+        } else if (method.equals("POST")) {
+            servlet.doPost(req, res);
+        } else {
+            servlet.doDelete(req, res);
+        }
+        return served;
+    }
+
+    private static Item ranged(String href, String... relVals) {
+        Item item = new Item(href, "sensor", "application/json");
+        for (int i = 0; i < relVals.length; i += 2) {
+            item.addRelation(new Relation(relVals[i], relVals[i + 1]));
+        }
+        return item;
+    }
+
+    private static Item positioned(String href, String lat, String lng) {
+        Item item = new Item(href, "sensor", "application/json");
+        item.addRelation(new Relation(GeoIndex.LAT_REL, lat));
+        item.addRelation(new Relation(GeoIndex.LONG_REL, lng));
+        return item;
+    }
+
+    private static List<String> hrefsOf(List<Item> items) {
+        List<String> hrefs = new ArrayList<String>();
+        for (Item item : items) {
+            hrefs.add(item.getHref());
+        }
+        return hrefs;
+    }
+
+    /**
+     * Memory-footprint regression test: 17) a 100k-item catalogue costs no
+     * more than MAX_BYTES_PER_ITEM of heap per item, including its relations
+     * and its entries in the items collection and search indexes. The cost
+     * per item is flat with size, so a sample this large bounds it as well as
+     * a 1M-item one while keeping the suite fast
+     */
+    @Test
+    public void testMemoryFootprintPerItem() {
+        final int itemCount = 100000;
+        final long MAX_BYTES_PER_ITEM = 700;
+
+        long before = usedHeap();
+        Hypercat hc = new Hypercat("memory-footprint-catalogue");
+        for (int i = 0; i < itemCount; i++) {
+            String href = "http://devices/sensor/" + i;
+            hc.addItem(new Item(href, "temperature sensor", "application/json"), href);
+        }
+        long bytesPerItem = (usedHeap() - before) / itemCount;
+        log.info("catalogue of {} items uses {} bytes per item", itemCount, bytesPerItem);
+
+        Assert.assertEquals(itemCount, hc.getItems().size());
+        Assert.assertTrue("bytes per item = " + bytesPerItem, bytesPerItem <= MAX_BYTES_PER_ITEM);
+    }
+
+    private long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
     String prettyPrint(Object o) throws JsonGenerationException, JsonMappingException, IOException {
         String output = "NO JSON";
         ObjectMapper mapper = new ObjectMapper();
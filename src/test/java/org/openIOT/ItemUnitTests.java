@@ -117,6 +117,40 @@ public class ItemUnitTests {
 
     }
 
+    /**
+     * Relation value-equality and vocabulary tests: equal rel/val pairs are
+     * equal Relations, parsed relations are shared between items, and shared
+     * relations cannot be changed in place
+     */
+    @Test
+    public void testRelationVocabulary() throws JsonParseException, JsonMappingException, IOException {
+        Relation r1 = new Relation("urn:X-tsbiot:rels:isContentType", new String("text/plain"));
+        Relation r2 = new Relation(new String("urn:X-tsbiot:rels:isContentType"), "text/plain");
+        Assert.assertEquals(r1, r2);
+        Assert.assertEquals(r1.hashCode(), r2.hashCode());
+        Assert.assertSame(r1.getRel(), r2.getRel());
+        Assert.assertSame(r1.getVal(), r2.getVal());
+        Assert.assertFalse(r1.equals(new Relation("urn:X-tsbiot:rels:isContentType", "text/csv")));
+
+        // unshared relations may still be changed
+        r1.setVal("text/csv");
+        Assert.assertEquals("text/csv", r1.getVal());
+
+        Item i1 = new Item("{\"href\":\"http://one\",\"i-object-metadata\":[{\"rel\":\"urn:X-tsbiot:rels:isContentType\",\"val\":\"text/plain\"},{\"rel\":\"urn:X-tsbiot:rels:hasDescription:en\",\"val\":\"one\"}]}", true);
+        Item i2 = new Item("{\"href\":\"http://two\",\"i-object-metadata\":[{\"rel\":\"urn:X-tsbiot:rels:isContentType\",\"val\":\"text/plain\"},{\"rel\":\"urn:X-tsbiot:rels:hasDescription:en\",\"val\":\"two\"}]}", true);
+        Relation shared = i1.findFirstRelation("urn:X-tsbiot:rels:isContentType");
+        Assert.assertSame(shared, i2.findFirstRelation("urn:X-tsbiot:rels:isContentType"));
+        Assert.assertNotSame(i1.findFirstRelation("urn:X-tsbiot:rels:hasDescription:en"),
+                i2.findFirstRelation("urn:X-tsbiot:rels:hasDescription:en"));
+        try {
+            shared.setVal("text/csv");
+            Assert.fail("shared relation should not be changeable");
+        } catch (UnsupportedOperationException e) {
+            log.info("shared relation not changed: " + e.getMessage());
+        }
+        Assert.assertEquals("text/plain", i2.findFirstRelation("urn:X-tsbiot:rels:isContentType").getVal());
+    }
+
     String prettyPrint(Object o) throws JsonGenerationException, JsonMappingException, IOException {
         String output = "NO JSON";
         ObjectMapper mapper = new ObjectMapper();
@@ -0,0 +1,95 @@
+package org.openIOT;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/* LICENCE INFORMATION for org.openIOT.ParallelSearchBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Compares sequential and parallel scanning searches
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Times Hypercat.searchItems with a substring predicate over catalogues of
+ * 10k, 1M and 10M items, first scanning on the calling thread and then in
+ * parallel on the common fork-join pool, and prints the best of several runs
+ * for each. Not run as part of the unit tests; run by hand with
+ * <p>
+ * java -Xmx8g -cp ... org.openIOT.ParallelSearchBenchmark [items ...]
+ * <p>
+ * The 10M-item catalogue needs a heap of about 6GB.
+ */
+public class ParallelSearchBenchmark {
+
+    private static final int[] DEFAULT_SIZES = { 10000, 1000000, 10000000 };
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("parallelism=" + java.util.concurrent.ForkJoinPool.getCommonPoolParallelism());
+        System.out.println("items      matches  sequential(ms)  parallel(ms)");
+        for (int size : sizes) {
+            Hypercat hc = catalogue(size);
+            Predicate<Item> predicate = ItemFilters.valContains("urn:X-tsbiot:rels:hasDescription:en", "77");
+            hc.setParallelSearchThreshold(Integer.MAX_VALUE);
+            long sequential = best(hc, predicate);
+            hc.setParallelSearchThreshold(0);
+            long parallel = best(hc, predicate);
+            int matches = hc.searchItems(predicate).itemsView().size();
+            System.out.printf("%-10d %-8d %-15.1f %.1f%n", size, matches, sequential / 1e6, parallel / 1e6);
+        }
+    }
+
+    private static Hypercat catalogue(int size) {
+        Hypercat hc = new Hypercat("parallel search benchmark");
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < size; i++) {
+            String href = "http://devices/sensor/" + i;
+            batch.put(href, new Item(href, "temperature sensor " + i, "application/json"));
+            if (batch.size() == 100000) {
+                hc.addItems(batch);
+                batch.clear();
+            }
+        }
+        hc.addItems(batch);
+        return hc;
+    }
+
+    private static long best(Hypercat hc, Predicate<Item> predicate) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            hc.searchItems(predicate);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,103 @@
+package org.openIOT;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/* LICENCE INFORMATION for org.openIOT.SnapshotBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Times writing, opening and searching a snapshot file
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Writes a catalogue of 5M items (by default) to a snapshot file, and times
+ * the write, opening the file, the first query against it, and then the
+ * mean time of selective and broad queries and of fetching a single item.
+ * Not run as part of the unit tests; run by hand with
+ * <p>
+ * java -Xmx5g -cp ... org.openIOT.SnapshotBenchmark [items] [directory]
+ */
+public class SnapshotBenchmark {
+
+    private static final int REQUESTS = 100;
+
+    private static final String KIND = "urn:X-hypercat:rels:kind";
+    private static final String[] KINDS = { "temperature", "humidity", "pressure", "light", "motion" };
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        File file = new File(dir, "benchmark.snapshot");
+        Hypercat hc = new Hypercat("snapshot benchmark");
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < size; i++) {
+            String href = "http://devices/" + (i % 1000) + "/sensor/" + i;
+            Item item = new Item(href, "sensor " + i, "application/json");
+            item.addRelation(new Relation(KIND, KINDS[i % KINDS.length]));
+            batch.put(href, item);
+            if (batch.size() == 10000) {
+                hc.addItems(batch);
+                batch.clear();
+            }
+        }
+        hc.addItems(batch);
+
+        long start = System.nanoTime();
+        HypercatSnapshot.write(hc, file);
+        System.out.printf("wrote %d items (%d MB) in %.0f ms%n", size, file.length() >> 20, (System.nanoTime() - start) / 1e6);
+        hc = null;
+        batch = null;
+        System.gc();
+
+        start = System.nanoTime();
+        HypercatSnapshot snapshot = HypercatSnapshot.open(file);
+        long opened = System.nanoTime();
+        HypercatQuery selective = HypercatQuery.parse("href^=http://devices/42/ AND rel=" + KIND + "&val=pressure");
+        long first = snapshot.count(selective);
+        long answered = System.nanoTime();
+        System.out.printf("opened in %.2f ms; first query (%d items) answered %.2f ms after opening%n", (opened - start) / 1e6, first,
+                (answered - opened) / 1e6);
+
+        time("selective query", snapshot, selective, size);
+        time("val=pressure, counted", snapshot, HypercatQuery.parse("val=pressure"), size);
+        time("val^=te, counted", snapshot, HypercatQuery.parse("val^=te"), size);
+        start = System.nanoTime();
+        for (int r = 0; r < REQUESTS; r++) {
+            int i = (int) ((r * 7919L) % size);
+            snapshot.getItem("http://devices/" + (i % 1000) + "/sensor/" + i);
+        }
+        System.out.printf("getItem: %.3f ms%n", (System.nanoTime() - start) / 1e6 / REQUESTS);
+        file.delete();
+    }
+
+    private static void time(String name, HypercatSnapshot snapshot, HypercatQuery query, int size) {
+        long matches = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < REQUESTS; r++) {
+            matches = name.endsWith("counted") ? snapshot.count(query) : snapshot.search(query).size();
+        }
+        System.out.printf("%s (%d items): %.3f ms%n", name, matches, (System.nanoTime() - start) / 1e6 / REQUESTS);
+    }
+}
@@ -0,0 +1,100 @@
+package org.openIOT;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/* LICENCE INFORMATION for org.openIOT.WriteAheadLogBenchmark.java
+
+* Copyright (c) 2014 Jeremy Johnson / AlertMe Ltd.
+*
+* Times logged writes under each sync policy, and replay of the log
+* Written to comply with IoT Ecosystems Demonstrator Interoperability Action Plan V1.0 24th June 2013
+* As found at http://www.openiot.org/apis
+*
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+*
+* The above copyright notice and this permission notice shall be included in
+* all copies or substantial portions of the Software.
+*
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+* THE SOFTWARE.
+*/
+
+/**
+ * Times addItem on a catalogue with a write-ahead log, from several threads
+ * at once, under each sync policy, and then the replay of a log of 1M items
+ * (by default) on reopening it. Not run as part of the unit tests; run by
+ * hand with
+ * <p>
+ * java -Xmx4g -cp ... org.openIOT.WriteAheadLogBenchmark [items] [directory]
+ */
+public class WriteAheadLogBenchmark {
+
+    private static final int THREADS = 8;
+    private static final int WRITES_PER_THREAD = 500;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        HypercatLog.SyncPolicy[] policies = { HypercatLog.SyncPolicy.everyWrite(), HypercatLog.SyncPolicy.everyRecords(100),
+                HypercatLog.SyncPolicy.everyMillis(10) };
+        for (HypercatLog.SyncPolicy policy : policies) {
+            File file = new File(dir, "benchmark-" + policy + ".log");
+            file.delete();
+            final Hypercat hc = HypercatLog.open(file, policy, "write-ahead log benchmark");
+            Thread[] writers = new Thread[THREADS];
+            long start = System.nanoTime();
+            for (int t = 0; t < THREADS; t++) {
+                final int writer = t;
+                writers[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                            String href = "http://devices/" + writer + "/sensor/" + i;
+                            hc.addItem(new Item(href, "temperature sensor " + i, "application/json"), href);
+                        }
+                    }
+                };
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            hc.getLog().close();
+            file.delete();
+            System.out.printf("%s: %.0f writes/s from %d threads%n", policy, THREADS * WRITES_PER_THREAD / (elapsed / 1e9), THREADS);
+        }
+
+        File file = new File(dir, "benchmark-replay.log");
+        file.delete();
+        Hypercat hc = HypercatLog.open(file, HypercatLog.SyncPolicy.everyMillis(1000), "write-ahead log benchmark");
+        Map<String, Item> batch = new HashMap<String, Item>();
+        for (int i = 0; i < size; i++) {
+            String href = "http://devices/sensor/" + i;
+            batch.put(href, new Item(href, "temperature sensor " + i, "application/json"));
+            if (batch.size() == 1000) {
+                hc.addItems(batch);
+                batch.clear();
+            }
+        }
+        hc.addItems(batch);
+        hc.getLog().close();
+        long start = System.nanoTime();
+        Hypercat replayed = HypercatLog.open(file, HypercatLog.SyncPolicy.everyWrite(), "write-ahead log benchmark");
+        System.out.printf("replayed %d items (%d MB of log) in %.0f ms%n", replayed.itemsView().size(), file.length() >> 20,
+                (System.nanoTime() - start) / 1e6);
+        replayed.getLog().close();
+        file.delete();
+    }
+}